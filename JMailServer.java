@@ -40,7 +40,14 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.regex.*;
+import java.util.zip.*;
 
 /** A Java Implementation of a POP3 and SMTP server
  * @author tsm20 Tim Carey-Smith
@@ -50,8 +57,12 @@ public class JMailServer {
     public static final String CONFIG_FILE="JMail.cfg";
     /** This is the path to the JMail config file */
     public static final String USERLIST_FILE="JMailUsers.cfg";
+    /** This is the path to the SMTPQueue journal */
+    public static final String QUEUE_JOURNAL_FILE="JMailQueue.journal";
     /** This is the file extension used for storing serialized JMailUser objects */
     public static final String USER_FILEEXT=".jmusr";
+    /** This is the file extension used for the log of each user's mailbox */
+    public static final String MAILBOX_FILEEXT=".jmbox";
     /** This is the minimium value for QUEUE_INTERVAL (millisecs) */
     public static final int QUEUE_INTERVAL_MIN=1000;
     
@@ -66,10 +77,93 @@ public class JMailServer {
     public static int QUEUE_INTERVAL=3000;
     /** This is the regex which the domain should match if it is network-local */
     public static String NETWORK_LOCAL_REGEX="^\\w+\\.cosc\\..*";
+    /** These are the routes given in the config file, each {ROUTE_EXACT|ROUTE_SUFFIX|ROUTE_REGEX, pattern, route}:<br>
+     * <li>ROUTE_EXACT=example.com local</li>
+     * <li>ROUTE_SUFFIX=cosc.canterbury.ac.nz network</li>
+     * <li>ROUTE_REGEX=^mail\..* forward</li>
+     * NETWORK_LOCAL_REGEX is tried after all of them
+     */
+    public static Vector ROUTES=new Vector();
+    /** This is the number of routing decisions kept in the cache */
+    public static int ROUTE_CACHE_SIZE=1024;
+    /** This is how long (millisecs) the host name of an address is cached */
+    public static int DNS_CACHE_TTL=3600000;
+    /** This is how long (millisecs) an address with no host name is cached */
+    public static int DNS_NEGATIVE_TTL=300000;
+    /** This is the number of host name lookups done at once */
+    public static int DNS_LOOKUP_THREADS=2;
+    /** This is how long (millisecs) start up waits for the server's own host name */
+    public static int DNS_STARTUP_WAIT=5000;
+    /** This is the class (a JMailResolver) used to look up host names; empty for the system's resolver */
+    public static String DNS_RESOLVER="";
     /** This is the hostname of the SMTP forwarder */
     public static String SMTP_FORWARD_HOST="mailhost.cosc.canterbury.ac.nz";
     /** This is the port of the SMTP forwarder */
     public static int SMTP_FORWARD_PORT=25;
+    /** This is how connections are handled:<br>
+     * <li>thread: a new Thread is spawned for each connection</li>
+     * <li>nio: connections are driven by NIO_LOOPS Selector threads, which hand
+     * each message received to a worker thread to be queued</li>
+     * <li>virtual: each connection is handled on its own virtual thread</li>
+     */
+    public static String LISTENER_MODE="thread";
+    /** This is the number of Selector threads used when LISTENER_MODE=nio */
+    public static int NIO_LOOPS=2;
+    /** This is the maximum number of concurrent POP3 connections */
+    public static int POP3_MAX_CLIENTS=500;
+    /** This is the maximum number of concurrent SMTP connections */
+    public static int SMTP_MAX_CLIENTS=500;
+    /** This is the length of the queue of connections waiting to be accepted */
+    public static int ACCEPT_BACKLOG=50;
+    /** This is how long (millisecs) a client may be idle before its first command */
+    public static int TIMEOUT_GREETING=30000;
+    /** This is how long (millisecs) a POP3 client may be idle while logging in */
+    public static int TIMEOUT_AUTH=60000;
+    /** This is how long (millisecs) a client may be idle between commands */
+    public static int TIMEOUT_TRANSACTION=600000;
+    /** This is how long (millisecs) a SMTP client may be idle while sending DATA */
+    public static int TIMEOUT_DATA=300000;
+    /** This is how long (millisecs) to wait for a connection to a remote SMTP server */
+    public static int TIMEOUT_CONNECT=30000;
+    /** This is how long (millisecs) to wait for the greeting of a remote SMTP server */
+    public static int TIMEOUT_REMOTE_GREETING=300000;
+    /** This is how long (millisecs) to wait for a remote SMTP server to answer a command */
+    public static int TIMEOUT_REMOTE_COMMAND=300000;
+    /** This is how long (millisecs) to wait for a remote SMTP server to accept the message data */
+    public static int TIMEOUT_REMOTE_DATA=600000;
+    /** This is the size (bytes) past which a message being received is spooled to disk */
+    public static int DATA_SPOOL_THRESHOLD=1048576;
+    /** This is the largest message (bytes) accepted over SMTP; 0 means no limit */
+    public static int MAX_MESSAGE_SIZE=10485760;
+    /** This is whether accepted messages are forced to disk before they are acknowledged */
+    public static boolean QUEUE_JOURNAL_SYNC=true;
+    /** This is the delay (millisecs) before a failed delivery is first retried */
+    public static int QUEUE_RETRY_MIN=60000;
+    /** This is the longest delay (millisecs) between retries of a failed delivery */
+    public static int QUEUE_RETRY_MAX=3600000;
+    /** This is how long (millisecs) a message is retried before it is given up on */
+    public static long QUEUE_MAX_AGE=432000000L;
+    /** This is the number of workers delivering messages from the SMTPQueue */
+    public static int DELIVERY_WORKERS=4;
+    /** This is how the delivery workers are run:<br>
+     * <li>thread: each worker is a Thread</li>
+     * <li>virtual: each worker is a virtual thread</li>
+     */
+    public static String DELIVERY_MODE="thread";
+    /** This is how mail for local users is delivered:<br>
+     * <li>inline: when every recipient is a local user, straight into the
+     * mailboxes before the message is accepted, without going through the
+     * SMTPQueue; the mailboxes are forced to disk before the client is told.
+     * A message with any remote recipient is queued as a whole</li>
+     * <li>queue: by the delivery workers, like any other mail</li>
+     */
+    public static String LOCAL_DELIVERY="inline";
+    /** This is the number of idle connections kept open to each remote SMTP server; 0 closes them after each delivery */
+    public static int SMTP_POOL_SIZE=2;
+    /** This is how long (millisecs) an idle connection to a remote SMTP server is kept open */
+    public static int SMTP_POOL_IDLE=60000;
+    /** This is how often (millisecs) an idle connection to a remote SMTP server is checked with NOOP */
+    public static int SMTP_POOL_CHECK=20000;
     
     
     /** Whether the server is in "debug" mode */
@@ -82,16 +176,32 @@ public class JMailServer {
     public static JMailUserStore allUsers=null;
     /** Allows access to the config file and serialized JMailUsers */
     public static JMailFileIO fileio=null;
+    /** Holds the content of the messages in the mailboxes, once for all the recipients */
+    public static JMailBodyStore bodyStore=null;
     /** Stores the current SMTP messages waiting for dequeuing */
     public static JMailSMTPQueue mySMTPQueue=null;
-    /** Stores whether SMTPQueue is currently being processed */
-    public static boolean isProcessingQueue=false;
+    /** Host names of client addresses, looked up in the background */
+    public static JMailNameCache nameCache=null;
+    /** Decides where mail for each domain goes; replaced when the config file changes */
+    public static volatile JMailRoutingTable routingTable=null;
+    /** Modification time of the config file when it was last read */
+    private static long configModified=0;
     /** This is the Timer controlling the SMTPQueue processing */
     private static Timer mySMTPQueueTimer=null;
+    /** This closes connections which have been idle for too long */
+    public static JMailSessionReaper sessionReaper=null;
     
     private static JMailServerThread POP3Thread=null;
     private static JMailServerThread SMTPThread=null;
     
+    /** These are the Selector threads shared by the listeners in nio mode */
+    private static JMailNIOEventLoop[] nioLoops=null;
+    /** This is the index of the next Selector thread to be given a connection */
+    private static int nextNIOLoop=0;
+    /** These are the threads which queue the messages received in nio mode,
+     *  so the Selector threads do not wait for the disk */
+    private static ExecutorService nioWorkers=null;
+    
     /** This is the main method which starts the JMailServer
      *  and spawns the ServerThreads
      * @param args If the first argument is 'debug'; the server will enter debug mode in which more
@@ -156,6 +266,8 @@ public class JMailServer {
             System.out.println("HELP - this stuff");
             System.out.println("INFO - current config");
             System.out.println("QUEUE - size of SMTPQueue");
+            System.out.println("ROUTES - show routing table and how often each route is used");
+            System.out.println("SESSIONS - show list of live connections");
             System.out.println("USER - show list of users");
             System.out.println("USER <name> - show info about <name>");
             System.out.println("RETR <name> <n> - print mail message <n> for <name>");
@@ -174,8 +286,51 @@ public class JMailServer {
             System.exit(1);
             return;
         }
+        else if(arg1.equals("ROUTES")) {
+            JMailRoutingTable table=JMailServer.routingTable;
+            System.out.println("ROUTES: cache "+table.getCacheSize()+" domain(s), "+table.getCacheHits()+" hit(s), "+table.getCacheMisses()+" miss(es)");
+            Enumeration routes=table.getRoutes();
+            while(routes.hasMoreElements()) {
+                System.out.println(" o "+routes.nextElement());
+            }
+            return;
+        }
+        else if(arg1.equals("SESSIONS")) {
+            System.out.println("SESSIONS List");
+            printSessions(POP3Thread);
+            printSessions(SMTPThread);
+            return;
+        }
         else if(arg1.equals("QUEUE")) {
             System.out.println("QUEUE: "+JMailServer.mySMTPQueue.getQueueLength()+" message(s)");
+            System.out.println("QUEUE: "+JMailServer.mySMTPQueue.getDeliveredCount()+" delivered, latency avg "+
+            String.format("%.2f", JMailServer.mySMTPQueue.getAverageLatency())+"ms max "+
+            String.format("%.2f", JMailServer.mySMTPQueue.getMaxLatency())+"ms");
+            JMailQueueJournal journal=JMailServer.mySMTPQueue.getJournal();
+            if(journal != null) {
+                System.out.println("QUEUE: journal "+journal.getWrittenCount()+" record(s) written, "+journal.getSyncCount()+" sync(s), "+
+                journal.getLength()+" byte(s), rewritten "+journal.getCompactCount()+" time(s)");
+            }
+            System.out.println("QUEUE: "+JMailServer.mySMTPQueue.getExpiredCount()+" given up on");
+            JMailSMTPClientPool clientPool=JMailServer.mySMTPQueue.getClientPool();
+            JMailSMTPConnector connector=JMailServer.mySMTPQueue.getConnector();
+            System.out.println("QUEUE: outbound "+clientPool.getOpenedCount()+" connection(s) opened, "+clientPool.getReusedCount()+" reused, "+clientPool.getIdleCount()+" idle"+
+            ((connector == null) ? "" : ", "+connector.getConnectingCount()+" connecting"));
+            
+            // List the first few messages with their retry state
+            long now=System.currentTimeMillis();
+            int count=0;
+            Enumeration messages=JMailServer.mySMTPQueue.getMessages();
+            while(messages.hasMoreElements()) {
+                JMailSMTPMessage temp=(JMailSMTPMessage) messages.nextElement();
+                if(++count > 50) {
+                    System.out.println(" o ...");
+                    break;
+                }
+                System.out.println(" o #"+temp.getId()+" from <"+temp.getSender().parsed()+"> delivered="+temp.countRecipents(JMailSMTPMessage.RCPT_DELIVERED)+"/"+temp.getRecipentCount()+
+                " failed="+temp.countRecipents(JMailSMTPMessage.RCPT_FAILED)+" retries="+temp.getRetryCount()+
+                ((temp.getRetryCount() == 0) ? "" : " next in "+Math.max(0, (temp.getNextAttempt()-now)/1000)+"s"));
+            }
             return;
         }
         else if(arg1.equals("USER")) {
@@ -208,6 +363,7 @@ public class JMailServer {
                 JMailUser temp=(JMailUser)enu.nextElement();
                 System.out.println(" o "+temp.getName()+": "+temp.getMessageCount()+" message(s)");
             }
+            System.out.println("USER: "+bodyStore.getBodyCount()+" message bodies stored, "+bodyStore.getReferenceCount()+" reference(s)");
             return;
         }
         else if(arg1.equals("RSET")) {
@@ -332,6 +488,24 @@ public class JMailServer {
         System.out.println("UNKNOWN: type HELP for help");
     }
     
+    /** This method prints a line for each live connection of a listener
+     * @param listener listener whose connections are printed
+     */
+    private static void printSessions(JMailServerThread listener) {
+        if(listener == null) {
+            return;
+        }
+        
+        long now=System.currentTimeMillis();
+        Iterator sessions=listener.getSessions();
+        while(sessions.hasNext()) {
+            JMailSessionInfo temp=(JMailSessionInfo) sessions.next();
+            System.out.println(" o #"+temp.getId()+" "+temp.getProtocol()+" "+temp.getPeer()+
+            " state="+temp.getStateName()+" in="+temp.getBytesIn()+" out="+temp.getBytesOut()+
+            " age="+((now-temp.getStartTime())/1000)+"s");
+        }
+    }
+    
     /** This method initilises the Server
      *  and adds some default users to the UserStore
      * @param args These are the args passed from the command-line
@@ -345,9 +519,20 @@ public class JMailServer {
             debugMode=true;
         }
         
-        // Get hostname/domain-name for server
+        // Load the config first, as it says how names are looked up
+        fileio=new JMailFileIO();
+        configModified=fileio.getConfigFile().lastModified();
+        fileio.loadConfigFile();
+        nameCache=new JMailNameCache(newResolver(), DNS_LOOKUP_THREADS);
+        
+        // Get hostname/domain-name for server; a resolver which does not
+        // answer in time is not waited for
         try {
-            myHostname=InetAddress.getLocalHost().getCanonicalHostName();
+            InetAddress local=InetAddress.getLocalHost();
+            myHostname=nameCache.getName(local, DNS_STARTUP_WAIT);
+            if(myHostname == null) {
+                myHostname=local.getHostName();
+            }
         }
         catch(UnknownHostException e) {
             System.err.println("SMTPConnect: Couldn't retrieve Hostname; Using localhost");
@@ -361,13 +546,22 @@ public class JMailServer {
         mySMTPQueueTimer=new Timer(true);    // New daemon timer
         mySMTPQueueTimer.schedule(new JMailSMTPQueueProcessTask(), 5, QUEUE_INTERVAL);
         
-        // Make the user store
+        // Make the user store; the users' messages point into the body store
+        bodyStore=new JMailBodyStore(fileio.getBodyDir());
         allUsers=new JMailUserStore();
         
-        // Load the config
-        fileio=new JMailFileIO();
-        fileio.loadConfigFile();
+        // The routes need the hostname
+        buildRoutingTable();
         fileio.loadUsers();
+        bodyStore.sweep();
+        
+        // Recover any messages which were not delivered last time
+        mySMTPQueue.openJournal(fileio.getQueueJournalFile(), QUEUE_JOURNAL_SYNC);
+        mySMTPQueue.startDelivery(DELIVERY_WORKERS, DELIVERY_MODE.equals("virtual"));
+        
+        // Start reaping idle connections
+        sessionReaper=new JMailSessionReaper();
+        sessionReaper.start();
         
         printDebug(getConfig());
     }
@@ -375,18 +569,101 @@ public class JMailServer {
     public static String getConfig() {
         String toRet="Current Config\n";
         toRet += " o HostName="+JMailServer.myHostname+"\n";
-        toRet += " o POP3 Clients="+((JMailServer.POP3Thread == null) ? "offline" : Integer.toString(JMailServer.POP3Thread.getClientCount()))+"\n";
-        toRet += " o SMTP Clients="+((JMailServer.SMTPThread == null) ? "offline" : Integer.toString(JMailServer.SMTPThread.getClientCount()))+"\n";
+        toRet += " o POP3 Clients="+((JMailServer.POP3Thread == null) ? "offline" : JMailServer.POP3Thread.getClientCount()+" (rejected "+JMailServer.POP3Thread.getRejectedCount()+")")+"\n";
+        toRet += " o SMTP Clients="+((JMailServer.SMTPThread == null) ? "offline" : JMailServer.SMTPThread.getClientCount()+" (rejected "+JMailServer.SMTPThread.getRejectedCount()+")")+"\n";
         toRet += " o POP3_PORT="+JMailServer.POP3_PORT+"\n";
         toRet += " o SMTP_PORT="+JMailServer.SMTP_PORT+"\n";
         toRet += " o QUEUE_INTERVAL="+JMailServer.QUEUE_INTERVAL+"\n";
         toRet += " o NETWORK_LOCAL_REGEX="+JMailServer.NETWORK_LOCAL_REGEX+"\n";
+        for(int i=0; i<JMailServer.ROUTES.size(); i++) {
+            String[] rule=(String[]) JMailServer.ROUTES.get(i);
+            toRet += " o "+rule[0]+"="+rule[1]+" "+rule[2]+"\n";
+        }
+        toRet += " o ROUTE_CACHE_SIZE="+JMailServer.ROUTE_CACHE_SIZE+"\n";
+        toRet += " o DNS_RESOLVER="+JMailServer.DNS_RESOLVER+"\n";
+        toRet += " o DNS_CACHE_TTL="+JMailServer.DNS_CACHE_TTL+((JMailServer.nameCache == null) ? "" : " ("+JMailServer.nameCache.getSize()+" cached, "+
+        JMailServer.nameCache.getHitCount()+" hit(s), "+JMailServer.nameCache.getMissCount()+" miss(es))")+"\n";
+        toRet += " o DNS_NEGATIVE_TTL="+JMailServer.DNS_NEGATIVE_TTL+"\n";
+        toRet += " o DNS_LOOKUP_THREADS="+JMailServer.DNS_LOOKUP_THREADS+"\n";
+        toRet += " o DNS_STARTUP_WAIT="+JMailServer.DNS_STARTUP_WAIT+"\n";
         toRet += " o SMTP_FORWARD_HOST="+JMailServer.SMTP_FORWARD_HOST+"\n";
-        toRet += " o SMTP_FORWARD_PORT="+JMailServer.SMTP_FORWARD_PORT;
+        toRet += " o SMTP_FORWARD_PORT="+JMailServer.SMTP_FORWARD_PORT+"\n";
+        toRet += " o LISTENER_MODE="+JMailServer.LISTENER_MODE+"\n";
+        toRet += " o NIO_LOOPS="+JMailServer.NIO_LOOPS+"\n";
+        toRet += " o POP3_MAX_CLIENTS="+JMailServer.POP3_MAX_CLIENTS+"\n";
+        toRet += " o SMTP_MAX_CLIENTS="+JMailServer.SMTP_MAX_CLIENTS+"\n";
+        toRet += " o Reaped Clients="+((JMailServer.sessionReaper == null) ? 0 : JMailServer.sessionReaper.getReapedCount())+"\n";
+        toRet += " o ACCEPT_BACKLOG="+JMailServer.ACCEPT_BACKLOG+"\n";
+        toRet += " o TIMEOUT_GREETING="+JMailServer.TIMEOUT_GREETING+"\n";
+        toRet += " o TIMEOUT_AUTH="+JMailServer.TIMEOUT_AUTH+"\n";
+        toRet += " o TIMEOUT_TRANSACTION="+JMailServer.TIMEOUT_TRANSACTION+"\n";
+        toRet += " o TIMEOUT_DATA="+JMailServer.TIMEOUT_DATA+"\n";
+        toRet += " o TIMEOUT_CONNECT="+JMailServer.TIMEOUT_CONNECT+"\n";
+        toRet += " o TIMEOUT_REMOTE_GREETING="+JMailServer.TIMEOUT_REMOTE_GREETING+"\n";
+        toRet += " o TIMEOUT_REMOTE_COMMAND="+JMailServer.TIMEOUT_REMOTE_COMMAND+"\n";
+        toRet += " o TIMEOUT_REMOTE_DATA="+JMailServer.TIMEOUT_REMOTE_DATA+"\n";
+        toRet += " o DATA_SPOOL_THRESHOLD="+JMailServer.DATA_SPOOL_THRESHOLD+"\n";
+        toRet += " o MAX_MESSAGE_SIZE="+JMailServer.MAX_MESSAGE_SIZE+"\n";
+        toRet += " o QUEUE_JOURNAL_SYNC="+JMailServer.QUEUE_JOURNAL_SYNC+"\n";
+        toRet += " o QUEUE_RETRY_MIN="+JMailServer.QUEUE_RETRY_MIN+"\n";
+        toRet += " o QUEUE_RETRY_MAX="+JMailServer.QUEUE_RETRY_MAX+"\n";
+        toRet += " o QUEUE_MAX_AGE="+JMailServer.QUEUE_MAX_AGE+"\n";
+        JMailDeliveryPool pool=(JMailServer.mySMTPQueue == null) ? null : JMailServer.mySMTPQueue.getPool();
+        toRet += " o DELIVERY_WORKERS="+JMailServer.DELIVERY_WORKERS+((pool == null) ? "" : " (in flight "+pool.getInFlight()+", waiting "+pool.getWaiting()+")")+"\n";
+        toRet += " o DELIVERY_MODE="+JMailServer.DELIVERY_MODE+"\n";
+        toRet += " o LOCAL_DELIVERY="+JMailServer.LOCAL_DELIVERY+"\n";
+        toRet += " o SMTP_POOL_SIZE="+JMailServer.SMTP_POOL_SIZE+"\n";
+        toRet += " o SMTP_POOL_IDLE="+JMailServer.SMTP_POOL_IDLE+"\n";
+        toRet += " o SMTP_POOL_CHECK="+JMailServer.SMTP_POOL_CHECK;
+        
+        return toRet;
+    }
+    
+    /** This method returns the Selector thread which should handle the next
+     *  connection. The threads are started the first time this is called.
+     * @return Selector thread to register the connection with
+     * @throws IOException if a Selector could not be opened
+     */
+    public static synchronized JMailNIOEventLoop getNIOLoop() throws IOException {
+        if(nioLoops == null) {
+            nioWorkers=newVirtualThreadExecutor("JMailNIOWorker");
+            JMailNIOEventLoop[] temp=new JMailNIOEventLoop[Math.max(1, NIO_LOOPS)];
+            for(int i=0; i<temp.length; i++) {
+                temp[i]=new JMailNIOEventLoop(i, nioWorkers);
+                temp[i].start();
+            }
+            nioLoops=temp;
+        }
         
+        JMailNIOEventLoop toRet=nioLoops[nextNIOLoop];
+        nextNIOLoop=(nextNIOLoop+1) % nioLoops.length;
         return toRet;
     }
     
+    /** This method returns an Executor which runs each task on its own virtual thread.
+     *  Virtual threads need a Java 21 JVM; on older JVMs a cached pool of daemon
+     *  Threads is returned instead.
+     * @param name name given to the threads of the fallback pool
+     * @return Executor to hand tasks to
+     */
+    public static ExecutorService newVirtualThreadExecutor(final String name) {
+        try {
+            java.lang.reflect.Method factory=Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+            return (ExecutorService) factory.invoke(null, new Object[0]);
+        }
+        catch(Exception e) {
+            System.err.println("Server: Virtual threads not available; using platform threads for "+name);
+        }
+        
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread temp=new Thread(task, name);
+                temp.setDaemon(true);
+                return temp;
+            }
+        });
+    }
+    
     /** This method prints out the [message],
      *  if the Server is in 'debugMode'
      * @param message the message to be printed
@@ -396,19 +673,334 @@ public class JMailServer {
             System.err.println(message);
         }
     }
+    
+    /** This method makes the resolver named by DNS_RESOLVER
+     * @return the resolver; the system's if DNS_RESOLVER is empty or unusable
+     */
+    private static JMailResolver newResolver() {
+        if(! DNS_RESOLVER.equals("")) {
+            try {
+                return (JMailResolver) Class.forName(DNS_RESOLVER).getDeclaredConstructor().newInstance();
+            }
+            catch(Exception e) {
+                System.err.println("Server: Can't use DNS_RESOLVER '"+DNS_RESOLVER+"' ("+e+"); using system resolver");
+            }
+        }
+        return new JMailSystemResolver();
+    }
+    
+    /** This method builds the routing table from the config: the server's
+     *  own hostname is local, then the ROUTES in order, then
+     *  NETWORK_LOCAL_REGEX is network-local
+     */
+    public static void buildRoutingTable() {
+        JMailRoutingTable table=new JMailRoutingTable(ROUTE_CACHE_SIZE);
+        table.addExact(myHostname, JMailRoutingTable.ROUTE_LOCAL);
+        
+        for(int i=0; i<ROUTES.size(); i++) {
+            String[] rule=(String[]) ROUTES.get(i);
+            int route=JMailRoutingTable.parseRoute(rule[2]);
+            
+            if(rule[0].equals("ROUTE_EXACT")) {
+                table.addExact(rule[1], route);
+            }
+            else if(rule[0].equals("ROUTE_SUFFIX")) {
+                table.addSuffix(rule[1], route);
+            }
+            else {
+                try {
+                    table.addRegex(rule[1], route);
+                }
+                catch(PatternSyntaxException e) {
+                    System.err.println("Server: Bad ROUTE_REGEX '"+rule[1]+"'; ignored");
+                }
+            }
+        }
+        
+        try {
+            table.addRegex(NETWORK_LOCAL_REGEX, JMailRoutingTable.ROUTE_NETWORK);
+        }
+        catch(PatternSyntaxException e) {
+            System.err.println("Server: Bad NETWORK_LOCAL_REGEX '"+NETWORK_LOCAL_REGEX+"'; ignored");
+        }
+        
+        routingTable=table;
+    }
+    
+    /** This method reads the config file again if it has changed since it
+     *  was last read, and rebuilds the routing table, so the cached routing
+     *  decisions are thrown away.  It is run with each sweep of the SMTPQueue.
+     */
+    public static void checkConfig() {
+        if(fileio == null || routingTable == null) {
+            // Not started yet
+            return;
+        }
+        
+        long modified=fileio.getConfigFile().lastModified();
+        if(modified == configModified) {
+            return;
+        }
+        
+        System.err.println("Server: Config file changed; reloading");
+        configModified=modified;
+        fileio.loadConfigFile();
+        buildRoutingTable();
+    }
+    
+    /** This method returns whether the Server is in 'debugMode', so callers
+     *  can skip building messages which would not be printed
+     * @return true if debug messages are printed
+     */
+    public static boolean isDebug() {
+        return debugMode;
+    }
+}
+
+/** This interface looks up the host name of an address.  JMailSystemResolver
+ *  asks the system's resolver; another class can be given with DNS_RESOLVER,
+ *  for instance a stand-in answering from a table for testing. */
+interface JMailResolver {
+    /** This method looks up the name of an address, and may take as long as
+     *  the lookup does
+     * @param addr the address
+     * @return the host name, or null if the address has none
+     */
+    public String getName(InetAddress addr);
+}
+
+/** This class looks names up with the system's resolver */
+class JMailSystemResolver implements JMailResolver {
+    public String getName(InetAddress addr) {
+        String name=addr.getCanonicalHostName();
+        
+        // The address itself comes back when there is no name
+        if(name.equals(addr.getHostAddress())) {
+            return null;
+        }
+        return name;
+    }
+}
+
+/** This class caches the host names of addresses, such as the clients
+ *  connecting to the SMTP server.  Lookups are done in the background, so
+ *  nothing waits on a slow resolver: a name which is not yet known is
+ *  simply not given, and the lookup is started for next time.
+ *  Names are kept for DNS_CACHE_TTL, and addresses with no name for
+ *  DNS_NEGATIVE_TTL, so bursts from one client only cost one lookup. */
+class JMailNameCache {
+    /** JMailNameEntrys, by address */
+    private ConcurrentHashMap names=new ConcurrentHashMap();
+    /** Threads doing the lookups */
+    private ExecutorService lookups=null;
+    private volatile JMailResolver myResolver=null;
+    /** Number of times a name was asked for and was in the cache, or not */
+    private AtomicLong hitCount=new AtomicLong(0);
+    private AtomicLong missCount=new AtomicLong(0);
+    
+    /** @param resolver resolver to look names up with
+     * @param threads number of lookups done at once
+     */
+    public JMailNameCache(JMailResolver resolver, int threads) {
+        this.myResolver=resolver;
+        this.lookups=Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread temp=new Thread(task, "JMailNameLookup");
+                temp.setDaemon(true);
+                return temp;
+            }
+        });
+    }
+    
+    /** This method changes the resolver used for lookups from now on
+     * @param resolver the resolver
+     */
+    public void setResolver(JMailResolver resolver) {
+        this.myResolver=resolver;
+    }
+    
+    /** This method starts looking up an address if it is not already known,
+     *  so that it is ready when it is asked for
+     * @param addr the address
+     */
+    public void prefetch(InetAddress addr) {
+        getEntry(addr, false);
+    }
+    
+    /** This method gets the name of an address, without waiting
+     * @param addr the address
+     * @return the name, or null if it is not known (yet)
+     */
+    public String getName(InetAddress addr) {
+        return getEntry(addr, true).getName();
+    }
+    
+    /** This method gets the name of an address, waiting for the lookup
+     *  if it has not finished
+     * @param addr the address
+     * @param wait longest time (millisecs) to wait
+     * @return the name, or null if it is not known in time
+     */
+    public String getName(InetAddress addr, long wait) {
+        JMailNameEntry entry=getEntry(addr, true);
+        entry.await(wait);
+        return entry.getName();
+    }
+    
+    /** This method finds the cache entry of an address, starting a lookup
+     *  if there is none or it has expired
+     * @param addr the address
+     * @param isCounted whether to count this in the hits and misses
+     * @return the entry, which may still be waiting for its lookup
+     */
+    private JMailNameEntry getEntry(final InetAddress addr, boolean isCounted) {
+        String key=addr.getHostAddress();
+        JMailNameEntry entry=(JMailNameEntry) names.get(key);
+        
+        if(entry != null && ! entry.isExpired(System.currentTimeMillis())) {
+            if(isCounted) {
+                hitCount.incrementAndGet();
+            }
+            return entry;
+        }
+        
+        // Only the caller which puts the new entry in does the lookup
+        final JMailNameEntry fresh=new JMailNameEntry();
+        boolean isMine=(entry == null) ? names.putIfAbsent(key, fresh) == null : names.replace(key, entry, fresh);
+        if(! isMine) {
+            return (JMailNameEntry) names.get(key);
+        }
+        
+        if(isCounted) {
+            missCount.incrementAndGet();
+        }
+        
+        lookups.execute(new Runnable() {
+            public void run() {
+                String name=null;
+                try {
+                    name=myResolver.getName(addr);
+                }
+                catch(RuntimeException e) {
+                    System.err.println("NameCache: Lookup of "+addr.getHostAddress()+" failed ("+e+")");
+                }
+                
+                long ttl=(name == null) ? JMailServer.DNS_NEGATIVE_TTL : JMailServer.DNS_CACHE_TTL;
+                fresh.done(name, System.currentTimeMillis()+ttl);
+            }
+        });
+        return fresh;
+    }
+    
+    /** This method throws away the expired entries.  It is run with each
+     *  sweep of the SMTPQueue */
+    public void sweep() {
+        long now=System.currentTimeMillis();
+        Iterator i=names.values().iterator();
+        while(i.hasNext()) {
+            if(((JMailNameEntry) i.next()).isExpired(now)) {
+                i.remove();
+            }
+        }
+    }
+    
+    public int getSize() {
+        return names.size();
+    }
+    
+    public long getHitCount() {
+        return hitCount.get();
+    }
+    
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
+
+/** This class is an entry of JMailNameCache */
+class JMailNameEntry {
+    /** A ReentrantLock rather than a monitor, so a session on a virtual
+     *  thread waiting for the lookup does not hold on to its carrier thread */
+    private final ReentrantLock myLock=new ReentrantLock();
+    /** Signalled when the lookup has finished */
+    private final Condition lookupDone=myLock.newCondition();
+    /** The name, null if there is none or the lookup has not finished */
+    private String myName=null;
+    /** Whether the lookup has finished */
+    private boolean isDone=false;
+    /** Time (millisecs) the entry expires; never while the lookup is running */
+    private long expires=Long.MAX_VALUE;
+    
+    public String getName() {
+        myLock.lock();
+        try {
+            return myName;
+        }
+        finally {
+            myLock.unlock();
+        }
+    }
+    
+    public boolean isExpired(long now) {
+        myLock.lock();
+        try {
+            return now > expires;
+        }
+        finally {
+            myLock.unlock();
+        }
+    }
+    
+    /** This method is called when the lookup has finished
+     * @param name the name, or null if there is none
+     * @param expires time (millisecs) the entry expires
+     */
+    public void done(String name, long expires) {
+        myLock.lock();
+        try {
+            this.myName=name;
+            this.expires=expires;
+            this.isDone=true;
+            lookupDone.signalAll();
+        }
+        finally {
+            myLock.unlock();
+        }
+    }
+    
+    /** This method waits for the lookup to finish
+     * @param wait longest time (millisecs) to wait
+     */
+    public void await(long wait) {
+        myLock.lock();
+        try {
+            long left=TimeUnit.MILLISECONDS.toNanos(wait);
+            while(! isDone && left > 0) {
+                try {
+                    left=lookupDone.awaitNanos(left);
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        finally {
+            myLock.unlock();
+        }
+    }
 }
 
 /** This TimerTask processes the SMTPQueue every QUEUE_INTERVAL millisecs */
 class JMailSMTPQueueProcessTask extends TimerTask {
-    /** This method calls the processQueue method of the global SMTPQueue */
+    /** This method calls the processQueue method of the global SMTPQueue.
+     *  Delivery itself is done by the delivery workers, so this only
+     *  takes as long as handing the messages over */
     public void run() {
-        if(JMailServer.isProcessingQueue) {
-            return;
+        JMailServer.checkConfig();
+        if(JMailServer.nameCache != null) {
+            JMailServer.nameCache.sweep();
         }
-        
-        JMailServer.isProcessingQueue=true;
         JMailServer.mySMTPQueue.processQueue();
-        JMailServer.isProcessingQueue=false;
     }
 }
 
@@ -429,10 +1021,17 @@ class JMailFileIO {
         }
     }
     
+    public File getConfigFile() {
+        return new File(homeDir+"/"+JMailServer.CONFIG_FILE);
+    }
+    
     public void loadConfigFile() {
         FileReader fileR;
         LineNumberReader reader;
         
+        // Read afresh each time the file is loaded
+        JMailServer.ROUTES.clear();
+        
         try {
             fileR=new FileReader(homeDir+"/"+JMailServer.CONFIG_FILE);
         }
@@ -563,6 +1162,65 @@ class JMailFileIO {
             JMailServer.NETWORK_LOCAL_REGEX=val;
             return;
         }
+        else if(var.equals("DNS_RESOLVER")) {
+            JMailServer.DNS_RESOLVER=val.trim();
+            return;
+        }
+        else if(var.startsWith("DNS_")) {
+            int temp=-1;
+            try {
+                temp=Integer.parseInt(val);
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+            
+            if(var.equals("DNS_LOOKUP_THREADS")) {
+                if(temp >= 1) {
+                    JMailServer.DNS_LOOKUP_THREADS=temp;
+                }
+                return;
+            }
+            
+            if(temp < 0) {
+                return;
+            }
+            
+            if(var.equals("DNS_CACHE_TTL")) {
+                JMailServer.DNS_CACHE_TTL=temp;
+            }
+            else if(var.equals("DNS_NEGATIVE_TTL")) {
+                JMailServer.DNS_NEGATIVE_TTL=temp;
+            }
+            else if(var.equals("DNS_STARTUP_WAIT")) {
+                JMailServer.DNS_STARTUP_WAIT=temp;
+            }
+            return;
+        }
+        else if(var.equals("ROUTE_CACHE_SIZE")) {
+            try {
+                int temp=Integer.parseInt(val);
+                if(temp < 1) {
+                    return;
+                }
+                JMailServer.ROUTE_CACHE_SIZE=temp;
+                return;
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+        }
+        else if(var.equals("ROUTE_EXACT") || var.equals("ROUTE_SUFFIX") || var.equals("ROUTE_REGEX")) {
+            String[] rule=val.trim().split("\\s+");
+            if(rule.length != 2 || JMailRoutingTable.parseRoute(rule[1]) == 0) {
+                // Bad arg
+                return;
+            }
+            JMailServer.ROUTES.add(new String[] {var, rule[0], rule[1]});
+            return;
+        }
         else if(var.equals("SMTP_FORWARD_HOST")) {
             JMailServer.SMTP_FORWARD_HOST=val;
             return ;
@@ -577,31 +1235,303 @@ class JMailFileIO {
                 return;
             }
         }
-    }
-    
-    private boolean loadUser(String username) {
-        if(username.startsWith("#")) {
-            // Comment
-            return false;
+        else if(var.equals("LISTENER_MODE")) {
+            if(val.equals("thread") || val.equals("nio") || val.equals("virtual")) {
+                JMailServer.LISTENER_MODE=val;
+            }
+            return;
         }
-        
-        try {
-            FileInputStream fis = new FileInputStream(homeDir+"/"+username+JMailServer.USER_FILEEXT);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            
-            JMailUser temp = (JMailUser) ois.readObject();
-            JMailServer.allUsers.addUserObject(temp);
-            JMailServer.printDebug("File I/O: loadUser success ["+username+"]");
-            
-            ois.close();
-            fis.close();
+        else if(var.equals("POP3_MAX_CLIENTS")) {
+            try {
+                int temp=Integer.parseInt(val);
+                if(temp < 1) {
+                    return;
+                }
+                JMailServer.POP3_MAX_CLIENTS=temp;
+                return;
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
         }
-        catch(Exception e) {
-            System.err.println("File I/O: loadUser fail ["+username+"]");
-            return false;
+        else if(var.equals("SMTP_MAX_CLIENTS")) {
+            try {
+                int temp=Integer.parseInt(val);
+                if(temp < 1) {
+                    return;
+                }
+                JMailServer.SMTP_MAX_CLIENTS=temp;
+                return;
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
         }
-        return true;
-    }
+        else if(var.equals("ACCEPT_BACKLOG")) {
+            try {
+                int temp=Integer.parseInt(val);
+                if(temp < 1) {
+                    return;
+                }
+                JMailServer.ACCEPT_BACKLOG=temp;
+                return;
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+        }
+        else if(var.startsWith("TIMEOUT_")) {
+            int temp=-1;
+            try {
+                temp=Integer.parseInt(val);
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+            
+            if(temp < 1000) {
+                return;
+            }
+            
+            if(var.equals("TIMEOUT_GREETING")) {
+                JMailServer.TIMEOUT_GREETING=temp;
+            }
+            else if(var.equals("TIMEOUT_AUTH")) {
+                JMailServer.TIMEOUT_AUTH=temp;
+            }
+            else if(var.equals("TIMEOUT_TRANSACTION")) {
+                JMailServer.TIMEOUT_TRANSACTION=temp;
+            }
+            else if(var.equals("TIMEOUT_DATA")) {
+                JMailServer.TIMEOUT_DATA=temp;
+            }
+            else if(var.equals("TIMEOUT_CONNECT")) {
+                JMailServer.TIMEOUT_CONNECT=temp;
+            }
+            else if(var.equals("TIMEOUT_REMOTE_GREETING")) {
+                JMailServer.TIMEOUT_REMOTE_GREETING=temp;
+            }
+            else if(var.equals("TIMEOUT_REMOTE_COMMAND")) {
+                JMailServer.TIMEOUT_REMOTE_COMMAND=temp;
+            }
+            else if(var.equals("TIMEOUT_REMOTE_DATA")) {
+                JMailServer.TIMEOUT_REMOTE_DATA=temp;
+            }
+            return;
+        }
+        else if(var.equals("DATA_SPOOL_THRESHOLD")) {
+            try {
+                int temp=Integer.parseInt(val);
+                if(temp < JMailMessageBuffer.CHUNK_SIZE) {
+                    return;
+                }
+                JMailServer.DATA_SPOOL_THRESHOLD=temp;
+                return;
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+        }
+        else if(var.startsWith("QUEUE_RETRY_")) {
+            int temp=-1;
+            try {
+                temp=Integer.parseInt(val);
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+            
+            if(temp < JMailServer.QUEUE_INTERVAL_MIN) {
+                return;
+            }
+            
+            if(var.equals("QUEUE_RETRY_MIN")) {
+                JMailServer.QUEUE_RETRY_MIN=temp;
+            }
+            else if(var.equals("QUEUE_RETRY_MAX")) {
+                JMailServer.QUEUE_RETRY_MAX=temp;
+            }
+            return;
+        }
+        else if(var.equals("QUEUE_MAX_AGE")) {
+            try {
+                long temp=Long.parseLong(val);
+                if(temp < JMailServer.QUEUE_INTERVAL_MIN) {
+                    return;
+                }
+                JMailServer.QUEUE_MAX_AGE=temp;
+                return;
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+        }
+        else if(var.equals("DELIVERY_WORKERS")) {
+            try {
+                int temp=Integer.parseInt(val);
+                if(temp < 1) {
+                    return;
+                }
+                JMailServer.DELIVERY_WORKERS=temp;
+                return;
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+        }
+        else if(var.equals("SMTP_POOL_SIZE")) {
+            try {
+                int temp=Integer.parseInt(val);
+                if(temp < 0) {
+                    return;
+                }
+                JMailServer.SMTP_POOL_SIZE=temp;
+                return;
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+        }
+        else if(var.startsWith("SMTP_POOL_")) {
+            int temp=-1;
+            try {
+                temp=Integer.parseInt(val);
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+            
+            if(temp < 1000) {
+                return;
+            }
+            
+            if(var.equals("SMTP_POOL_IDLE")) {
+                JMailServer.SMTP_POOL_IDLE=temp;
+            }
+            else if(var.equals("SMTP_POOL_CHECK")) {
+                JMailServer.SMTP_POOL_CHECK=temp;
+            }
+            return;
+        }
+        else if(var.equals("DELIVERY_MODE")) {
+            if(val.equals("thread") || val.equals("virtual")) {
+                JMailServer.DELIVERY_MODE=val;
+            }
+            return;
+        }
+        else if(var.equals("LOCAL_DELIVERY")) {
+            if(val.equals("inline") || val.equals("queue")) {
+                JMailServer.LOCAL_DELIVERY=val;
+            }
+            return;
+        }
+        else if(var.equals("QUEUE_JOURNAL_SYNC")) {
+            if(val.equals("true") || val.equals("false")) {
+                JMailServer.QUEUE_JOURNAL_SYNC=val.equals("true");
+            }
+            return;
+        }
+        else if(var.equals("MAX_MESSAGE_SIZE")) {
+            try {
+                int temp=Integer.parseInt(val);
+                if(temp < 0) {
+                    return;
+                }
+                JMailServer.MAX_MESSAGE_SIZE=temp;
+                return;
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+        }
+        else if(var.equals("NIO_LOOPS")) {
+            try {
+                int temp=Integer.parseInt(val);
+                if(temp < 1) {
+                    return;
+                }
+                JMailServer.NIO_LOOPS=temp;
+                return;
+            }
+            catch(Exception e) {
+                // Bad arg
+                return;
+            }
+        }
+    }
+    
+    /** This method returns the file the SMTPQueue journal is kept in
+     * @return the journal file
+     */
+    public File getQueueJournalFile() {
+        return new File(homeDir+"/"+JMailServer.QUEUE_JOURNAL_FILE);
+    }
+    
+    /** This method returns the file the log of a user's mailbox is kept in
+     * @param username name of the user
+     * @return the mailbox log file
+     */
+    public File getMailboxFile(String username) {
+        return new File(homeDir+"/"+username+JMailServer.MAILBOX_FILEEXT);
+    }
+    
+    /** This method returns the directory in which the content of the messages
+     *  in the mailboxes is kept
+     * @return the body directory, which is created if needed
+     */
+    public File getBodyDir() {
+        File dir=new File(homeDir+"/bodies");
+        if(! dir.isDirectory()) {
+            dir.mkdir();
+        }
+        return dir;
+    }
+    
+    /** This method returns the directory in which large incoming messages are spooled
+     * @return the spool directory, which is created if needed
+     */
+    public File getSpoolDir() {
+        File dir=new File(homeDir+"/spool");
+        if(! dir.isDirectory()) {
+            dir.mkdir();
+        }
+        return dir;
+    }
+    
+    private boolean loadUser(String username) {
+        if(username.startsWith("#")) {
+            // Comment
+            return false;
+        }
+        
+        try {
+            FileInputStream fis = new FileInputStream(homeDir+"/"+username+JMailServer.USER_FILEEXT);
+            ObjectInputStream ois = new ObjectInputStream(fis);
+            
+            JMailUser temp = (JMailUser) ois.readObject();
+            JMailServer.allUsers.addUserObject(temp);
+            JMailServer.printDebug("File I/O: loadUser success ["+username+"]");
+            
+            ois.close();
+            fis.close();
+        }
+        catch(Exception e) {
+            System.err.println("File I/O: loadUser fail ["+username+"]");
+            return false;
+        }
+        return true;
+    }
     
     public boolean saveUser(String username) {
         JMailUser myUser=null;
@@ -695,8 +1625,16 @@ class JMailMessageNonExistantException extends Exception {
 class JMailServerThread extends Thread {
     /** Port which the serer will listen on */
     private int myPort=-1;
-    private int clientCount=0;
-    private Vector children=new Vector();
+    /** Registry of all the live connections on this listener */
+    private JMailSessionRegistry sessions=new JMailSessionRegistry();
+    /** Number of connections turned away because the listener was full */
+    private AtomicInteger rejectedCount=new AtomicInteger();
+    /** Maximum number of concurrent connections on this listener */
+    private int maxClients=0;
+    /** Reply written to connections which are turned away.
+     * It is built once so that rejecting a connection allocates nothing
+     * relating to the protocol */
+    private byte[] rejectReply=null;
     
     /** Instantiates a JMailServerThread object
      * @param listenPort port to listen for connections on using a ServerSocket
@@ -707,28 +1645,64 @@ class JMailServerThread extends Thread {
     }
     
     public int getClientCount() {
-        return clientCount;
+        return sessions.getCount();
     }
     
-    public void decrecmentClientCount(Object obj) throws JMailThreadAccessDeniedException {
-        if(children.contains(obj)) {
-            clientCount--;
-            children.remove(obj);
-            return;
+    public Iterator getSessions() {
+        return sessions.getSessions();
+    }
+    
+    public int getRejectedCount() {
+        return rejectedCount.get();
+    }
+    
+    /** This method sets up the connection limit and the rejection reply
+     *  for the protocol served on this port */
+    private void setupAdmission() {
+        if(myPort == JMailServer.POP3_PORT) {
+            maxClients=JMailServer.POP3_MAX_CLIENTS;
+            rejectReply="-ERR Too many connections; try again later\r\n".getBytes();
         }
-        
-        // Object is not allowed
-        throw new JMailThreadAccessDeniedException("ServerThread: Invalid access");
+        else {
+            maxClients=JMailServer.SMTP_MAX_CLIENTS;
+            rejectReply=("421 "+JMailServer.myHostname+" Too many connections; try again later\r\n").getBytes();
+        }
+    }
+    
+    /** This method checks whether another connection can be accepted
+     * @return true if the connection should be handled<br>
+     * false if it should be rejected
+     */
+    private boolean admitClient() {
+        if(sessions.getCount() < maxClients) {
+            return true;
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+    
+    /** This method is called by a connection handler when its connection closes
+     * @param session the session given to the handler when it was accepted
+     * @throws JMailThreadAccessDeniedException if the session is not live on this listener
+     */
+    public void removeSession(JMailSessionInfo session) throws JMailThreadAccessDeniedException {
+        sessions.deregister(session);
     }
     
     /** This method is run when the Thread is started<br>
      * It start a ServerSocket and accepts connections
      */
     public void run() {
+        if(JMailServer.LISTENER_MODE.equals("nio")) {
+            runNonBlocking();
+            return;
+        }
+        
         ServerSocket serverSocket=null;
+        setupAdmission();
         
         try {
-            serverSocket=new ServerSocket(myPort);
+            serverSocket=new ServerSocket(myPort, JMailServer.ACCEPT_BACKLOG);
         }
         catch(IOException e) {
             System.err.println("ServerThread("+myPort+"): Could not listen");
@@ -736,28 +1710,59 @@ class JMailServerThread extends Thread {
         }
         System.err.println("ServerThread("+myPort+"): Listening");
         
+        // In virtual mode the handler Threads are only used as Runnables
+        // and are run on virtual threads rather than being started
+        ExecutorService executor=null;
+        if(JMailServer.LISTENER_MODE.equals("virtual")) {
+            executor=JMailServer.newVirtualThreadExecutor("JMailServerThread");
+        }
+        
         boolean keepSockets=true;
         
         // Infinite loop
         while(keepSockets) {
             try {
+                Socket socket=serverSocket.accept();
+                
+                if(! admitClient()) {
+                    // Listener full; turn the connection away straight away
+                    try {
+                        socket.getOutputStream().write(rejectReply);
+                    }
+                    finally {
+                        socket.close();
+                    }
+                    continue;
+                }
+                
                 if(myPort == JMailServer.POP3_PORT) {
-                    JMailServerPOP3Thread temp=new JMailServerPOP3Thread(serverSocket.accept(), this);
-                    children.add(temp);
-                    temp.start();
+                    JMailServerPOP3Thread temp=new JMailServerPOP3Thread(socket, this, sessions.register("POP3", socket));
+                    if(executor != null) {
+                        executor.execute(temp);
+                    }
+                    else {
+                        temp.start();
+                    }
                 }
                 else if(myPort == JMailServer.SMTP_PORT) {
-                    JMailServerSMTPThread temp=new JMailServerSMTPThread(serverSocket.accept(), this);
-                    children.add(temp);
-                    temp.start();
+                    JMailServerSMTPThread temp=new JMailServerSMTPThread(socket, this, sessions.register("SMTP", socket));
+                    if(executor != null) {
+                        executor.execute(temp);
+                    }
+                    else {
+                        temp.start();
+                    }
                 }
-                clientCount++;
             }
             catch(IOException e) {
                 System.err.println("ServerThread("+myPort+"): Failed to accept connection");
             }
         }
         
+        if(executor != null) {
+            executor.shutdown();
+        }
+        
         try {
             serverSocket.close();
         }
@@ -766,1404 +1771,6778 @@ class JMailServerThread extends Thread {
         }
         System.err.println("ServerThread("+myPort+"): Shutting down server");
     }
-}
-
-/** This Thread is spawned when the server accepts a connection on POP3_PORT.
- *  It handles a single POP3 connection */
-class JMailServerPOP3Thread extends Thread {
-    /** Socket relating to the Connection */
-    private Socket mySocket=null;
-    private JMailServerThread myParent=null;
-    
-    public JMailServerPOP3Thread(Socket socket, JMailServerThread parent) {
-        super("JMailServerThread");
-        this.mySocket=socket;
-        this.myParent=parent;
-    }
     
-    public void run() {
-        PrintWriter out=null;
-        BufferedReader in=null;
-        
-        System.err.println("ServerPOP3: Accept succeeded to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
+    /** This method accepts connections on a ServerSocketChannel and hands
+     *  each one to a Selector thread instead of spawning a Thread for it
+     */
+    private void runNonBlocking() {
+        ServerSocketChannel serverChannel=null;
+        setupAdmission();
+        ByteBuffer rejectBuffer=ByteBuffer.wrap(rejectReply);
         
         try {
-            out=new PrintWriter(mySocket.getOutputStream(), true);
-            in=new BufferedReader(new InputStreamReader(mySocket.getInputStream()));
+            serverChannel=ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(myPort), JMailServer.ACCEPT_BACKLOG);
         }
         catch(IOException e) {
-            System.err.println("ServerPOP3: Failed to setup Writer/Reader");
+            System.err.println("ServerThread("+myPort+"): Could not listen");
             return;
         }
+        System.err.println("ServerThread("+myPort+"): Listening (nio)");
         
-        String inputLine=null, outputLine=null;
-        
-        JMailPOP3Connection serverConnection=new JMailPOP3Connection(mySocket);
-        
-        boolean cleanShutdown=false;
-        String hostString="ServerPOP3 ["+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort()+"] ";
-        
-        outputLine=serverConnection.processInput(null);
-        JMailServer.printDebug(hostString+"OUT<< "+outputLine);
-        out.println(outputLine);
+        boolean keepSockets=true;
+        boolean isPOP3=(myPort == JMailServer.POP3_PORT);
         
-        try {
-            while((inputLine=in.readLine()) != null) {
-                JMailServer.printDebug(hostString+" IN>> "+inputLine);
-                outputLine=serverConnection.processInput(inputLine);
-                JMailServer.printDebug(hostString+"OUT<< "+outputLine);
-                out.println(outputLine);
+        // Infinite loop
+        while(keepSockets) {
+            try {
+                SocketChannel channel=serverChannel.accept();
                 
-                if(serverConnection.getCurrState() == JMailPOP3Connection.STATE_END) {
-                    cleanShutdown=true;
-                    break;
+                if(! admitClient()) {
+                    // Listener full; turn the connection away straight away
+                    try {
+                        rejectBuffer.rewind();
+                        channel.write(rejectBuffer);
+                    }
+                    finally {
+                        channel.close();
+                    }
+                    continue;
                 }
+                
+                JMailSessionInfo info=sessions.register(isPOP3 ? "POP3" : "SMTP", channel.socket());
+                JMailNIOSession temp=new JMailNIOSession(channel, this, isPOP3, info);
+                JMailServer.getNIOLoop().register(temp);
+            }
+            catch(IOException e) {
+                System.err.println("ServerThread("+myPort+"): Failed to accept connection");
             }
-        }
-        catch(IOException e) {
-            System.err.println("ServerPOP3: Failed to read/write to client");
-        }
-        
-        if(! cleanShutdown) {
-            // Clean up for terminated connections
-            try {
-                serverConnection.resetAllMessages();
-            }
-            catch(Exception e) {
-                // This either means no user was logged on or connection was
-                System.err.println("ServerPOP3: could not resetAllMessages()");
-            }
         }
         
         try {
-            out.close();
-            in.close();
-            mySocket.close();
+            serverChannel.close();
         }
         catch(IOException e) {
-            System.err.println("ServerPOP3: Failed to close client connection");
+            System.err.println("ServerThread("+myPort+"): Failed to close Server socket");
         }
-        
+        System.err.println("ServerThread("+myPort+"): Shutting down server");
+    }
+}
+
+/** This Thread owns a Selector and drives many POP3/SMTP connections,
+ *  calling processInput as complete lines arrive on each of them */
+class JMailNIOEventLoop extends Thread {
+    /** Selector which all of this thread's connections are registered with */
+    private Selector mySelector=null;
+    /** Vector of JMailNIOSessions waiting to be registered with the Selector */
+    private Vector pending=new Vector();
+    /** Vector of JMailNIOSessions waiting to be closed */
+    private Vector closing=new Vector();
+    /** Vector of JMailNIOSessions whose message has been queued by a worker */
+    private Vector queued=new Vector();
+    /** Threads which do the work the Selector thread must not wait for */
+    private ExecutorService myWorkers=null;
+    
+    public JMailNIOEventLoop(int number, ExecutorService workers) throws IOException {
+        super("JMailNIOEventLoop-"+number);
+        setDaemon(true);
+        this.mySelector=Selector.open();
+        this.myWorkers=workers;
+    }
+    
+    /** This method queues a new connection for this thread.
+     *  It may be called from any thread.
+     * @param session the connection to drive
+     */
+    public void register(JMailNIOSession session) {
+        session.setLoop(this);
+        pending.add(session);
+        mySelector.wakeup();
+    }
+    
+    /** This method asks for a connection to be closed by this thread.
+     *  It may be called from any thread.
+     * @param session the connection to close
+     */
+    public void requestClose(JMailNIOSession session) {
+        closing.add(session);
+        mySelector.wakeup();
+    }
+    
+    /** This method runs [task] on a worker thread
+     * @param task work which may block
+     */
+    public void execute(Runnable task) {
+        myWorkers.execute(task);
+    }
+    
+    /** This method tells this thread that a worker has queued a connection's
+     *  message, so its reply can be sent.  It may be called from any thread.
+     * @param session the connection
+     */
+    public void requestReply(JMailNIOSession session) {
+        queued.add(session);
+        mySelector.wakeup();
+    }
+    
+    public void run() {
+        while(true) {
+            try {
+                mySelector.select();
+            }
+            catch(IOException e) {
+                System.err.println("NIOEventLoop: Select failed");
+                continue;
+            }
+            
+            // Take on any newly accepted connections
+            while(! pending.isEmpty()) {
+                JMailNIOSession session=(JMailNIOSession) pending.remove(0);
+                try {
+                    session.attach(mySelector);
+                }
+                catch(RuntimeException e) {
+                    closeFailed(session, e);
+                }
+            }
+            
+            // Send the replies to messages the workers have queued
+            while(! queued.isEmpty()) {
+                JMailNIOSession session=(JMailNIOSession) queued.remove(0);
+                try {
+                    session.endQueue();
+                }
+                catch(RuntimeException e) {
+                    closeFailed(session, e);
+                }
+            }
+            
+            // Close any connections which have been reaped
+            while(! closing.isEmpty()) {
+                JMailNIOSession session=(JMailNIOSession) closing.remove(0);
+                try {
+                    session.close();
+                }
+                catch(RuntimeException e) {
+                    System.err.println("NIOEventLoop: Failed to close connection ("+e+")");
+                }
+            }
+            
+            Iterator keys=mySelector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key=(SelectionKey) keys.next();
+                keys.remove();
+                
+                // A connection which fails is closed, rather than the
+                // failure stopping every connection on this thread
+                JMailNIOSession session=(JMailNIOSession) key.attachment();
+                try {
+                    if(key.isValid() && key.isReadable()) {
+                        session.handleRead();
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        session.handleWrite();
+                    }
+                }
+                catch(RuntimeException e) {
+                    closeFailed(session, e);
+                }
+            }
+        }
+    }
+    
+    /** This method closes a connection which threw an exception
+     * @param session the connection
+     * @param e what it threw
+     */
+    private void closeFailed(JMailNIOSession session, RuntimeException e) {
+        System.err.println("NIOEventLoop: Closing connection after error ("+e+")");
         try {
-            myParent.decrecmentClientCount(this);
+            session.close();
         }
-        catch(JMailThreadAccessDeniedException e) {
-            System.err.println("ServerPOP3: Not allowed to decrement ServerThread count");
+        catch(RuntimeException f) {
+            System.err.println("NIOEventLoop: Failed to close connection ("+f+")");
         }
-        
-        System.err.println("ServerPOP3: Connection closed to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
     }
 }
 
-/** This Thread is spawned when the server accepts a connection on SMTP_PORT.
- *  It handles a single SMTP connection */
-class JMailServerSMTPThread extends Thread {
-    /** Socket relating to the Connection */
-    private Socket mySocket=null;
+/** This is the non-blocking equivalent of JMailServerPOP3Thread and
+ *  JMailServerSMTPThread. It splits the bytes read from a SocketChannel into lines
+ *  and buffers the replies until the channel can take them */
+class JMailNIOSession {
+    /** Channel relating to the Connection */
+    private SocketChannel myChannel=null;
+    private SelectionKey myKey=null;
     private JMailServerThread myParent=null;
+    /** Whether this is a POP3 connection (otherwise SMTP) */
+    private boolean isPOP3=false;
+    private JMailPOP3Connection pop3Connection=null;
+    private JMailSMTPConnection smtpConnection=null;
     
-    public JMailServerSMTPThread(Socket socket, JMailServerThread parent) {
-        super("JMailServerThread");
-        this.mySocket=socket;
+    /** Bytes read from the channel but not yet looked at */
+    private ByteBuffer readBuffer=ByteBuffer.allocate(4096);
+    /** The line currently being collected; reused */
+    private byte[] line=new byte[JMailLineReader.MAX_LINE_LENGTH];
+    private int lineLength=0;
+    /** Replies waiting to be written */
+    private ByteArrayOutputStream outBuffer=new ByteArrayOutputStream(128);
+    /** Replies currently being written */
+    private ByteBuffer writeBuffer=null;
+    
+    /** Number of bytes of the current BDAT chunk still to be received */
+    private long chunkRemaining=0;
+    /** Number of bytes of a refused BDAT chunk still to be thrown away */
+    private long discardRemaining=0;
+    /** Whether the connection should be closed once all replies are written */
+    private boolean closeAfterWrite=false;
+    /** Whether the client ended the connection with QUIT */
+    private boolean cleanShutdown=false;
+    /** Whether a worker is queueing the message received; nothing more is
+     *  read from the client until its reply is sent */
+    private boolean isQueueing=false;
+    /** Reply to the message queued by the worker */
+    private volatile String queuedReply=null;
+    private boolean isClosed=false;
+    private String hostString=null;
+    private String peerString=null;
+    /** Details of this connection held in the listener's registry */
+    private JMailSessionInfo mySession=null;
+    /** Selector thread driving this connection */
+    private JMailNIOEventLoop myLoop=null;
+    
+    public JMailNIOSession(SocketChannel channel, JMailServerThread parent, boolean isPOP3, JMailSessionInfo session) {
+        this.myChannel=channel;
         this.myParent=parent;
+        this.isPOP3=isPOP3;
+        this.mySession=session;
+        session.setNIOSession(this);
+        
+        Socket socket=channel.socket();
+        this.peerString=socket.getInetAddress().getHostAddress()+":"+socket.getPort();
+        
+        if(isPOP3) {
+            pop3Connection=new JMailPOP3Connection(socket);
+            hostString="ServerPOP3 ["+peerString+"] ";
+        }
+        else {
+            smtpConnection=new JMailSMTPConnection(socket);
+            smtpConnection.setDeferQueue(true);
+            hostString="ServerSMTP: ["+peerString+"] ";
+        }
     }
     
-    public void run() {
-        PrintWriter out=null;
-        LineNumberReader in=null;
-        
-        System.err.println("ServerSMTP: Accept succeeded to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
+    /** This method is called by the Selector thread to register the
+     *  connection with its Selector and send the greeting
+     * @param selector Selector of the calling thread
+     */
+    public void attach(Selector selector) {
+        System.err.println((isPOP3 ? "ServerPOP3" : "ServerSMTP")+": Accept succeeded to "+peerString);
         
         try {
-            out=new PrintWriter(mySocket.getOutputStream(), true);
-            in=new LineNumberReader(new InputStreamReader(mySocket.getInputStream()));
+            myChannel.configureBlocking(false);
+            myKey=myChannel.register(selector, SelectionKey.OP_READ, this);
         }
         catch(IOException e) {
-            System.err.println("ServerSMTP: Failed to setup Writer/Reader");
+            System.err.println((isPOP3 ? "ServerPOP3" : "ServerSMTP")+": Failed to register with Selector");
+            close();
             return;
         }
         
-        String inputLine=null, outputLine=null;
-        
-        JMailSMTPConnection serverConnection=new JMailSMTPConnection(mySocket);
-        
-        String hostString="ServerSMTP: ["+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort()+"] ";
-        
-        outputLine=serverConnection.processInput(null);
-        JMailServer.printDebug(hostString+"OUT<< "+outputLine);
-        out.println(outputLine);
+        processLine(null, 0);
+        flush();
+    }
+    
+    /** This method is called when the channel has bytes to be read */
+    public void handleRead() {
+        int count=-1;
         
         try {
-            while((inputLine=in.readLine()) != null) {
-                JMailServer.printDebug(hostString+" IN>> "+inputLine);
-                outputLine=serverConnection.processInput(inputLine);
-                JMailServer.printDebug(hostString+"OUT<< "+outputLine);
-                if(! (serverConnection.getCurrState() == JMailSMTPConnection.STATE_DATA && outputLine == null)) {
-                    out.println(outputLine);
-                }
-                
-                if(serverConnection.getCurrState() == JMailSMTPConnection.STATE_END) {
-                    break;
-                }
-            }
+            count=myChannel.read(readBuffer);
         }
         catch(IOException e) {
-            System.err.println("ServerSMTP: Failed to read/write to client");
+            System.err.println((isPOP3 ? "ServerPOP3" : "ServerSMTP")+": Failed to read/write to client");
         }
         
-        try {
-            out.close();
-            in.close();
-            mySocket.close();
-        }
-        catch(IOException e) {
-            System.err.println("ServerSMTP: Failed to close client connection");
+        if(count == -1) {
+            close();
+            return;
         }
+        mySession.addBytesIn(count);
         
-        try {
-            myParent.decrecmentClientCount(this);
-        }
-        catch(JMailThreadAccessDeniedException e) {
-            System.err.println("ServerSMTP: Not allowed to decrement ServerThread count");
+        processBuffer();
+    }
+    
+    /** This method works through the bytes read, until they run out or
+     *  the connection stops taking input, and keeps any left over */
+    private void processBuffer() {
+        readBuffer.flip();
+        while(readBuffer.hasRemaining() && ! closeAfterWrite && ! isQueueing) {
+            if(discardRemaining > 0) {
+                // Refused BDAT: skip over the chunk
+                int length=(int) Math.min(discardRemaining, readBuffer.remaining());
+                readBuffer.position(readBuffer.position()+length);
+                discardRemaining-=length;
+                continue;
+            }
+            
+            if(chunkRemaining > 0) {
+                // BDAT: copy the chunk straight into the message
+                int length=(int) Math.min(chunkRemaining, readBuffer.remaining());
+                smtpConnection.getChunkBuffer().write(readBuffer.array(), readBuffer.position(), length);
+                readBuffer.position(readBuffer.position()+length);
+                chunkRemaining-=length;
+                
+                if(chunkRemaining == 0) {
+                    endChunk();
+                }
+                continue;
+            }
+            
+            byte b=readBuffer.get();
+            if(b == '\n') {
+                int length=lineLength;
+                if(length > 0 && line[length-1] == '\r') {
+                    length--;
+                }
+                lineLength=0;
+                processLine(line, length);
+            }
+            else {
+                line[lineLength++]=b;
+                if(lineLength == line.length) {
+                    // Too long to collect whole: hand on what there is so far,
+                    // holding back a CR which may start the line ending
+                    boolean endsCR=(b == '\r');
+                    processPartialLine(line, endsCR ? lineLength-1 : lineLength);
+                    lineLength=0;
+                    if(endsCR) {
+                        line[lineLength++]='\r';
+                    }
+                }
+            }
         }
+        readBuffer.compact();
         
-        System.err.println("ServerSMTP: Connection closed to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
+        flush();
     }
-}
-
-/** This class is responsible for storing and delivering mail messages which
- *  are received on SMTP_PORT */
-class JMailSMTPQueue {
-    /** Vector of SMTP messages waiting to be dequeued */
-    private Vector myQueue=null;
     
-    public JMailSMTPQueue() {
-        this.myQueue=new Vector();
+    /** This method is called when the channel can take more of the replies */
+    public void handleWrite() {
+        flush();
     }
     
-    /** This method adds a message to the SMTPQueue which will be forwarded to the correct location
-     * @param clientName name of the Client which the SMTPMessage was received from
-     * @param clientIP InetAddress of the
-     * @param sender the email address of the sender
-     * @param recipents Vector of email address to send the message to
-     * @param body body of the SMTPMessage
-     * @return true if successful<br>
-     * false otherwise
-     */
-    public boolean addMessage(String HELOName, String clientName, InetAddress clientIP, JMailEmailCombo sender, JMailEmailComboList recipents, String body) {
-        JMailSMTPMessage temp=new JMailSMTPMessage(HELOName, clientName, clientIP, sender, recipents, body);
-        myQueue.add(temp);
-        return true;
+    public void setLoop(JMailNIOEventLoop loop) {
+        myLoop=loop;
     }
     
-    public int getQueueLength() {
-        return myQueue.size();
+    /** This method asks the Selector thread to close the connection.
+     *  It may be called from any thread */
+    public void requestClose() {
+        myLoop.requestClose(this);
     }
     
-    /** This method is run every so often to process
-     *  each message and deliver them correctly */
-    public void processQueue() {
-        Vector toRemove=new Vector();
-        JMailSMTPMessage currMessage=null;
-        JMailEmailCombo currRcpt=null;
-        
-        Enumeration messages=myQueue.elements();
+    /** This method passes a line to the protocol Connection and queues its reply
+     * @param inputLine line received from the client, null for the greeting
+     * @param length number of bytes in the line
+     */
+    private void processLine(byte[] inputLine, int length) {
+        if(inputLine != null && JMailServer.isDebug()) {
+            JMailServer.printDebug(hostString+" IN>> "+new String(inputLine, 0, length));
+        }
         
-        while(messages.hasMoreElements()) {
-            currMessage=(JMailSMTPMessage) messages.nextElement();
+        if(isPOP3) {
+            String outputLine=pop3Connection.processInput(inputLine, length);
+            JMailServer.printDebug(hostString+"OUT<< "+outputLine);
+            queueOutput(outputLine);
+            mySession.setState(pop3Connection.getCurrState());
             
-            Enumeration recipents=currMessage.getRecipents().elements();
+            if(pop3Connection.getCurrState() == JMailPOP3Connection.STATE_END) {
+                cleanShutdown=true;
+                closeAfterWrite=true;
+            }
+        }
+        else {
+            String outputLine=smtpConnection.processInput(inputLine, length);
+            JMailServer.printDebug(hostString+"OUT<< "+outputLine);
+            if(outputLine != null) {
+                queueOutput(outputLine);
+            }
+            mySession.setState(smtpConnection.getCurrState());
             
-            while(recipents.hasMoreElements()) {
-                currRcpt=(JMailEmailCombo) recipents.nextElement();
-                
-                String toSend="Received: from "+currMessage.getHELOName()+" ("+currMessage.getClientName()+" ["+currMessage.getClientIP().getHostAddress()+"])\r\n"+
-                " by "+JMailServer.myHostname+" (JMail SMTP Server)\r\n"+
-                " with SMTP id <KJFD7SD8FDSJ432FDS@"+JMailServer.myHostname+">\r\n"+
-                " for "+currRcpt.parsed()+"; "+currMessage.getDate()+"\r\n"+
-                currMessage.getBody()+"\r\n.";
-                
-                if(currRcpt.isDomainServerLocal()) {
-                    // Local email
-                    try {
-                        JMailServer.allUsers.getUser(currRcpt.user());
-                        System.out.println("SMTPQueue: ServerLocalDomain");
-                        JMailServer.allUsers.getUser(currRcpt.user()).addMessage("Return Path: <"+currMessage.getSender().parsed()+">\r\n"+toSend);
-                        toRemove.add(currMessage);
-                    }
-                    catch(JMailUserNonExistantException e) {
-                        // User doesn't exist
-                    }
-                }
-                else {
-                    // Remote email
-                    boolean isLocal=currRcpt.isDomainNetworkLocal();
-                    
-                    if(isLocal) {
-                        // Host inside local subnet
-                        // Forward to that machine:SMTP_PORT
-                        System.out.println("SMTPQueue: NetworkLocalDomain");
-                        if(sendMessage(currRcpt.domain(), JMailServer.SMTP_PORT, currMessage.getSender(), currRcpt, toSend)) {
-                            toRemove.add(currMessage);
-                        }
-                    }
-                    else {
-                        // Host outside local subnet
-                        // Forward to SMTP_FORWARD_HOST:SMTP_FORWARD_PORT
-                        System.out.println("SMTPQueue: ExternalDomain");
-                        if(sendMessage(JMailServer.SMTP_FORWARD_HOST, JMailServer.SMTP_FORWARD_PORT, currMessage.getSender(), currRcpt, toSend)) {
-                            toRemove.add(currMessage);
-                        }
-                    }
+            if(smtpConnection.getCurrState() == JMailSMTPConnection.STATE_QUEUE) {
+                startQueue();
+            }
+            else if(smtpConnection.getCurrState() == JMailSMTPConnection.STATE_BDAT) {
+                // The next bytes are the BDAT chunk
+                chunkRemaining=smtpConnection.getChunkSize();
+                if(chunkRemaining == 0) {
+                    endChunk();
                 }
             }
-        }
-        
-        Enumeration removing=toRemove.elements();
-        while(removing.hasMoreElements()) {
-            myQueue.remove(removing.nextElement());
+            else {
+                discardRemaining=smtpConnection.takeDiscardSize();
+            }
+            
+            if(smtpConnection.getCurrState() == JMailSMTPConnection.STATE_END) {
+                closeAfterWrite=true;
+            }
         }
     }
     
-    /** This method attempts to connect to a remote SMTP server and forward a mail message
-     * @param hostName hostname of SMTP server to connect to
-     * @param port port of SMTP server to connect to
-     * @param sender send of the SMTP message
-     * @param recipent recipient of the SMTP message
-     * @param body body of the SMTP message
-     * @return true if successful<br>
-     * false otherwise
+    /** This method passes the start of a line too long to be collected whole
+     *  to the protocol Connection; the rest follows in later calls
+     * @param part bytes of the line received so far
+     * @param length number of bytes in [part]
      */
-    private boolean sendMessage(String hostName, int port, JMailEmailCombo sender, JMailEmailCombo recipent, String body) {
-        Socket mySocket=null;
-        PrintWriter out=null;
-        BufferedReader in=null;
-        
-        try {
-            mySocket=new Socket(hostName, port);
+    private void processPartialLine(byte[] part, int length) {
+        if(isPOP3) {
+            pop3Connection.processPartialLine(part, length);
         }
-        catch(UnknownHostException e) {
-            System.err.println("SMTPConnect: Don't know about "+hostName);
-            return false;
+        else {
+            smtpConnection.processPartialLine(part, length);
         }
-        catch(IOException e) {
-            System.err.println("SMTPConnect: Connect failed to "+hostName+":"+port);
-            return false;
+    }
+    
+    /** This method is called once all of a BDAT chunk has been received */
+    private void endChunk() {
+        String outputLine=smtpConnection.endChunk();
+        JMailServer.printDebug(hostString+"OUT<< "+outputLine);
+        if(outputLine != null) {
+            queueOutput(outputLine);
         }
+        mySession.setState(smtpConnection.getCurrState());
         
-        System.err.println("SMTPConnect: Connect succeeded to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
+        if(smtpConnection.getCurrState() == JMailSMTPConnection.STATE_QUEUE) {
+            startQueue();
+        }
+    }
+    
+    /** This method hands the message just received to a worker to be queued,
+     *  as that may wait for the disk, and stops reading from the client
+     *  until the worker has finished */
+    private void startQueue() {
+        isQueueing=true;
+        myLoop.execute(new Runnable() {
+            public void run() {
+                String reply;
+                try {
+                    reply=smtpConnection.finishQueue();
+                }
+                catch(RuntimeException e) {
+                    System.err.println("ServerSMTP: Failed to queue message ("+e+")");
+                    reply="451 Message could not be stored; try again later\r";
+                }
+                queuedReply=reply;
+                myLoop.requestReply(JMailNIOSession.this);
+            }
+        });
+    }
+    
+    /** This method is called by the Selector thread once the worker has
+     *  queued the message.  It sends the reply, and carries on with any
+     *  commands which arrived meanwhile */
+    public void endQueue() {
+        isQueueing=false;
+        if(isClosed) {
+            return;
+        }
+        
+        JMailServer.printDebug(hostString+"OUT<< "+queuedReply);
+        queueOutput(queuedReply);
+        mySession.setState(smtpConnection.getCurrState());
+        processBuffer();
+    }
+    
+    private void queueOutput(String outputLine) {
+        byte[] bytes=(outputLine+"\n").getBytes();
+        outBuffer.write(bytes, 0, bytes.length);
+    }
+    
+    /** This method writes as much of the queued replies as the channel will take,
+     *  and waits for OP_WRITE if there is any left over */
+    private void flush() {
+        if(isClosed) {
+            return;
+        }
         
         try {
-            out=new PrintWriter(mySocket.getOutputStream(), true);
-            in=new BufferedReader(new InputStreamReader(mySocket.getInputStream()));
+            if(writeBuffer == null && outBuffer.size() > 0) {
+                writeBuffer=ByteBuffer.wrap(outBuffer.toByteArray());
+                outBuffer.reset();
+            }
+            
+            // Nothing is read while a worker is queueing a message
+            int readOps=isQueueing ? 0 : SelectionKey.OP_READ;
+            if(writeBuffer != null) {
+                mySession.addBytesOut(myChannel.write(writeBuffer));
+                if(writeBuffer.hasRemaining()) {
+                    myKey.interestOps(readOps | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeBuffer=null;
+            }
+            myKey.interestOps(readOps);
         }
         catch(IOException e) {
-            System.err.println("SMTPConnect: Failed to setup Writer/Reader");
-            return false;
+            System.err.println((isPOP3 ? "ServerPOP3" : "ServerSMTP")+": Failed to read/write to client");
+            close();
+            return;
         }
         
-        String inputLine=null, outputLine=null;
-        
-        JMailSMTPClientConnection clientConnection=new JMailSMTPClientConnection(mySocket, sender, recipent, body);
+        if(closeAfterWrite) {
+            close();
+        }
+    }
+    
+    /** This method closes the channel and does the same clean up as
+     *  JMailServerPOP3Thread and JMailServerSMTPThread */
+    public void close() {
+        if(isClosed) {
+            return;
+        }
+        isClosed=true;
         
-        String hostString="SMTPConnect: ["+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort()+"] ";
+        if(isPOP3 && ! cleanShutdown) {
+            // Clean up for terminated connections
+            try {
+                pop3Connection.abortSession();
+            }
+            catch(Exception e) {
+                // This either means no user was logged on or connection was
+                System.err.println("ServerPOP3: could not resetAllMessages()");
+            }
+        }
+        if(! isPOP3 && ! isQueueing) {
+            // Throw away any partly received message; one being queued
+            // belongs to the worker
+            smtpConnection.abortSession();
+        }
         
         try {
-            while((inputLine=in.readLine()) != null) {
-                JMailServer.printDebug(hostString+" IN>> "+inputLine);
-                outputLine=clientConnection.processInput(inputLine);
-                
-                if(clientConnection.getCurrState() == JMailSMTPClientConnection.STATE_END) {
-                    break;
-                }
-                
-                JMailServer.printDebug(hostString+"OUT<< "+outputLine);
-                out.println(outputLine);
+            if(myKey != null) {
+                myKey.cancel();
             }
+            myChannel.close();
         }
         catch(IOException e) {
-            System.err.println("SMTPConnect: Failed to read/write to client");
+            System.err.println((isPOP3 ? "ServerPOP3" : "ServerSMTP")+": Failed to close client connection");
         }
         
         try {
-            out.close();
-            in.close();
-            mySocket.close();
+            myParent.removeSession(mySession);
         }
-        catch(IOException e) {
-            System.err.println("SMTPConnect: Failed to close server connection");
+        catch(JMailThreadAccessDeniedException e) {
+            System.err.println((isPOP3 ? "ServerPOP3" : "ServerSMTP")+": Not allowed to decrement ServerThread count");
         }
         
-        System.err.println("SMTPConnect: Connection closed to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
-        return true;
+        System.err.println((isPOP3 ? "ServerPOP3" : "ServerSMTP")+": Connection closed to "+peerString);
     }
 }
 
-//////////////////////////////////////////////////////////////////////
-
-/** This Connection is responsible for handling the protocol of a POP3 connection.
- *  There is a unique Connection object for each POP3 connection. */
-class JMailPOP3Connection {
-    /** This state is when waiting for USER */
-    public static final int STATE_AUTH_USER=10;
-    /** This state is when waiting for PASS */
-    public static final int STATE_AUTH_PASS=15;
-    /** This state is when waiting for any query */
-    public static final int STATE_TRANSACTION=20;
-    /** This state is when commiting all changes on clean shutdown */
-    public static final int STATE_UPDATE=30;
-    /** This state is when QUIT cmd has been given */
-    public static final int STATE_END=3000;
-    
-    //////////////////////////////////////////////////
-    
-    /** This variable holds the Socket relating to the connection */
-    private Socket relatedSocket=null;
-    /** This variable holds the current state of the connection */
-    private int currState=0;
-    
-    /** username of currently logged in user */
-    private String myUserName=null;
-    /** JMailUser class relating to the username */
-    private JMailUser myUser=null;
+/** This class reads CRLF terminated lines from an InputStream, and can also
+ *  copy a given number of raw bytes, as needed for BDAT chunks */
+class JMailLineReader {
+    /** Longest line, with its line ending, which is collected whole (RFC 5321
+     *  4.5.3.1.6).  A longer line is handed on in parts of this size */
+    public static final int MAX_LINE_LENGTH=1000;
     
-    public JMailPOP3Connection(Socket thatSocket) {
-        this.currState=STATE_AUTH_USER;
-        this.relatedSocket=thatSocket;
-    }
+    private InputStream myIn=null;
+    /** Bytes read from the stream but not yet used */
+    private byte[] buffer=new byte[JMailMessageBuffer.CHUNK_SIZE];
+    private int position=0;
+    private int limit=0;
+    /** The last line read; reused */
+    private byte[] line=new byte[MAX_LINE_LENGTH];
+    private int lineLength=0;
+    /** Whether [line] only holds part of a line too long to be collected whole */
+    private boolean isPartial=false;
+    /** Whether the last part ended in a CR, held back as it may start the line ending */
+    private boolean pendingCR=false;
     
-    public int getCurrState() {
-        return currState;
+    public JMailLineReader(InputStream in) {
+        this.myIn=in;
     }
     
-    public String processInput(String theInput) {
-        try {
-            if(theInput.toUpperCase().split(" ")[0].equals("QUIT")) {
-                if(currState == STATE_TRANSACTION) {
-                    commitChanges();
-                }
-                
-                currState=STATE_END;
-                return "+OK Good for you; Smoking is bad";
-            }
-        }
-        catch(Exception e) {
-            // theInput doesn't contain QUIT
+    /** This method makes sure there are some bytes in the buffer
+     * @return false if the end of the stream has been reached
+     */
+    private boolean fill() throws IOException {
+        if(position < limit) {
+            return true;
         }
         
-        if(JMailServer.isOnline) {
-            // Server is Online
-            return processStates(theInput)+"\r";
+        int count=myIn.read(buffer, 0, buffer.length);
+        if(count == -1) {
+            return false;
         }
-        
-        // Server is offline
-        return "-ERR Service Not Available\r";
+        position=0;
+        limit=count;
+        return true;
     }
     
-    /** This method processes the inputString.
-     * Checking whether the protocol is being followed.
-     * @param theInput string to parse
-     * @return string message to return to client
+    /** This method reads a line, without its line ending, into getLine().
+     *  A line longer than MAX_LINE_LENGTH is read in parts, each but the
+     *  last marked by isPartial()
+     * @return false at the end of the stream
      */
-    private String processStates(String theInput) {
-        if(theInput == null) {
-            // Welcome message
-            return "+OK JMail POP3 Server ready on "+JMailServer.myHostname;
+    public boolean readLine() throws IOException {
+        lineLength=0;
+        isPartial=false;
+        if(pendingCR) {
+            line[lineLength++]='\r';
+            pendingCR=false;
         }
         
-        // Something useful to parse
-        String[] myArgs=theInput.split(" ", 2);
-        String arg1=myArgs[0].toUpperCase();
-        
-        // HELO
-        if(arg1.equals("USER")) {
-            if(currState == STATE_AUTH_USER || currState == STATE_AUTH_PASS) {
-                if(myArgs.length >= 2 && ! myArgs[1].equals("")) {
-                    myUserName=myArgs[1];
-                    currState=STATE_AUTH_PASS;
-                    return "+OK Welcome "+myUserName+" pleased to meet you";
-                }
-                // Problem with number of args
-                return "-ERR USER requires arg";
-            }
-            
-            return "-ERR Not in AUTH State";
-        }
-        else if(arg1.equals("PASS")) {
-            if(currState == STATE_AUTH_PASS) {
-                if(myArgs.length >= 2 && ! myArgs[1].equals("")) {
-                    String testPass=myArgs[1];
-                    try {
-                        myUser=JMailServer.allUsers.getUser(myUserName);
-                        if(checkPass(testPass)) {
-                            currState=STATE_TRANSACTION;
-                            if(myUser.isInPOP3Session()) {
-                                currState=STATE_AUTH_USER;
-                                return "-ERR "+myUserName+" already logged in; try again later";
-                            }
-                            myUser.setInPOP3Session(true);
-                            return "+OK "+myUserName+" login success";
-                        }
-                    }
-                    catch(JMailUserNonExistantException e) {
-                        return "-ERR "+myUserName+" login failure";
-                    }
-                }
-                // Problem with number of args
-                return "-ERR PASS requires arg";
-            }
-            return "-ERR Not in AUTH State";
-        }
-        // STAT
-        else if(arg1.equals("STAT")) {
-            try {
-                return getSummaryDropListing();
-            }
-            catch(JMailMessageNonExistantException e) {
-                return "-ERR STAT Error";
-            }
-        }
-        // LIST
-        else if(arg1.equals("LIST")) {
-            if(currState == STATE_TRANSACTION) {
-                if(myArgs.length >= 2 && ! myArgs[1].equals("")) {
-                    // An argument exists
-                    int messageNo=-1;
-                    try {
-                        messageNo=Integer.parseInt(myArgs[1]);
-                    }
-                    catch(Exception e) {
-                        // Bad argument
-                        messageNo=-1;
-                    }
-                    
-                    try {
-                        // Get drop listing of specific message
-                        return getDropListing(messageNo-1);
-                    }
-                    catch(JMailMessageNonExistantException e) {
-                        return "-ERR LIST bad arg";
+        while(fill()) {
+            int start=position;
+            int end=Math.min(limit, position+line.length-lineLength);
+            while(position < end) {
+                if(buffer[position++] == '\n') {
+                    append(start, position-1-start);
+                    if(lineLength > 0 && line[lineLength-1] == '\r') {
+                        lineLength--;
                     }
-                }
-                // No argument exists
-                try {
-                    return getDropListing();
-                }
-                catch(JMailMessageNonExistantException e) {
-                    return "-ERR LIST Error";
+                    return true;
                 }
             }
-            return "-ERR AUTH first";
-        }
-        // RETR
-        else if(arg1.equals("RETR")) {
-            if(currState == STATE_TRANSACTION) {
-                if(myArgs.length >= 2 && ! myArgs[1].equals("")) {
-                    // An argument exists
-                    int messageNo=-1;
-                    try {
-                        messageNo=Integer.parseInt(myArgs[1]);
-                    }
-                    catch(Exception e) {
-                        // Bad argument
-                        messageNo=-1;
-                    }
-                    
-                    try {
-                        if(myUser.getMessageState(messageNo-1) == JMailPOP3Message.STATE_NORMAL) {
-                            // Get content of specific message
-                            return "+OK ("+myUser.getMessageBody(messageNo-1).length()+" octets)\r\n"+myUser.getMessageBody(messageNo-1);
-                        }
-                        else {
-                            return "-ERR RETR message marked";
-                        }
-                    }
-                    catch(JMailMessageNonExistantException e) {
-                        return "-ERR RETR bad arg";
-                    }
+            append(start, end-start);
+            
+            if(lineLength == line.length) {
+                // Too long to collect whole: hand on what there is so far
+                if(line[lineLength-1] == '\r') {
+                    lineLength--;
+                    pendingCR=true;
                 }
-                // No argument exists
-                return "-ERR RETR requires arg";
+                isPartial=true;
+                return true;
             }
-            return "-ERR AUTH first";
         }
-        // TOP
-        else if(arg1.equals("TOP")) {
-            if(currState == STATE_TRANSACTION) {
-                if(myArgs.length >= 2 && ! myArgs[1].equals("")) {
-                    // An argument exists
-                    String[] messsize=myArgs[1].split(" ", 2);
-                    
-                    if(messsize.length >= 2 && ! messsize[0].equals("") && ! messsize[1].equals("")) {
-                        // Parse first argument
-                        int messageNo=-1;
-                        
-                        try {
-                            messageNo=Integer.parseInt(messsize[0]);
-                        }
-                        catch(Exception e) {
-                            // Bad argument
-                            messageNo=-1;
-                        }
-                        
-                        // Parse second argument
-                        int bodySize=-1;
-                        
-                        try {
-                            bodySize=Integer.parseInt(messsize[1]);
-                        }
-                        catch(Exception e) {
-                            // Bad argument
-                            bodySize=-1;
-                        }
-                        
-                        try {
-                            return getTopListing(messageNo-1, bodySize);
-                        }
-                        catch(JMailMessageNonExistantException e) {
-                            return "-ERR TOP message non-existant";
-                        }
-                    }
-                    return "-ERR TOP bad arg";
-                }
-                // No argument exists
-                return "-ERR TOP requires arg";
+        
+        return lineLength > 0;
+    }
+    
+    /** This method adds [length] bytes of the buffer to the line */
+    private void append(int start, int length) {
+        System.arraycopy(buffer, start, line, lineLength, length);
+        lineLength+=length;
+    }
+    
+    /** This method returns the bytes of the last line read.
+     *  They are only valid until the next call to readLine()
+     * @return the line buffer, of which getLineLength() bytes are used
+     */
+    public byte[] getLine() {
+        return line;
+    }
+    
+    public int getLineLength() {
+        return lineLength;
+    }
+    
+    /** This method returns whether the last line read is only part of a line
+     *  too long to be collected whole.  The rest follows in later calls
+     *  to readLine()
+     * @return true if more of the line is still to come
+     */
+    public boolean isPartial() {
+        return isPartial;
+    }
+    
+    /** This method copies exactly [count] bytes from the stream into [sink]
+     * @param sink buffer to copy the bytes into
+     * @param count number of bytes to copy
+     * @param session session whose activity is advanced as the bytes arrive,
+     *        so a long chunk still streaming in is not taken as idle
+     * @throws IOException if the stream ends first
+     */
+    public void readBytes(JMailMessageBuffer sink, long count, JMailSessionInfo session) throws IOException {
+        while(count > 0) {
+            if(! fill()) {
+                throw new EOFException("Stream ended during chunk");
             }
-            return "-ERR AUTH first";
+            
+            int length=(int) Math.min(count, limit-position);
+            session.addBytesIn(length);
+            sink.write(buffer, position, length);
+            position+=length;
+            count-=length;
         }
-        // NOOP
-        else if(arg1.equals("NOOP")) {
-            if(currState == STATE_TRANSACTION) {
-                return "+OK NOOP is good";
+    }
+    
+    /** This method reads exactly [count] bytes from the stream and throws them away
+     * @param count number of bytes to skip
+     * @param session session whose activity is advanced as the bytes arrive
+     * @throws IOException if the stream ends first
+     */
+    public void skipBytes(long count, JMailSessionInfo session) throws IOException {
+        while(count > 0) {
+            if(! fill()) {
+                throw new EOFException("Stream ended during chunk");
             }
+            
+            int length=(int) Math.min(count, limit-position);
+            session.addBytesIn(length);
+            position+=length;
+            count-=length;
         }
-        // RSET
-        else if(arg1.equals("RSET")) {
-            if(currState == STATE_TRANSACTION) {
-                try {
-                    resetAllMessages();
-                    return "+OK Tis Done";
-                }
-                catch(JMailMessageNonExistantException e) {
-                    return "-ERR Could not";
+    }
+    
+    /** This method returns whether there is input which can be read without blocking
+     * @return true if a read would not block
+     */
+    public boolean ready() throws IOException {
+        return position < limit || myIn.available() > 0;
+    }
+    
+    public void close() throws IOException {
+        myIn.close();
+    }
+}
+
+/** This class splits a command line received from a client into its verb
+ *  and argument without copying it.  The verb is packed into an int, four
+ *  upper-cased ASCII letters to a word, so it can be compared directly
+ *  against the constants below; the argument is left in the line and read
+ *  through offsets, only becoming a String when one is actually needed */
+class JMailCommand {
+    /** Verb was longer than four letters or not letters at all */
+    public static final int UNKNOWN=0;
+    
+    // POP3
+    public static final int USER=('U'<<24)|('S'<<16)|('E'<<8)|'R';
+    public static final int PASS=('P'<<24)|('A'<<16)|('S'<<8)|'S';
+    public static final int STAT=('S'<<24)|('T'<<16)|('A'<<8)|'T';
+    public static final int LIST=('L'<<24)|('I'<<16)|('S'<<8)|'T';
+    public static final int RETR=('R'<<24)|('E'<<16)|('T'<<8)|'R';
+    public static final int TOP=('T'<<24)|('O'<<16)|('P'<<8);
+    public static final int DELE=('D'<<24)|('E'<<16)|('L'<<8)|'E';
+    // SMTP
+    public static final int HELO=('H'<<24)|('E'<<16)|('L'<<8)|'O';
+    public static final int EHLO=('E'<<24)|('H'<<16)|('L'<<8)|'O';
+    public static final int MAIL=('M'<<24)|('A'<<16)|('I'<<8)|'L';
+    public static final int RCPT=('R'<<24)|('C'<<16)|('P'<<8)|'T';
+    public static final int DATA=('D'<<24)|('A'<<16)|('T'<<8)|'A';
+    public static final int BDAT=('B'<<24)|('D'<<16)|('A'<<8)|'T';
+    // Both
+    public static final int NOOP=('N'<<24)|('O'<<16)|('O'<<8)|'P';
+    public static final int RSET=('R'<<24)|('S'<<16)|('E'<<8)|'T';
+    public static final int QUIT=('Q'<<24)|('U'<<16)|('I'<<8)|'T';
+    
+    /** The line being looked at */
+    private byte[] myLine=null;
+    /** Number of bytes of [myLine] which make up the line */
+    private int myLength=0;
+    private int myVerb=UNKNOWN;
+    /** Offset of the first byte after the space following the verb */
+    private int argStart=0;
+    
+    /** This method splits up a line.
+     *  The line is not copied, so must not change while it is being used
+     * @param line bytes of the line, without its line ending
+     * @param length number of bytes in the line
+     * @return the verb
+     */
+    public int parse(byte[] line, int length) {
+        myLine=line;
+        myLength=length;
+        myVerb=UNKNOWN;
+        
+        int code=0;
+        int i=0;
+        while(i < length && line[i] != ' ') {
+            int c=line[i] & 0xFF;
+            if(i >= 4 || ! ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z'))) {
+                // Not a verb we know; skip to the argument anyway
+                while(i < length && line[i] != ' ') {
+                    i++;
                 }
+                code=UNKNOWN;
+                break;
             }
-            return "-ERR AUTH first";
+            code=(code<<8) | (c & 0xDF);
+            i++;
         }
-        // DELE
-        else if(arg1.equals("DELE")) {
-            if(currState == STATE_TRANSACTION) {
-                if(myArgs.length >= 2 && ! myArgs[1].equals("")) {
-                    // An argument exists
-                    int messageNo=-1;
-                    try {
-                        messageNo=Integer.parseInt(myArgs[1]);
-                    }
-                    catch(Exception e) {
-                        // Bad argument
-                        messageNo=-1;
-                    }
-                    
-                    try {
-                        if(myUser.getMessageState(messageNo-1) != JMailPOP3Message.STATE_MARKED) {
-                            // Mark specified message
-                            myUser.setMessageState(messageNo-1, JMailPOP3Message.STATE_MARKED);
-                            return "+OK DELE marked message "+messageNo;
-                        }
-                        return "-ERR DELE already deleted";
-                    }
-                    catch(JMailMessageNonExistantException e) {
-                        return "-ERR DELE bad arg";
-                    }
-                }
-                // No argument exists
-                return "-ERR DELE requires arg";
-            }
-            return "-ERR AUTH first";
+        if(code != UNKNOWN) {
+            // Shorter verbs are padded with zeros
+            myVerb=code<<(8*(4-i));
         }
         
-        // Command unrecognised
-        return "-ERR Command unrecognised";
+        argStart=(i < length) ? i+1 : length;
+        return myVerb;
     }
     
-    /* This method checks whether [thePass] is valid for [myUser] */
-    /** This method checks whether the user password is correct
-     * @param thePass cleartext password of the user
-     * @return true if password is correct<br>
-     * false otherwise
+    public int getVerb() {
+        return myVerb;
+    }
+    
+    /** This method returns whether anything follows the verb
+     * @return true if the argument is not empty
      */
-    private boolean checkPass(String thePass) {
-        if(thePass.equals(myUser.getPass())) {
-            return true;
-        }
-        return false;
+    public boolean hasArg() {
+        return argStart < myLength;
     }
     
-    /** When the user sends 'STAT' to the server, the server
-     *  returns the total size of all unmarked messages
-     * @return string containing the total size of all unmarked messages
+    /** This method returns everything after the verb as a String
+     * @return the argument (possibly empty)
      */
-    private String getSummaryDropListing() throws JMailMessageNonExistantException {
-        String toReturn=null;
-        int totalSize=0;
-        int count=0;
+    public String getArg() {
+        return getString(argStart, myLength);
+    }
+    
+    public int getArgStart() {
+        return argStart;
+    }
+    
+    public int getEnd() {
+        return myLength;
+    }
+    
+    /** This method finds the first [b] at or after [from]
+     * @return offset of [b], or -1 if there is none
+     */
+    public int indexOf(char b, int from) {
+        for(int i=from; i<myLength; i++) {
+            if(myLine[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /** This method finds the last [b] at or after [from]
+     * @return offset of [b], or -1 if there is none
+     */
+    public int lastIndexOf(char b, int from) {
+        for(int i=myLength-1; i>=from; i--) {
+            if(myLine[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /** This method skips any spaces starting at [from]
+     * @return offset of the next byte which is not a space
+     */
+    public int skipSpaces(int from) {
+        while(from < myLength && myLine[from] == ' ') {
+            from++;
+        }
+        return from;
+    }
+    
+    /** This method finds the end of the token starting at [from]
+     * @return offset of the next space, or the end of the line
+     */
+    public int tokenEnd(int from) {
+        while(from < myLength && myLine[from] != ' ') {
+            from++;
+        }
+        return from;
+    }
+    
+    /** This method reads a decimal number from the line
+     * @return the number, or -1 if the bytes are not a number
+     */
+    public long parseNumber(int from, int to) {
+        if(from >= to || to-from > 18) {
+            return -1;
+        }
         
-        for(int i=0; i<myUser.getMessageCount(); i++) {
-            int tempState=myUser.getMessageState(i);
-            if(tempState == JMailPOP3Message.STATE_NORMAL) {
-                int tempSize=myUser.getMessage(i).length();
-                totalSize+=tempSize;
-                count++;
+        long toRet=0;
+        for(int i=from; i<to; i++) {
+            int c=myLine[i];
+            if(c < '0' || c > '9') {
+                return -1;
             }
+            toRet=toRet*10+(c-'0');
+        }
+        return toRet;
+    }
+    
+    /** This method is parseNumber() for numbers which must fit an int
+     * @return the number, or -1 if the bytes are not a number
+     */
+    public int parseInt(int from, int to) {
+        long toRet=parseNumber(from, to);
+        return (toRet > Integer.MAX_VALUE) ? -1 : (int) toRet;
+    }
+    
+    /** This method compares part of the line with [word], ignoring case
+     * @param word upper case ASCII word
+     * @return true if the bytes from [from] to [to] are [word]
+     */
+    public boolean matches(int from, int to, String word) {
+        if(to-from != word.length()) {
+            return false;
         }
         
-        toReturn="+OK "+count+" "+totalSize;
+        for(int i=0; i<word.length(); i++) {
+            int c=myLine[from+i];
+            if(c >= 'a' && c <= 'z') {
+                c-=('a'-'A');
+            }
+            if(c != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** This method returns part of the line as a String
+     * @return the bytes from [from] to [to]
+     */
+    public String getString(int from, int to) {
+        return new String(myLine, from, to-from);
+    }
+    
+    /** This method returns part of the line as a String,
+     *  without any leading or trailing white space
+     * @return the trimmed bytes from [from] to [to]
+     */
+    public String getTrimmed(int from, int to) {
+        while(from < to && (myLine[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        while(to > from && (myLine[to-1] & 0xFF) <= ' ') {
+            to--;
+        }
+        return getString(from, to);
+    }
+}
+
+/** This class holds the registry of live connections on a listener.
+ *  Registering and removing a connection are O(1) and take no global lock */
+class JMailSessionRegistry {
+    /** Map of session id to JMailSessionInfo for every live connection */
+    private ConcurrentHashMap mySessions=new ConcurrentHashMap();
+    /** Number of live connections */
+    private AtomicInteger myCount=new AtomicInteger(0);
+    /** Id given to the next connection */
+    private static AtomicLong nextId=new AtomicLong(1);
+    
+    /** This method adds a newly accepted connection to the registry
+     * @param protocol name of the protocol served on the connection
+     * @param socket Socket relating to the connection
+     * @return the JMailSessionInfo to hand to the connection handler
+     */
+    public JMailSessionInfo register(String protocol, Socket socket) {
+        JMailSessionInfo temp=new JMailSessionInfo(nextId.getAndIncrement(), protocol, socket);
+        mySessions.put(Long.valueOf(temp.getId()), temp);
+        myCount.incrementAndGet();
         
-        return toReturn;
+        if(JMailServer.sessionReaper != null) {
+            JMailServer.sessionReaper.schedule(temp);
+        }
+        return temp;
     }
     
-    /** When the user sends 'LIST' to the server, the server
-     *  returns the total size of all unmarked messages along
-     *  with the size of each message
-     * @return string containing total size of all unmarked messages and size of each message
+    /** This method removes a closed connection from the registry
+     * @param session the JMailSessionInfo returned by register
+     * @throws JMailThreadAccessDeniedException if the session is not in the registry
      */
-    private String getDropListing() throws JMailMessageNonExistantException {
-        String toReturn=null;
-        String middle="";
-        int totalSize=0;
-        int count=0;
-        int messageCount=0;
+    public void deregister(JMailSessionInfo session) throws JMailThreadAccessDeniedException {
+        if(session != null && mySessions.remove(Long.valueOf(session.getId())) != null) {
+            session.setClosed();
+            myCount.decrementAndGet();
+            return;
+        }
         
-        for(int i = 0, max = myUser.getMessageCount(); i < max; i++) {
-            if(myUser.getMessageState(i) == JMailPOP3Message.STATE_NORMAL) {
-                int tempSize=myUser.getMessage(i).length();
-                totalSize+=tempSize;
+        // Object is not allowed
+        throw new JMailThreadAccessDeniedException("ServerThread: Invalid access");
+    }
+    
+    public int getCount() {
+        return myCount.get();
+    }
+    
+    /** This method returns an Iterator over the JMailSessionInfo of every live
+     *  connection. It does not block connections being added or removed.
+     * @return Iterator of JMailSessionInfo
+     */
+    public Iterator getSessions() {
+        return mySessions.values().iterator();
+    }
+}
+
+/** This Thread closes connections which have been idle for longer than the
+ *  timeout of their protocol state.<br>
+ *  Connections are kept in a hashed timing wheel, so there is a single timer
+ *  for all of them. Activity on a connection does not touch the wheel; when a
+ *  connection's slot comes round its real deadline is worked out and it is
+ *  either reaped or put back in the slot for that deadline. */
+class JMailSessionReaper extends Thread {
+    /** Number of slots in the wheel */
+    private static final int WHEEL_SIZE=512;
+    /** Time (millisecs) covered by each slot */
+    private static final long TICK=1000;
+    
+    /** Each slot is a Vector of JMailSessionInfo */
+    private Vector[] wheel=new Vector[WHEEL_SIZE];
+    /** Absolute tick (time / TICK) of the slot last processed */
+    private long currentTick=0;
+    /** Number of connections reaped so far */
+    private AtomicInteger reapedCount=new AtomicInteger(0);
+    
+    public JMailSessionReaper() {
+        super("JMailSessionReaper");
+        setDaemon(true);
+        
+        for(int i=0; i<WHEEL_SIZE; i++) {
+            wheel[i]=new Vector();
+        }
+        currentTick=System.currentTimeMillis()/TICK;
+    }
+    
+    public int getReapedCount() {
+        return reapedCount.get();
+    }
+    
+    /** This method puts a connection in the slot for its current deadline
+     * @param session connection to watch
+     */
+    public synchronized void schedule(JMailSessionInfo session) {
+        long tick=(session.getLastActivity()+session.getTimeout())/TICK;
+        if(tick <= currentTick) {
+            tick=currentTick+1;
+        }
+        
+        session.wheelTick=tick;
+        wheel[(int) (tick % WHEEL_SIZE)].add(session);
+    }
+    
+    /** This method moves a connection to an earlier slot if its state
+     *  has changed to one with a shorter timeout.
+     *  The entry left in the old slot is dropped when that slot comes round.
+     * @param session connection whose state has changed
+     */
+    public synchronized void reschedule(JMailSessionInfo session) {
+        long tick=(session.getLastActivity()+session.getTimeout())/TICK;
+        if(tick < session.wheelTick) {
+            schedule(session);
+        }
+    }
+    
+    /** This method returns a connection to the slot it was taken from
+     * @param session connection due on a later turn of the wheel
+     * @param tick absolute tick of the slot
+     */
+    private synchronized void putBack(JMailSessionInfo session, long tick) {
+        wheel[(int) (tick % WHEEL_SIZE)].add(session);
+    }
+    
+    /** This method swaps the slot for [tick] with an empty one
+     * @param tick absolute tick to process
+     * @return Vector of the JMailSessionInfo which were in the slot
+     */
+    private synchronized Vector takeSlot(long tick) {
+        int index=(int) (tick % WHEEL_SIZE);
+        Vector toRet=wheel[index];
+        wheel[index]=new Vector();
+        currentTick=tick;
+        return toRet;
+    }
+    
+    public void run() {
+        while(true) {
+            long nextTick=currentTick+1;
+            long wait=nextTick*TICK-System.currentTimeMillis();
+            if(wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+            }
+            
+            Vector slot=takeSlot(nextTick);
+            long now=System.currentTimeMillis();
+            
+            for(int i=0; i<slot.size(); i++) {
+                JMailSessionInfo session=(JMailSessionInfo) slot.get(i);
                 
-                middle+=(count+1)+" "+tempSize+"\r\n";
-                messageCount++;
+                if(session.isClosed()) {
+                    // Finished with
+                    continue;
+                }
+                
+                if(session.wheelTick != nextTick) {
+                    if(session.wheelTick > nextTick && session.wheelTick % WHEEL_SIZE == nextTick % WHEEL_SIZE) {
+                        // Due on a later turn of the wheel
+                        putBack(session, nextTick);
+                    }
+                    // Otherwise the connection has been moved to another slot
+                    continue;
+                }
+                
+                if(now >= session.getLastActivity()+session.getTimeout()) {
+                    System.err.println("SessionReaper: Reaping idle "+session.getProtocol()+" connection to "+session.getPeer());
+                    reapedCount.incrementAndGet();
+                    session.reap();
+                    continue;
+                }
+                
+                // Active since it was scheduled
+                schedule(session);
             }
-            count++;
+        }
+    }
+}
+
+/** This class holds the details of a single live connection which are
+ *  shown on the admin console. Each field is only written by the
+ *  thread handling the connection */
+class JMailSessionInfo {
+    private long myId=0;
+    /** Name of the protocol served on the connection */
+    private String myProtocol=null;
+    /** Address and port of the client */
+    private String myPeer=null;
+    /** Time (millisecs) the connection was accepted */
+    private long myStartTime=0;
+    /** Current state of the protocol Connection */
+    private volatile int myState=0;
+    private volatile long bytesIn=0;
+    private volatile long bytesOut=0;
+    /** Time (millisecs) data was last received from the client */
+    private volatile long lastActivity=0;
+    /** Whether the connection has been removed from the registry */
+    private volatile boolean isClosed=false;
+    /** Socket closed by reap() when the connection is handled by a Thread */
+    private Socket mySocket=null;
+    /** Session asked to close by reap() when LISTENER_MODE=nio */
+    private JMailNIOSession myNIOSession=null;
+    /** Absolute tick at which the JMailSessionReaper next looks at this connection.
+     *  Only used by the reaper */
+    volatile long wheelTick=0;
+    
+    public JMailSessionInfo(long id, String protocol, Socket socket) {
+        this.myId=id;
+        this.myProtocol=protocol;
+        this.mySocket=socket;
+        this.myPeer=socket.getInetAddress().getHostAddress()+":"+socket.getPort();
+        this.myStartTime=System.currentTimeMillis();
+        this.lastActivity=myStartTime;
+    }
+    
+    public long getId() {
+        return myId;
+    }
+    
+    public String getProtocol() {
+        return myProtocol;
+    }
+    
+    public String getPeer() {
+        return myPeer;
+    }
+    
+    public long getStartTime() {
+        return myStartTime;
+    }
+    
+    public long getBytesIn() {
+        return bytesIn;
+    }
+    
+    public long getBytesOut() {
+        return bytesOut;
+    }
+    
+    public void addBytesIn(long count) {
+        bytesIn+=count;
+        lastActivity=System.currentTimeMillis();
+    }
+    
+    public long getLastActivity() {
+        return lastActivity;
+    }
+    
+    public boolean isClosed() {
+        return isClosed;
+    }
+    
+    public void setClosed() {
+        isClosed=true;
+    }
+    
+    public void setNIOSession(JMailNIOSession session) {
+        myNIOSession=session;
+    }
+    
+    /** This method returns how long the connection may be idle in its current state
+     * @return idle timeout (millisecs)
+     */
+    public long getTimeout() {
+        if(myState == 0) {
+            // No command received yet
+            return JMailServer.TIMEOUT_GREETING;
         }
         
-        toReturn="+OK "+messageCount+" messages ("+totalSize+" octets)\r\n";
-        toReturn+=middle;
-        toReturn+=".";
+        if(myProtocol.equals("POP3")) {
+            if(myState == JMailPOP3Connection.STATE_AUTH_USER || myState == JMailPOP3Connection.STATE_AUTH_PASS) {
+                return JMailServer.TIMEOUT_AUTH;
+            }
+            return JMailServer.TIMEOUT_TRANSACTION;
+        }
         
-        return toReturn;
+        if(myState == JMailSMTPConnection.STATE_HELO) {
+            return JMailServer.TIMEOUT_GREETING;
+        }
+        if(myState == JMailSMTPConnection.STATE_DATA || myState == JMailSMTPConnection.STATE_BDAT || myState == JMailSMTPConnection.STATE_QUEUE) {
+            return JMailServer.TIMEOUT_DATA;
+        }
+        return JMailServer.TIMEOUT_TRANSACTION;
     }
     
-    /** When the user sends 'LIST x' to the server, the server
-     *  returns the size of message x
-     * @return the droplisting of message if exists<br>
-     * else error message
-     * @param messageNo id of message to get size of
+    /** This method forcibly ends the connection. The handler then runs the
+     *  same clean up as if the client had dropped the connection */
+    public void reap() {
+        if(myNIOSession != null) {
+            myNIOSession.requestClose();
+            return;
+        }
+        
+        try {
+            mySocket.close();
+        }
+        catch(IOException e) {
+            System.err.println("SessionReaper: Failed to close client connection");
+        }
+    }
+    
+    public void addBytesOut(int count) {
+        bytesOut+=count;
+    }
+    
+    public int getState() {
+        return myState;
+    }
+    
+    public void setState(int newState) {
+        if(newState == myState) {
+            return;
+        }
+        myState=newState;
+        
+        // The new state may have a shorter timeout than the one the reaper has
+        if(JMailServer.sessionReaper != null) {
+            JMailServer.sessionReaper.reschedule(this);
+        }
+    }
+    
+    /** This method returns a readable name for the current protocol state
+     * @return name of the state
      */
-    private String getDropListing(int messageNo) throws JMailMessageNonExistantException {
-        int tempState=myUser.getMessageState(messageNo);
-        if(tempState == JMailPOP3Message.STATE_NORMAL) {
-            int messageSize=myUser.getMessage(messageNo).length();
-            return "+OK "+(messageNo+1)+" "+messageSize;
+    public String getStateName() {
+        if(myProtocol.equals("POP3")) {
+            switch(myState) {
+                case JMailPOP3Connection.STATE_AUTH_USER:
+                    return "AUTH_USER";
+                case JMailPOP3Connection.STATE_AUTH_PASS:
+                    return "AUTH_PASS";
+                case JMailPOP3Connection.STATE_TRANSACTION:
+                    return "TRANSACTION";
+                case JMailPOP3Connection.STATE_UPDATE:
+                    return "UPDATE";
+                case JMailPOP3Connection.STATE_END:
+                    return "END";
+            }
         }
         else {
-            return "-ERR marked for deletion";
+            switch(myState) {
+                case JMailSMTPConnection.STATE_HELO:
+                    return "HELO";
+                case JMailSMTPConnection.STATE_FROM:
+                    return "FROM";
+                case JMailSMTPConnection.STATE_TO:
+                    return "TO";
+                case JMailSMTPConnection.STATE_DATA:
+                    return "DATA";
+                case JMailSMTPConnection.STATE_BDAT:
+                    return "BDAT";
+                case JMailSMTPConnection.STATE_BDAT2:
+                    return "BDAT2";
+                case JMailSMTPConnection.STATE_QUEUE:
+                    return "QUEUE";
+                case JMailSMTPConnection.STATE_END:
+                    return "END";
+            }
         }
+        return "GREETING";
     }
+}
+
+/** This Thread is spawned when the server accepts a connection on POP3_PORT.
+ *  It handles a single POP3 connection */
+class JMailServerPOP3Thread extends Thread {
+    /** Socket relating to the Connection */
+    private Socket mySocket=null;
+    private JMailServerThread myParent=null;
+    /** Details of this connection held in the listener's registry */
+    private JMailSessionInfo mySession=null;
     
-    private String getTopListing(int messageNo, int bodySize) throws JMailMessageNonExistantException {
-        if(bodySize >= 0) {
-            // Get content of specific message
-            String toRet="+OK Header plus top "+bodySize+" lines of body\r\n";
+    public JMailServerPOP3Thread(Socket socket, JMailServerThread parent, JMailSessionInfo session) {
+        super("JMailServerThread");
+        this.mySocket=socket;
+        this.myParent=parent;
+        this.mySession=session;
+    }
+    
+    public void run() {
+        PrintWriter out=null;
+        JMailLineReader in=null;
+        JMailPOP3Connection serverConnection=null;
+        boolean cleanShutdown=false;
+        
+        System.err.println("ServerPOP3: Accept succeeded to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
+        
+        // Whatever happens, the connection is closed and its place on the
+        // listener given up
+        try {
+            try {
+                out=new PrintWriter(mySocket.getOutputStream(), true);
+                in=new JMailLineReader(mySocket.getInputStream());
+            }
+            catch(IOException e) {
+                System.err.println("ServerPOP3: Failed to setup Writer/Reader");
+                return;
+            }
             
-            String topString="";
-            if(bodySize > 0) {
-                LineNumberReader read=new LineNumberReader(new StringReader(myUser.getMessageBody(messageNo)));
-                
-                int i=0;
-                try {
-                    String temp=null;
-                    while(read.ready() && i < bodySize) {
-                        temp=read.readLine();
-                        if(temp.equals(".")) {
-                            break;
-                        }
-                        topString+=temp+"\r\n";
-                        i++;
+            String outputLine=null;
+            
+            serverConnection=new JMailPOP3Connection(mySocket);
+            
+            String hostString="ServerPOP3 ["+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort()+"] ";
+            
+            outputLine=serverConnection.processInput(null, 0);
+            JMailServer.printDebug(hostString+"OUT<< "+outputLine);
+            out.println(outputLine);
+            mySession.addBytesOut(outputLine.length()+1);
+            
+            try {
+                while(in.readLine()) {
+                    if(in.isPartial()) {
+                        // Start of a line too long to be collected whole
+                        mySession.addBytesIn(in.getLineLength());
+                        serverConnection.processPartialLine(in.getLine(), in.getLineLength());
+                        continue;
                     }
+                    
+                    if(JMailServer.isDebug()) {
+                        JMailServer.printDebug(hostString+" IN>> "+new String(in.getLine(), 0, in.getLineLength()));
+                    }
+                    mySession.addBytesIn(in.getLineLength()+2);
+                    outputLine=serverConnection.processInput(in.getLine(), in.getLineLength());
+                    JMailServer.printDebug(hostString+"OUT<< "+outputLine);
+                    out.println(outputLine);
+                    mySession.addBytesOut(outputLine.length()+1);
+                    mySession.setState(serverConnection.getCurrState());
+                    
+                    if(serverConnection.getCurrState() == JMailPOP3Connection.STATE_END) {
+                        cleanShutdown=true;
+                        break;
+                    }
+                }
+            }
+            catch(IOException e) {
+                System.err.println("ServerPOP3: Failed to read/write to client");
+            }
+        }
+        finally {
+            if(serverConnection != null && ! cleanShutdown) {
+                // Clean up for terminated connections
+                try {
+                    serverConnection.abortSession();
+                }
+                catch(Exception e) {
+                    // This either means no user was logged on or connection was
+                    System.err.println("ServerPOP3: could not resetAllMessages()");
+                }
+            }
+            
+            try {
+                if(out != null) {
+                    out.close();
+                }
+                if(in != null) {
+                    in.close();
+                }
+                mySocket.close();
+            }
+            catch(IOException e) {
+                System.err.println("ServerPOP3: Failed to close client connection");
+            }
+            
+            try {
+                myParent.removeSession(mySession);
+            }
+            catch(JMailThreadAccessDeniedException e) {
+                System.err.println("ServerPOP3: Not allowed to decrement ServerThread count");
+            }
+            
+            System.err.println("ServerPOP3: Connection closed to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
+        }
+    }
+}
+
+/** This Thread is spawned when the server accepts a connection on SMTP_PORT.
+ *  It handles a single SMTP connection */
+class JMailServerSMTPThread extends Thread {
+    /** Socket relating to the Connection */
+    private Socket mySocket=null;
+    private JMailServerThread myParent=null;
+    /** Details of this connection held in the listener's registry */
+    private JMailSessionInfo mySession=null;
+    
+    public JMailServerSMTPThread(Socket socket, JMailServerThread parent, JMailSessionInfo session) {
+        super("JMailServerThread");
+        this.mySocket=socket;
+        this.myParent=parent;
+        this.mySession=session;
+    }
+    
+    public void run() {
+        PrintWriter out=null;
+        JMailLineReader in=null;
+        JMailSMTPConnection serverConnection=null;
+        
+        System.err.println("ServerSMTP: Accept succeeded to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
+        
+        // Whatever happens, the connection is closed and its place on the
+        // listener given up
+        try {
+            try {
+                // Replies are flushed once per batch of pipelined commands
+                out=new PrintWriter(new BufferedWriter(new OutputStreamWriter(mySocket.getOutputStream())), false);
+                in=new JMailLineReader(mySocket.getInputStream());
+            }
+            catch(IOException e) {
+                System.err.println("ServerSMTP: Failed to setup Writer/Reader");
+                return;
+            }
+            
+            String outputLine=null;
+            
+            serverConnection=new JMailSMTPConnection(mySocket);
+            
+            String hostString="ServerSMTP: ["+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort()+"] ";
+            
+            outputLine=serverConnection.processInput(null, 0);
+            JMailServer.printDebug(hostString+"OUT<< "+outputLine);
+            out.println(outputLine);
+            out.flush();
+            mySession.addBytesOut(outputLine.length()+1);
+            
+            try {
+                while(in.readLine()) {
+                    if(in.isPartial()) {
+                        // Start of a line too long to be collected whole
+                        mySession.addBytesIn(in.getLineLength());
+                        serverConnection.processPartialLine(in.getLine(), in.getLineLength());
+                        continue;
+                    }
+                    
+                    if(JMailServer.isDebug()) {
+                        JMailServer.printDebug(hostString+" IN>> "+new String(in.getLine(), 0, in.getLineLength()));
+                    }
+                    mySession.addBytesIn(in.getLineLength()+2);
+                    outputLine=serverConnection.processInput(in.getLine(), in.getLineLength());
+                    
+                    if(serverConnection.getCurrState() == JMailSMTPConnection.STATE_BDAT) {
+                        // BDAT: the chunk is copied straight into the message
+                        in.readBytes(serverConnection.getChunkBuffer(), serverConnection.getChunkSize(), mySession);
+                        outputLine=serverConnection.endChunk();
+                    }
+                    else {
+                        // The chunk of a refused BDAT is thrown away
+                        long discardSize=serverConnection.takeDiscardSize();
+                        if(discardSize > 0) {
+                            in.skipBytes(discardSize, mySession);
+                        }
+                    }
+                    
+                    JMailServer.printDebug(hostString+"OUT<< "+outputLine);
+                    if(outputLine != null) {
+                        out.println(outputLine);
+                        mySession.addBytesOut(outputLine.length()+1);
+                    }
+                    mySession.setState(serverConnection.getCurrState());
+                    
+                    if(serverConnection.getCurrState() == JMailSMTPConnection.STATE_END) {
+                        break;
+                    }
+                    
+                    // PIPELINING: only send the replies once every command
+                    // already received has been processed
+                    if(! in.ready()) {
+                        out.flush();
+                    }
+                }
+            }
+            catch(IOException e) {
+                System.err.println("ServerSMTP: Failed to read/write to client");
+            }
+        }
+        finally {
+            if(serverConnection != null) {
+                // Throw away any partly received message
+                try {
+                    serverConnection.abortSession();
+                }
+                catch(RuntimeException e) {
+                    System.err.println("ServerSMTP: Failed to throw away partly received message");
+                }
+            }
+            
+            try {
+                if(out != null) {
+                    out.close();
+                }
+                if(in != null) {
+                    in.close();
+                }
+                mySocket.close();
+            }
+            catch(IOException e) {
+                System.err.println("ServerSMTP: Failed to close client connection");
+            }
+            
+            try {
+                myParent.removeSession(mySession);
+            }
+            catch(JMailThreadAccessDeniedException e) {
+                System.err.println("ServerSMTP: Not allowed to decrement ServerThread count");
+            }
+            
+            System.err.println("ServerSMTP: Connection closed to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
+        }
+    }
+}
+
+/** This class is responsible for storing and delivering mail messages which
+ *  are received on SMTP_PORT */
+class JMailSMTPQueue {
+    /** Vector of SMTP messages waiting to be dequeued */
+    private Vector myQueue=null;
+    /** Write-ahead log of the messages in [myQueue] */
+    private JMailQueueJournal myJournal=null;
+    /** Workers which deliver the messages */
+    private JMailDeliveryPool myPool=null;
+    /** Connections to remote SMTP servers kept open between deliveries */
+    private JMailSMTPClientPool myClientPool=new JMailSMTPClientPool();
+    /** Thread making new connections to remote SMTP servers */
+    private JMailSMTPConnector myConnector=null;
+    /** Messages waiting to be retried, ordered by when they are next due */
+    private DelayQueue retryQueue=new DelayQueue();
+    /** Number of messages delivered */
+    private AtomicLong deliveredCount=new AtomicLong(0);
+    /** Total and largest time (nanosecs) from acceptance to delivery */
+    private AtomicLong totalLatency=new AtomicLong(0);
+    private AtomicLong maxLatency=new AtomicLong(0);
+    /** Number of messages given up on after QUEUE_MAX_AGE */
+    private AtomicLong expiredCount=new AtomicLong(0);
+    
+    public JMailSMTPQueue() {
+        this.myQueue=new Vector();
+    }
+    
+    /** This method opens the queue journal, and puts any messages
+     *  which were not delivered before the server stopped back in the queue
+     * @param file the journal file
+     * @param doSync whether messages are forced to disk before being accepted
+     */
+    public void openJournal(File file, boolean doSync) {
+        JMailQueueJournal journal=new JMailQueueJournal(file, doSync);
+        
+        try {
+            Vector recovered=journal.open();
+            myQueue.addAll(recovered);
+            // Retried on the first sweep once delivery has started
+            retryQueue.addAll(recovered);
+            myJournal=journal;
+            sweepSpool(recovered);
+        }
+        catch(IOException e) {
+            System.err.println("SMTPQueue: Failed to open queue journal; messages will not survive a restart");
+        }
+    }
+    
+    /** This method deletes the spool files left by messages which were
+     *  still being received, or not yet accepted, when the server stopped.
+     *  The spool files of the messages recovered from the journal are kept.
+     * @param recovered Vector of JMailSMTPMessage recovered from the journal
+     */
+    private void sweepSpool(Vector recovered) {
+        HashSet inUse=new HashSet();
+        for(int i=0; i<recovered.size(); i++) {
+            JMailMessageBuffer content=((JMailSMTPMessage) recovered.get(i)).getContent();
+            if(content.isSpooled()) {
+                inUse.add(content.getSpoolFile().getName());
+            }
+        }
+        
+        int count=0;
+        File dir=JMailServer.fileio.getSpoolDir();
+        String[] names=dir.list();
+        for(int i=0; names != null && i<names.length; i++) {
+            if(names[i].endsWith(JMailMessageBuffer.SPOOL_FILEEXT) && ! inUse.contains(names[i]) && new File(dir, names[i]).delete()) {
+                count++;
+            }
+        }
+        if(count > 0) {
+            System.err.println("SMTPQueue: Deleted "+count+" unused spool file(s)");
+        }
+    }
+    
+    public JMailQueueJournal getJournal() {
+        return myJournal;
+    }
+    
+    /** This method starts the delivery workers
+     * @param workers number of workers
+     * @param isVirtual whether the workers run on virtual threads
+     */
+    public void startDelivery(int workers, boolean isVirtual) {
+        try {
+            JMailSMTPConnector connector=new JMailSMTPConnector(this, myClientPool);
+            connector.start();
+            myConnector=connector;
+        }
+        catch(IOException e) {
+            System.err.println("SMTPQueue: Failed to start connector; workers will wait for their connects");
+        }
+        
+        JMailDeliveryPool pool=new JMailDeliveryPool(workers, isVirtual);
+        pool.start();
+        myPool=pool;
+    }
+    
+    public JMailDeliveryPool getPool() {
+        return myPool;
+    }
+    
+    public JMailSMTPClientPool getClientPool() {
+        return myClientPool;
+    }
+    
+    public JMailSMTPConnector getConnector() {
+        return myConnector;
+    }
+    
+    /** This method is called by the connector once a connection it was
+     *  asked to make for a message is open, or has failed.  The message is
+     *  handed back to the workers once all its connections are done.
+     * @param currMessage message the connection was made for
+     * @param key next hop key of the server
+     * @param clientConnection the connection, or null if the connect failed
+     */
+    public void connectDone(JMailSMTPMessage currMessage, String key, JMailSMTPClientConnection clientConnection) {
+        if(currMessage.connectDone(key, clientConnection)) {
+            myPool.submit(currMessage);
+        }
+    }
+    
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+    
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+    
+    /** This method returns the messages in the queue, for the admin QUEUE command
+     * @return Enumeration of JMailSMTPMessage
+     */
+    public Enumeration getMessages() {
+        return myQueue.elements();
+    }
+    
+    /** This method returns the average time from a message being accepted
+     *  to it being delivered
+     * @return average latency in millisecs
+     */
+    public double getAverageLatency() {
+        long count=deliveredCount.get();
+        return (count == 0) ? 0 : totalLatency.get()/(count*1000000.0);
+    }
+    
+    /** This method returns the longest time from a message being accepted
+     *  to it being delivered
+     * @return largest latency in millisecs
+     */
+    public double getMaxLatency() {
+        return maxLatency.get()/1000000.0;
+    }
+    
+    /** This method adds a message to the SMTPQueue which will be forwarded to the correct location.
+     *  With LOCAL_DELIVERY=inline a message whose recipients are all local
+     *  users is delivered to them first, and only queued if a mailbox could
+     *  not be written.
+     * @param clientName name of the Client which the SMTPMessage was received from
+     * @param clientIP InetAddress of the
+     * @param sender the email address of the sender
+     * @param recipents Vector of email address to send the message to
+     * @param body body of the SMTPMessage; the queue releases it once the message is delivered
+     * @return true if successful (the message is delivered, or in the journal)<br>
+     * false otherwise (the body has been released)
+     */
+    public boolean addMessage(String HELOName, String clientName, InetAddress clientIP, JMailEmailCombo sender, JMailEmailComboList recipents, JMailMessageBuffer body) {
+        JMailSMTPMessage temp=new JMailSMTPMessage(HELOName, clientName, clientIP, sender, recipents, body);
+        
+        if(JMailServer.LOCAL_DELIVERY.equals("inline") && deliverInline(temp)) {
+            // Nothing left for the queue
+            countDelivered(temp);
+            temp.release();
+            return true;
+        }
+        
+        if(myJournal != null) {
+            try {
+                // The record holds the status of each recipient, so those
+                // delivered inline are not delivered again if it is recovered
+                myJournal.append(temp);
+            }
+            catch(IOException e) {
+                // The client sends it again; only if a mailbox failed inline
+                // can any recipient already have it
+                System.err.println("SMTPQueue: Failed to write queue journal");
+                temp.release();
+                return false;
+            }
+        }
+        
+        myQueue.add(temp);
+        
+        // Deliver straight away rather than waiting for the next sweep
+        if(myPool != null && temp.claim()) {
+            myPool.submit(temp);
+        }
+        return true;
+    }
+    
+    /** This method delivers a message which has just been received to its
+     *  recipients, without going through the queue, if they are all local.
+     *  A message with a remote recipient is left alone, so nothing is
+     *  delivered before it is in the journal.
+     * @param currMessage message received
+     * @return true if there were only local recipients, and all are done with
+     */
+    private boolean deliverInline(JMailSMTPMessage currMessage) {
+        for(int i=0; i<currMessage.getRecipentCount(); i++) {
+            if(JMailServer.routingTable.getRoute(currMessage.getRecipent(i).domain()) != JMailRoutingTable.ROUTE_LOCAL) {
+                // Left for the delivery workers
+                return false;
+            }
+        }
+        
+        boolean isDone=true;
+        JMailSharedBody shared=storeBody(currMessage);
+        if(shared == null) {
+            // Nothing delivered yet; left for the delivery workers
+            return false;
+        }
+        
+        for(int i=0; i<currMessage.getRecipentCount(); i++) {
+            JMailEmailCombo currRcpt=currMessage.getRecipent(i);
+            int status=deliverLocal(currMessage, currRcpt, shared);
+            currMessage.setRecipentStatus(i, status);
+            if(status == JMailSMTPMessage.RCPT_DEFERRED) {
+                isDone=false;
+            }
+        }
+        
+        JMailServer.bodyStore.release(shared);
+        return isDone;
+    }
+    
+    public int getQueueLength() {
+        return myQueue.size();
+    }
+    
+    /** This method is run every QUEUE_INTERVAL millisecs, and hands the
+     *  messages which are due to be retried to the delivery workers.
+     *  New messages are handed over by addMessage, so only messages whose
+     *  delivery failed are looked at, and only once they are due.
+     *  The idle connections to remote SMTP servers are checked as well */
+    public void processQueue() {
+        if(myPool == null) {
+            // Delivery not started yet
+            return;
+        }
+        
+        JMailSMTPMessage currMessage=null;
+        while((currMessage=(JMailSMTPMessage) retryQueue.poll()) != null) {
+            if(currMessage.claim()) {
+                myPool.submit(currMessage);
+            }
+        }
+        
+        myClientPool.sweep();
+    }
+    
+    /** This method is called by a delivery worker when a message could not
+     *  be delivered.  The message is retried after a delay which doubles with
+     *  each attempt, up to QUEUE_RETRY_MAX, less a random part of up to a
+     *  quarter so that messages which failed together are not retried together.
+     *  A message older than QUEUE_MAX_AGE is given up on.
+     * @param currMessage message which could not be delivered
+     */
+    public void deferMessage(JMailSMTPMessage currMessage) {
+        long now=System.currentTimeMillis();
+        
+        if(now-currMessage.getDate().getTime() > JMailServer.QUEUE_MAX_AGE) {
+            System.err.println("SMTPQueue: Giving up on message #"+currMessage.getId()+" from <"+currMessage.getSender().parsed()+"> after "+currMessage.getRetryCount()+" retries");
+            for(int i=0; i<currMessage.getRecipentCount(); i++) {
+                if(currMessage.getRecipentStatus(i) == JMailSMTPMessage.RCPT_DEFERRED) {
+                    currMessage.setRecipentStatus(i, JMailSMTPMessage.RCPT_FAILED);
+                }
+            }
+            removeMessage(currMessage, false);
+            return;
+        }
+        
+        int retries=currMessage.getRetryCount();
+        long delay=JMailServer.QUEUE_RETRY_MIN;
+        for(int i=0; i<retries && delay < JMailServer.QUEUE_RETRY_MAX; i++) {
+            delay*=2;
+        }
+        delay=Math.min(delay, JMailServer.QUEUE_RETRY_MAX);
+        delay-=ThreadLocalRandom.current().nextLong(delay/4+1);
+        
+        currMessage.setRetry(retries+1, now+delay);
+        retryQueue.add(currMessage);
+    }
+    
+    /** This method is called by a delivery worker to deliver a message
+     *  it has claimed to each of its recipients which is still pending or
+     *  deferred.  A local recipient which does not exist is failed.
+     * @param currMessage message to deliver
+     * @return true if every recipient is delivered or failed, and the
+     * message has been taken out of the queue
+     */
+    public boolean deliverMessage(JMailSMTPMessage currMessage) {
+        boolean isDeferred=false;
+        boolean isWaiting=false;
+        JMailEmailCombo currRcpt=null;
+        
+        // Remote recipients are gathered by the server they go to, so each
+        // server is sent the message once for all its recipients
+        LinkedHashMap hops=new LinkedHashMap();
+        
+        // Stored once for all the local recipients
+        JMailSharedBody shared=null;
+        
+        for(int i=0; i<currMessage.getRecipentCount(); i++) {
+            int status=currMessage.getRecipentStatus(i);
+            if(status == JMailSMTPMessage.RCPT_DELIVERED || status == JMailSMTPMessage.RCPT_FAILED) {
+                // Already done with on an earlier attempt
+                continue;
+            }
+            currRcpt=currMessage.getRecipent(i);
+            int route=JMailServer.routingTable.getRoute(currRcpt.domain());
+            
+            if(route == JMailRoutingTable.ROUTE_LOCAL) {
+                // Local email
+                if(shared == null && (shared=storeBody(currMessage)) == null) {
+                    setRecipentStatus(currMessage, i, JMailSMTPMessage.RCPT_DEFERRED);
+                    isDeferred=true;
+                    continue;
+                }
+                status=deliverLocal(currMessage, currRcpt, shared);
+                setRecipentStatus(currMessage, i, status);
+                if(status == JMailSMTPMessage.RCPT_DEFERRED) {
+                    isDeferred=true;
+                }
+            }
+            else {
+                // Remote email
+                JMailNextHop currHop=getNextHop(currRcpt, route);
+                JMailNextHop sameHop=(JMailNextHop) hops.get(currHop.getKey());
+                if(sameHop == null) {
+                    hops.put(currHop.getKey(), currHop);
+                    sameHop=currHop;
+                }
+                sameHop.addRecipent(i);
+            }
+        }
+        
+        if(shared != null) {
+            JMailServer.bodyStore.release(shared);
+        }
+        
+        Iterator hopIterator=hops.values().iterator();
+        while(hopIterator.hasNext()) {
+            JMailNextHop currHop=(JMailNextHop) hopIterator.next();
+            
+            JMailEmailCombo[] recipents=new JMailEmailCombo[currHop.getRecipentCount()];
+            for(int i=0; i<recipents.length; i++) {
+                recipents[i]=currMessage.getRecipent(currHop.getRecipent(i));
+            }
+            
+            // The "for" clause is only given when there is one recipient,
+            // so the others are not disclosed to each other
+            String received=getReceived(currMessage, recipents.length == 1 ? recipents[0] : null);
+            int[] results=sendMessage(currHop, currMessage, recipents, received);
+            if(results == null) {
+                // Connecting; the recipients are sent to once it is done
+                isWaiting=true;
+                continue;
+            }
+            
+            for(int i=0; i<recipents.length; i++) {
+                setRecipentStatus(currMessage, currHop.getRecipent(i), results[i]);
+                if(results[i] == JMailSMTPMessage.RCPT_DEFERRED) {
+                    isDeferred=true;
+                }
+            }
+        }
+        
+        if(isWaiting) {
+            // Handed back to a worker once the connections are open
+            return true;
+        }
+        
+        // Connections are made afresh on the next attempt
+        currMessage.clearConnects();
+        
+        if(isDeferred) {
+            // Retried later, for the deferred recipients only
+            return false;
+        }
+        
+        removeMessage(currMessage, true);
+        return true;
+    }
+    
+    /** This method stores the content of a message for its local recipients.
+     *  It is held for the caller, who releases it once every local recipient
+     *  has been delivered to.
+     * @param currMessage message to deliver
+     * @return the stored content, or null if it could not be stored
+     */
+    private JMailSharedBody storeBody(JMailSMTPMessage currMessage) {
+        try {
+            return JMailServer.bodyStore.add(currMessage.getContent());
+        }
+        catch(IOException e) {
+            System.err.println("SMTPQueue: Failed to store message #"+currMessage.getId()+" for local delivery");
+            return null;
+        }
+    }
+    
+    /** This method adds a message to the mailbox of a local recipient
+     * @param currMessage message to deliver
+     * @param currRcpt local recipient
+     * @param shared stored content of the message
+     * @return RCPT_DELIVERED, RCPT_FAILED if there is no such user, or
+     * RCPT_DEFERRED if the mailbox could not be written
+     */
+    private int deliverLocal(JMailSMTPMessage currMessage, JMailEmailCombo currRcpt, JMailSharedBody shared) {
+        try {
+            JMailUser user=JMailServer.allUsers.getUser(currRcpt.user());
+            JMailServer.printDebug("SMTPQueue: Delivering message #"+currMessage.getId()+" to local user "+currRcpt.user());
+            if(! user.addMessage("Return Path: <"+currMessage.getSender().parsed()+">\r\n"+getReceived(currMessage, currRcpt), shared)) {
+                // Mailbox could not be written; tried again later
+                return JMailSMTPMessage.RCPT_DEFERRED;
+            }
+            return JMailSMTPMessage.RCPT_DELIVERED;
+        }
+        catch(JMailUserNonExistantException e) {
+            // User doesn't exist; retrying will not help
+            System.err.println("SMTPQueue: No such local user <"+currRcpt.parsed()+">; giving up on recipient");
+            return JMailSMTPMessage.RCPT_FAILED;
+        }
+    }
+    
+    /** This method works out the server a remote recipient is handed to
+     * @param currRcpt recipient
+     * @param route route of the recipient's domain
+     * @return next hop, with no recipients added yet
+     */
+    private JMailNextHop getNextHop(JMailEmailCombo currRcpt, int route) {
+        if(route == JMailRoutingTable.ROUTE_NETWORK) {
+            // Host inside local subnet
+            // Forward to that machine:SMTP_PORT
+            return new JMailNextHop(currRcpt.domain(), JMailServer.SMTP_PORT);
+        }
+        // Host outside local subnet
+        // Forward to SMTP_FORWARD_HOST:SMTP_FORWARD_PORT
+        return new JMailNextHop(JMailServer.SMTP_FORWARD_HOST, JMailServer.SMTP_FORWARD_PORT);
+    }
+    
+    /** This method builds the Received header added to a message as it is
+     *  passed on
+     * @param currMessage message being passed on
+     * @param currRcpt recipient for the "for" clause, or null for none
+     * @return header lines, each ending in CRLF
+     */
+    private String getReceived(JMailSMTPMessage currMessage, JMailEmailCombo currRcpt) {
+        String clientName=currMessage.getClientName();
+        return "Received: from "+currMessage.getHELOName()+" ("+((clientName == null) ? "" : clientName+" ")+"["+currMessage.getClientIP().getHostAddress()+"])\r\n"+
+        " by "+JMailServer.myHostname+" (JMail SMTP Server)\r\n"+
+        " with SMTP id <KJFD7SD8FDSJ432FDS@"+JMailServer.myHostname+">"+
+        (currRcpt == null ? ";" : "\r\n for "+currRcpt.parsed()+";")+" "+currMessage.getDate()+"\r\n";
+    }
+    
+    /** This method sets the status of a recipient, and journals it once
+     *  the recipient is delivered or failed so it is not tried again
+     * @param currMessage message the recipient belongs to
+     * @param index index of the recipient
+     * @param status new status
+     */
+    private void setRecipentStatus(JMailSMTPMessage currMessage, int index, int status) {
+        currMessage.setRecipentStatus(index, status);
+        
+        if(myJournal != null && (status == JMailSMTPMessage.RCPT_DELIVERED || status == JMailSMTPMessage.RCPT_FAILED)) {
+            try {
+                myJournal.recipentDone(currMessage, index);
+            }
+            catch(IOException e) {
+                System.err.println("SMTPQueue: Failed to write queue journal");
+            }
+        }
+    }
+    
+    /** This method takes a message out of the queue and the journal
+     * @param temp message which has been delivered or given up on
+     * @param isDelivered whether it was delivered
+     */
+    private void removeMessage(JMailSMTPMessage temp, boolean isDelivered) {
+        temp.finish();
+        if(! myQueue.remove(temp)) {
+            return;
+        }
+        
+        if(isDelivered) {
+            countDelivered(temp);
+        }
+        else {
+            expiredCount.incrementAndGet();
+        }
+        
+        if(myJournal != null) {
+            try {
+                myJournal.remove(temp);
+            }
+            catch(IOException e) {
+                System.err.println("SMTPQueue: Failed to write queue journal");
+            }
+        }
+        temp.release();
+    }
+    
+    /** This method adds a delivered message to the latency figures
+     * @param temp message which has been delivered
+     */
+    private void countDelivered(JMailSMTPMessage temp) {
+        long latency=System.nanoTime()-temp.getAcceptTime();
+        deliveredCount.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max;
+        while(latency > (max=maxLatency.get()) && ! maxLatency.compareAndSet(max, latency)) {
+            // Another worker changed it; try again
+        }
+    }
+    
+    /** This method forwards a mail message to a remote SMTP server, on a
+     *  pooled connection to it if there is one.  Otherwise a new connection
+     *  is asked for, and the worker moves on rather than wait for it; the
+     *  message is handed back once the connect is done.
+     * @param hop server to forward to
+     * @param currMessage message being forwarded
+     * @param recipents recipients of the SMTP message
+     * @param received Received header sent before the content of the message
+     * @return status of each recipient, RCPT_DELIVERED, RCPT_DEFERRED or
+     * RCPT_FAILED; or null if a connection is being made
+     */
+    private int[] sendMessage(JMailNextHop hop, JMailSMTPMessage currMessage, JMailEmailCombo[] recipents, String received) {
+        JMailEmailCombo sender=currMessage.getSender();
+        int[] results=new int[recipents.length];
+        Arrays.fill(results, JMailSMTPMessage.RCPT_DEFERRED);
+        
+        // A connection made for the message on an earlier pass
+        JMailSMTPClientConnection clientConnection=currMessage.takeConnection(hop.getKey());
+        if(clientConnection != null) {
+            runTransaction(clientConnection, sender, recipents, received, currMessage.getContent());
+        }
+        else {
+            if(currMessage.isConnectFailed(hop.getKey())) {
+                return results;
+            }
+            
+            clientConnection=myClientPool.checkOut(hop.getKey());
+            if(clientConnection != null) {
+                runTransaction(clientConnection, sender, recipents, received, currMessage.getContent());
+                if(! clientConnection.isStarted()) {
+                    // The server has dropped the connection since it was last
+                    // used; try again on a new one
+                    clientConnection.close();
+                    clientConnection=null;
+                }
+            }
+            
+            if(clientConnection == null) {
+                if(myConnector != null) {
+                    myConnector.connect(hop, currMessage);
+                    return null;
+                }
+                
+                clientConnection=myClientPool.open(hop.getHost(), hop.getPort(), hop.getKey());
+                if(clientConnection == null) {
+                    return results;
+                }
+                runTransaction(clientConnection, sender, recipents, received, currMessage.getContent());
+            }
+        }
+        
+        for(int i=0; i<recipents.length; i++) {
+            if(clientConnection.isRecipentDelivered(i)) {
+                results[i]=JMailSMTPMessage.RCPT_DELIVERED;
+            }
+            else if(clientConnection.getRecipentReply(i)/100 == 5) {
+                // Permanent refusal of this recipient
+                results[i]=JMailSMTPMessage.RCPT_FAILED;
+            }
+        }
+        
+        myClientPool.checkIn(clientConnection);
+        return results;
+    }
+    
+    /** This method runs one transaction on a connection to a remote SMTP
+     *  server, until the server has answered the message data or the
+     *  connection fails
+     * @param clientConnection connection to the server
+     * @param sender send of the SMTP message
+     * @param recipents recipients of the SMTP message
+     * @param received Received header sent before the content of the message
+     * @param content content of the SMTP message
+     */
+    private void runTransaction(JMailSMTPClientConnection clientConnection, JMailEmailCombo sender, JMailEmailCombo[] recipents, String received, JMailMessageBuffer content) {
+        Socket mySocket=clientConnection.getSocket();
+        BufferedReader in=clientConnection.getReader();
+        PrintWriter out=clientConnection.getWriter();
+        
+        String hostString="SMTPConnect: ["+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort()+"] ";
+        
+        String inputLine=null, outputLine=clientConnection.startTransaction(sender, recipents, received, content);
+        
+        try {
+            if(outputLine != null) {
+                JMailServer.printDebug(hostString+"OUT<< "+outputLine);
+                out.println(outputLine);
+            }
+            
+            while(true) {
+                mySocket.setSoTimeout(clientConnection.getTimeout());
+                if((inputLine=in.readLine()) == null) {
+                    break;
+                }
+                
+                JMailServer.printDebug(hostString+" IN>> "+inputLine);
+                outputLine=clientConnection.processInput(inputLine);
+                
+                if(clientConnection.getCurrState() == JMailSMTPClientConnection.STATE_END ||
+                clientConnection.getCurrState() == JMailSMTPClientConnection.STATE_READY) {
+                    break;
+                }
+                
+                if(outputLine != null) {
+                    // Otherwise more replies are due first
+                    JMailServer.printDebug(hostString+"OUT<< "+outputLine);
+                    out.println(outputLine);
+                }
+                else if(clientConnection.isDataDue()) {
+                    JMailServer.printDebug(hostString+"OUT<< ("+content.length()+" bytes of message data)");
+                    clientConnection.writeData(mySocket.getOutputStream());
+                }
+            }
+            
+            if(inputLine == null) {
+                // Server closed the connection
+                clientConnection.processInput(null);
+            }
+        }
+        catch(SocketTimeoutException e) {
+            System.err.println("SMTPConnect: Timed out waiting for "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
+            clientConnection.processInput(null);
+        }
+        catch(IOException e) {
+            System.err.println("SMTPConnect: Failed to read/write to client");
+            clientConnection.processInput(null);
+        }
+    }
+}
+
+/** This class is the pool of workers which deliver the messages in the
+ *  SMTPQueue.  The queue hands over each message it has claimed, and the
+ *  workers take them in turn, so one slow remote server only holds up the
+ *  worker talking to it. */
+class JMailDeliveryPool {
+    /** Messages claimed for delivery which no worker has taken yet */
+    private LinkedBlockingQueue ready=new LinkedBlockingQueue();
+    /** Number of messages being delivered right now */
+    private AtomicInteger inFlight=new AtomicInteger(0);
+    private int workerCount=0;
+    private boolean isVirtual=false;
+    
+    /** @param workers number of workers
+     * @param isVirtual whether the workers run on virtual threads
+     */
+    public JMailDeliveryPool(int workers, boolean isVirtual) {
+        this.workerCount=workers;
+        this.isVirtual=isVirtual;
+    }
+    
+    /** This method starts the workers */
+    public void start() {
+        ExecutorService executor=null;
+        if(isVirtual) {
+            executor=JMailServer.newVirtualThreadExecutor("JMailDeliveryWorker");
+        }
+        
+        for(int i=0; i<workerCount; i++) {
+            Runnable worker=new Runnable() {
+                public void run() {
+                    work();
+                }
+            };
+            
+            if(executor != null) {
+                executor.execute(worker);
+            }
+            else {
+                Thread temp=new Thread(worker, "JMailDeliveryWorker");
+                temp.setDaemon(true);
+                temp.start();
+            }
+        }
+    }
+    
+    /** This method is run by each worker, and delivers messages until the server stops */
+    private void work() {
+        while(true) {
+            JMailSMTPMessage message=null;
+            try {
+                message=(JMailSMTPMessage) ready.take();
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+            
+            boolean isDelivered=false;
+            boolean isConnected=false;
+            inFlight.incrementAndGet();
+            try {
+                isDelivered=JMailServer.mySMTPQueue.deliverMessage(message);
+            }
+            catch(RuntimeException e) {
+                // Leave the message for the next attempt, and keep the worker going
+                System.err.println("DeliveryPool: Failed to deliver message ("+e+")");
+            }
+            finally {
+                inFlight.decrementAndGet();
+                isConnected=message.unclaim();
+            }
+            
+            if(isConnected) {
+                // Its connections were made while it was being delivered
+                submit(message);
+            }
+            else if(! isDelivered) {
+                // Only once unclaimed, so the retry can claim it
+                JMailServer.mySMTPQueue.deferMessage(message);
+            }
+        }
+    }
+    
+    /** This method hands a claimed message to the workers
+     * @param message message to deliver
+     */
+    public void submit(JMailSMTPMessage message) {
+        ready.add(message);
+    }
+    
+    public int getWorkerCount() {
+        return workerCount;
+    }
+    
+    public int getInFlight() {
+        return inFlight.get();
+    }
+    
+    public int getWaiting() {
+        return ready.size();
+    }
+}
+
+/** This class shares forcing a file to disk between the threads writing to
+ *  it (group commit).  A writer counts each record once it is flushed, then
+ *  waits for it: one caller forces everything written so far while the
+ *  others wait, so many records written at once only cost one sync between
+ *  them.  A ReentrantLock is used rather than a monitor, so a virtual thread
+ *  waiting here does not hold on to its carrier thread. */
+class JMailGroupCommit {
+    private final ReentrantLock myLock=new ReentrantLock();
+    /** Signalled each time a caller has finished forcing the file */
+    private final Condition syncDone=myLock.newCondition();
+    private FileChannel myChannel=null;
+    
+    /** Number of records written so far */
+    private long writtenCount=0;
+    /** Number of records known to be on disk */
+    private long syncedCount=0;
+    /** Whether a caller is currently forcing the file */
+    private boolean isSyncing=false;
+    /** Number of times the file has been forced */
+    private long syncCount=0;
+    
+    public JMailGroupCommit(FileChannel channel) {
+        this.myChannel=channel;
+    }
+    
+    /** This method counts a record which has been flushed to the file
+     * @return number to pass to sync() to wait for the record
+     */
+    public long written() {
+        myLock.lock();
+        try {
+            return ++writtenCount;
+        }
+        finally {
+            myLock.unlock();
+        }
+    }
+    
+    /** This method waits until the first [sequence] records written are on
+     *  disk.  If no other caller is forcing the file, this caller does so
+     *  for every record written so far; otherwise it waits for that caller,
+     *  and checks again.
+     * @param sequence number of records which must be on disk
+     */
+    public void sync(long sequence) throws IOException {
+        while(true) {
+            long target;
+            FileChannel channel;
+            myLock.lock();
+            try {
+                while(isSyncing && syncedCount < sequence) {
+                    try {
+                        syncDone.await();
+                    }
+                    catch(InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted waiting for sync");
+                    }
+                }
+                if(syncedCount >= sequence) {
+                    return;
+                }
+    
+                // Become the one forcing the file
+                isSyncing=true;
+                target=writtenCount;
+                channel=myChannel;
+            }
+            finally {
+                myLock.unlock();
+            }
+    
+            IOException failed=null;
+            try {
+                channel.force(false);
+            }
+            catch(IOException e) {
+                failed=e;
+            }
+    
+            myLock.lock();
+            try {
+                isSyncing=false;
+                syncCount++;
+                if(failed == null && target > syncedCount) {
+                    syncedCount=target;
+                }
+                syncDone.signalAll();
+            }
+            finally {
+                myLock.unlock();
+            }
+    
+            if(failed != null) {
+                throw failed;
+            }
+        }
+    }
+    
+    /** This method swaps in a new file which already holds, on disk,
+     *  everything written so far.  It waits for a sync of the old file
+     *  which is in progress, so the old file can be closed afterwards.
+     * @param channel the new file
+     */
+    public void replace(FileChannel channel) {
+        myLock.lock();
+        try {
+            while(isSyncing) {
+                syncDone.awaitUninterruptibly();
+            }
+            myChannel=channel;
+            syncedCount=writtenCount;
+        }
+        finally {
+            myLock.unlock();
+        }
+    }
+    
+    public long getWrittenCount() {
+        myLock.lock();
+        try {
+            return writtenCount;
+        }
+        finally {
+            myLock.unlock();
+        }
+    }
+    
+    public long getSyncCount() {
+        myLock.lock();
+        try {
+            return syncCount;
+        }
+        finally {
+            myLock.unlock();
+        }
+    }
+}
+
+/** This class is the write-ahead log of JMailSMTPQueue.
+ *  Every accepted message is appended to the journal, and forced to disk,
+ *  before the client is told it has been accepted; a record is appended
+ *  again once it has been delivered.  On start up the messages with no
+ *  delivered record are read back into the queue.
+ *  Each record ends with a CRC32 of its bytes, so a record which was only
+ *  partly written when the server stopped is found and thrown away.
+ *  A message which was spooled to disk is not copied into the journal; its
+ *  record names the spool file instead, which is kept until the message is
+ *  delivered.  Records are built before the journal is locked, so only the
+ *  copy into the file happens while other sessions wait.
+ *  Once the records of delivered messages take up more room than those
+ *  still waiting, the journal is rewritten holding only the waiting ones. */
+class JMailQueueJournal {
+    /** Record holding an accepted message */
+    private static final byte RECORD_ADD=1;
+    /** Record marking a message as delivered */
+    private static final byte RECORD_DONE=2;
+    /** Record giving the final status of one recipient of a message */
+    private static final byte RECORD_RCPT=3;
+    /** Record holding an accepted message whose content is in a spool file */
+    private static final byte RECORD_SPOOLED=4;
+    /** The journal is rewritten once it holds more than this many bytes of
+     *  delivered records, and more of them than of undelivered ones */
+    private static final long COMPACT_SIZE=1048576;
+    /** Largest header accepted when reading a record back */
+    private static final int META_MAX=1048576;
+    
+    private File myFile=null;
+    private FileOutputStream myFileOut=null;
+    private OutputStream myOut=null;
+    /** Shares forcing the journal to disk between sessions */
+    private JMailGroupCommit myCommit=null;
+    /** Whether records are forced to disk before addMessage returns */
+    private boolean doSync=true;
+    /** Lock held while writing to the journal */
+    private final ReentrantLock writeLock=new ReentrantLock();
+    
+    /** Id given to the next message appended */
+    private final AtomicLong nextId=new AtomicLong(1);
+    /** Map of id to JMailSMTPMessage not yet delivered, in the order accepted */
+    private LinkedHashMap liveMessages=new LinkedHashMap();
+    /** Map of id to the size in bytes of the record of each undelivered message */
+    private HashMap liveSizes=new HashMap();
+    /** Total size of the records of undelivered messages */
+    private long liveBytes=0;
+    /** Size of the journal file, up to the end of the last whole record */
+    private long fileLength=0;
+    /** Whether a failed write may have left part of a record after [fileLength],
+     *  which must be cut off before anything else is written */
+    private boolean isTorn=false;
+    /** Whether a damaged record was found before the end of the journal when it was opened */
+    private boolean isDamaged=false;
+    /** Number of times the journal has been rewritten */
+    private int compactCount=0;
+    
+    public JMailQueueJournal(File file, boolean doSync) {
+        this.myFile=file;
+        this.doSync=doSync;
+    }
+    
+    /** This method reads the messages left in the journal, then rewrites
+     *  it holding only those messages, ready for appending
+     * @return Vector of JMailSMTPMessage which are not yet delivered
+     * @throws IOException if the journal could not be rewritten
+     */
+    public Vector open() throws IOException {
+        writeLock.lock();
+        try {
+            // Map of id to JMailSMTPMessage, in the order they were accepted
+            LinkedHashMap messages=new LinkedHashMap();
+    
+            if(myFile.exists()) {
+                DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(myFile), JMailMessageBuffer.CHUNK_SIZE));
+                try {
+                    readRecords(in, messages);
+                }
+                finally {
+                    in.close();
+                }
+            }
+    
+            if(isDamaged) {
+                // Keep the journal as it was, as the records after the damage are lost
+                File damaged=new File(myFile.getPath()+".damaged");
+                damaged.delete();
+                if(myFile.renameTo(damaged)) {
+                    System.err.println("Queue Journal: Damaged journal kept as "+damaged.getName());
+                }
+                else {
+                    System.err.println("Queue Journal: Could not keep damaged journal as "+damaged.getName());
+                }
+            }
+    
+            Iterator i=messages.values().iterator();
+            while(i.hasNext()) {
+                JMailMessageBuffer content=((JMailSMTPMessage) i.next()).getContent();
+                if(content.isSpooled() && ! content.getSpoolFile().exists()) {
+                    System.err.println("Queue Journal: Spool file "+content.getSpoolFile().getName()+" is missing; message discarded");
+                    i.remove();
+                }
+            }
+    
+            rewrite(messages);
+    
+            System.err.println("Queue Journal: "+messages.size()+" undelivered message(s) recovered");
+            return new Vector(messages.values());
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /** This method writes [messages] to a new journal, forces it to disk and
+     *  puts it in place of the current one.  It is called with writeLock held.
+     * @param messages map of id to JMailSMTPMessage to keep
+     * @throws IOException if the new journal could not be written; the
+     *         current one is left in use
+     */
+    private void rewrite(LinkedHashMap messages) throws IOException {
+        File temp=new File(myFile.getPath()+".new");
+        FileOutputStream fileOut=new FileOutputStream(temp);
+        OutputStream out=new BufferedOutputStream(fileOut, JMailMessageBuffer.CHUNK_SIZE);
+        HashMap sizes=new HashMap();
+        long length=0;
+    
+        try {
+            Iterator i=messages.values().iterator();
+            while(i.hasNext()) {
+                JMailSMTPMessage message=(JMailSMTPMessage) i.next();
+                byte[] record=makeRecord(RECORD_ADD, message.getId(), message, null);
+                out.write(record);
+                sizes.put(Long.valueOf(message.getId()), Long.valueOf(record.length));
+                length+=record.length;
+            }
+            out.flush();
+            fileOut.getChannel().force(true);
+    
+            if(! temp.renameTo(myFile)) {
+                throw new IOException("Could not replace "+myFile);
+            }
+        }
+        catch(IOException e) {
+            fileOut.close();
+            temp.delete();
+            throw e;
+        }
+    
+        FileOutputStream oldOut=myFileOut;
+        myFileOut=fileOut;
+        myOut=out;
+        if(myCommit == null) {
+            myCommit=new JMailGroupCommit(fileOut.getChannel());
+        }
+        else {
+            myCommit.replace(fileOut.getChannel());
+        }
+        if(oldOut != null) {
+            oldOut.close();
+        }
+    
+        liveMessages=new LinkedHashMap(messages);
+        liveSizes=sizes;
+        liveBytes=length;
+        fileLength=length;
+        isTorn=false;
+    }
+    
+    /** This method reads records until the end of the journal, or the first
+     *  damaged record.  A damaged last record was only partly written, and
+     *  is dropped; one with more records after it means the journal is
+     *  damaged, and sets isDamaged.
+     * @param in stream to read the journal from
+     * @param messages map the undelivered messages are put in
+     */
+    private void readRecords(DataInputStream in, LinkedHashMap messages) throws IOException {
+        CRC32 crc=new CRC32();
+        DataInputStream checked=new DataInputStream(new CheckedInputStream(in, crc));
+        byte[] buffer=new byte[JMailMessageBuffer.CHUNK_SIZE];
+        // Offset of the record being read
+        long offset=0;
+    
+        while(true) {
+            crc.reset();
+            JMailMessageBuffer body=null;
+    
+            try {
+                int type=checked.read();
+                if(type == -1) {
+                    return;
+                }
+    
+                long id=checked.readLong();
+                int metaLength=checked.readInt();
+                if(metaLength < 0 || metaLength > META_MAX) {
+                    throw new IOException("Bad header length");
+                }
+                byte[] meta=new byte[metaLength];
+                checked.readFully(meta);
+    
+                long bodyLength=checked.readLong();
+                if(bodyLength < 0) {
+                    throw new IOException("Bad body length");
+                }
+                long recordLength=29+metaLength+bodyLength;
+                body=new JMailMessageBuffer();
+                while(bodyLength > 0) {
+                    int count=(int) Math.min(bodyLength, buffer.length);
+                    checked.readFully(buffer, 0, count);
+                    body.write(buffer, 0, count);
+                    bodyLength-=count;
+                }
+                body.close();
+    
+                long expected=crc.getValue();
+                if(in.readLong() != expected) {
+                    if(in.read() == -1) {
+                        // Nothing follows, so it is the last record, only partly on disk
+                        throw new EOFException();
+                    }
+                    throw new IOException("Bad checksum");
+                }
+                offset+=recordLength;
+    
+                if(id >= nextId.get()) {
+                    nextId.set(id+1);
+                }
+                if(type == RECORD_ADD || type == RECORD_SPOOLED) {
+                    messages.put(Long.valueOf(id), readMessage(id, meta, (type == RECORD_ADD) ? body : null));
+                    if(type == RECORD_ADD) {
+                        body=null;
+                    }
+                }
+                else if(type == RECORD_DONE) {
+                    JMailSMTPMessage done=(JMailSMTPMessage) messages.remove(Long.valueOf(id));
+                    if(done != null) {
+                        done.release();
+                    }
+                }
+                else if(type == RECORD_RCPT) {
+                    JMailSMTPMessage message=(JMailSMTPMessage) messages.get(Long.valueOf(id));
+                    DataInputStream metaIn=new DataInputStream(new ByteArrayInputStream(meta));
+                    int index=metaIn.readInt();
+                    int status=metaIn.readByte();
+                    if(message != null && index >= 0 && index < message.getRecipentCount()) {
+                        message.setRecipentStatus(index, status);
+                    }
+                }
+            }
+            catch(EOFException e) {
+                // The last record was only partly written
+                System.err.println("Queue Journal: Discarding partly written record at end of journal");
+                return;
+            }
+            catch(IOException e) {
+                // Records follow which cannot be found again, so they are lost
+                System.err.println("Queue Journal: Journal damaged at offset "+offset+" ("+e.getMessage()+"); records after it are lost");
+                isDamaged=true;
+                return;
+            }
+            finally {
+                if(body != null) {
+                    body.release();
+                }
+            }
+        }
+    }
+    
+    /** This method rebuilds a message from the header of an ADD record
+     * @param body content of the message, or null if the header names its spool file
+     */
+    private JMailSMTPMessage readMessage(long id, byte[] meta, JMailMessageBuffer body) throws IOException {
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(meta));
+    
+        Date date=new Date(in.readLong());
+        String HELOName=in.readUTF();
+        String clientName=in.readUTF();
+        byte[] address=new byte[in.readUnsignedByte()];
+        in.readFully(address);
+        InetAddress clientIP=InetAddress.getByAddress(address);
+        if(clientName.equals("")) {
+            // Not known when the message was written
+            clientName=null;
+        }
+        JMailEmailCombo sender=readCombo(in);
+    
+        JMailEmailComboList recipents=new JMailEmailComboList();
+        int count=in.readInt();
+        int[] status=new int[count];
+        for(int i=0; i<count; i++) {
+            recipents.add(readCombo(in));
+            status[i]=in.readByte();
+        }
+    
+        if(body == null) {
+            body=JMailMessageBuffer.openSpool(new File(JMailServer.fileio.getSpoolDir(), in.readUTF()));
+        }
+    
+        JMailSMTPMessage toRet=new JMailSMTPMessage(HELOName, clientName, clientIP, sender, recipents, body, date);
+        toRet.setId(id);
+        for(int i=0; i<count; i++) {
+            toRet.setRecipentStatus(i, status[i]);
+        }
+        return toRet;
+    }
+    
+    private static JMailEmailCombo readCombo(DataInputStream in) throws IOException {
+        return new JMailEmailCombo(in.readUTF(), in.readUTF(), in.readUTF());
+    }
+    
+    private static void writeCombo(DataOutputStream out, JMailEmailCombo combo) throws IOException {
+        out.writeUTF(combo.unparsed());
+        out.writeUTF(combo.user());
+        out.writeUTF(combo.domain());
+    }
+    
+    /** This method builds one record, ready to be copied into the journal.
+     *  A message held in memory is copied into the record; a spooled one
+     *  is written as a RECORD_SPOOLED naming its spool file.
+     * @param type RECORD_ADD, RECORD_DONE or RECORD_RCPT
+     * @param id id of the message
+     * @param message message to write, only used for RECORD_ADD
+     * @param meta header of the record, if not RECORD_ADD
+     * @return bytes of the record, including its checksum
+     */
+    private static byte[] makeRecord(byte type, long id, JMailSMTPMessage message, byte[] meta) throws IOException {
+        JMailMessageBuffer body=null;
+    
+        if(type == RECORD_ADD) {
+            ByteArrayOutputStream metaBytes=new ByteArrayOutputStream(256);
+            DataOutputStream metaOut=new DataOutputStream(metaBytes);
+            metaOut.writeLong(message.getDate().getTime());
+            metaOut.writeUTF(message.getHELOName());
+            String clientName=message.getClientName();
+            metaOut.writeUTF((clientName == null) ? "" : clientName);
+            byte[] address=message.getClientIP().getAddress();
+            metaOut.writeByte(address.length);
+            metaOut.write(address);
+            writeCombo(metaOut, message.getSender());
+    
+            metaOut.writeInt(message.getRecipentCount());
+            for(int i=0; i<message.getRecipentCount(); i++) {
+                writeCombo(metaOut, message.getRecipent(i));
+                metaOut.writeByte(message.getRecipentStatus(i));
+            }
+    
+            body=message.getContent();
+            if(body.isSpooled()) {
+                type=RECORD_SPOOLED;
+                metaOut.writeUTF(body.getSpoolFile().getName());
+                body=null;
+            }
+            meta=metaBytes.toByteArray();
+        }
+    
+        ByteArrayOutputStream record=new ByteArrayOutputStream(meta.length+29+((body == null) ? 0 : (int) body.length()));
+        CRC32 crc=new CRC32();
+        DataOutputStream out=new DataOutputStream(new CheckedOutputStream(record, crc));
+        out.writeByte(type);
+        out.writeLong(id);
+        out.writeInt(meta.length);
+        out.write(meta);
+        out.writeLong((body == null) ? 0 : body.length());
+        if(body != null) {
+            body.writeTo(out);
+        }
+    
+        long value=crc.getValue();
+        new DataOutputStream(record).writeLong(value);
+        return record.toByteArray();
+    }
+    
+    /** This method appends an accepted message to the journal, and returns
+     *  once it is on disk.  The message is given its id.
+     * @param message message which has been accepted
+     * @throws IOException if the message could not be written
+     */
+    public void append(JMailSMTPMessage message) throws IOException {
+        JMailMessageBuffer content=message.getContent();
+        if(doSync && content.isSpooled()) {
+            // The record only names the spool file, so it must be on disk first
+            content.force();
+        }
+    
+        message.setId(nextId.getAndIncrement());
+        byte[] record=makeRecord(RECORD_ADD, message.getId(), message, null);
+    
+        long sequence;
+        writeLock.lock();
+        try {
+            writeRecord(record);
+            liveMessages.put(Long.valueOf(message.getId()), message);
+            liveSizes.put(Long.valueOf(message.getId()), Long.valueOf(record.length));
+            liveBytes+=record.length;
+            // Only counted once flushed, so a sync which sees it includes it
+            sequence=myCommit.written();
+        }
+        finally {
+            writeLock.unlock();
+        }
+    
+        if(doSync) {
+            myCommit.sync(sequence);
+        }
+    }
+    
+    /** This method records the final status of one recipient of a message.
+     *  It is not forced to disk; at worst the recipient is tried again.
+     * @param message message the recipient belongs to
+     * @param index index of the recipient
+     */
+    public void recipentDone(JMailSMTPMessage message, int index) throws IOException {
+        ByteArrayOutputStream metaBytes=new ByteArrayOutputStream(5);
+        DataOutputStream metaOut=new DataOutputStream(metaBytes);
+        metaOut.writeInt(index);
+        metaOut.writeByte(message.getRecipentStatus(index));
+        byte[] record=makeRecord(RECORD_RCPT, message.getId(), null, metaBytes.toByteArray());
+    
+        writeLock.lock();
+        try {
+            writeRecord(record);
+            myCommit.written();
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /** This method records that a message has been delivered.
+     *  It is not forced to disk; at worst the message is delivered again.
+     * @param message message which has been delivered
+     */
+    public void remove(JMailSMTPMessage message) throws IOException {
+        byte[] record=makeRecord(RECORD_DONE, message.getId(), null, new byte[0]);
+    
+        writeLock.lock();
+        try {
+            writeRecord(record);
+            myCommit.written();
+    
+            liveMessages.remove(Long.valueOf(message.getId()));
+            Long size=(Long) liveSizes.remove(Long.valueOf(message.getId()));
+            if(size != null) {
+                liveBytes-=size.longValue();
+            }
+    
+            long deadBytes=fileLength-liveBytes;
+            if(deadBytes > COMPACT_SIZE && deadBytes > liveBytes) {
+                compact();
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /** This method appends one record to the journal.  It is called with
+     *  writeLock held.  If the write fails, whatever part of the record
+     *  reached the file is cut off, so the next record does not follow a
+     *  damaged one.
+     * @param record bytes of the record
+     * @throws IOException if the record could not be written
+     */
+    private void writeRecord(byte[] record) throws IOException {
+        if(isTorn) {
+            repair();
+        }
+    
+        try {
+            myOut.write(record);
+            myOut.flush();
+        }
+        catch(IOException e) {
+            // Throw away what is left in the buffer with the failed write
+            myOut=new BufferedOutputStream(myFileOut, JMailMessageBuffer.CHUNK_SIZE);
+            isTorn=true;
+            try {
+                repair();
+            }
+            catch(IOException e2) {
+                System.err.println("Queue Journal: Failed to cut off partly written record ("+e2.getMessage()+")");
+            }
+            throw e;
+        }
+        fileLength+=record.length;
+    }
+    
+    /** This method cuts the journal back to the end of its last whole record,
+     *  or failing that rewrites it.  It is called with writeLock held.
+     * @throws IOException if neither could be done; nothing more may be written
+     */
+    private void repair() throws IOException {
+        try {
+            myFileOut.getChannel().truncate(fileLength);
+            isTorn=false;
+        }
+        catch(IOException e) {
+            rewrite(liveMessages);
+        }
+    }
+    
+    /** This method rewrites the journal holding only the undelivered
+     *  messages.  It is called with writeLock held. */
+    private void compact() {
+        try {
+            rewrite(liveMessages);
+            compactCount++;
+            JMailServer.printDebug("Queue Journal: Rewritten holding "+liveMessages.size()+" undelivered message(s)");
+        }
+        catch(IOException e) {
+            // Keep appending to the current journal, and try again next time
+            System.err.println("Queue Journal: Failed to rewrite journal ("+e.getMessage()+")");
+        }
+    }
+    
+    public long getWrittenCount() {
+        return myCommit.getWrittenCount();
+    }
+    
+    public long getSyncCount() {
+        return myCommit.getSyncCount();
+    }
+    
+    public int getCompactCount() {
+        writeLock.lock();
+        try {
+            return compactCount;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /** @return size in bytes of the journal file */
+    public long getLength() {
+        writeLock.lock();
+        try {
+            return fileLength;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+}
+
+//////////////////////////////////////////////////////////////////////
+
+/** This Connection is responsible for handling the protocol of a POP3 connection.
+ *  There is a unique Connection object for each POP3 connection. */
+class JMailPOP3Connection {
+    /** This state is when waiting for USER */
+    public static final int STATE_AUTH_USER=10;
+    /** This state is when waiting for PASS */
+    public static final int STATE_AUTH_PASS=15;
+    /** This state is when waiting for any query */
+    public static final int STATE_TRANSACTION=20;
+    /** This state is when commiting all changes on clean shutdown */
+    public static final int STATE_UPDATE=30;
+    /** This state is when QUIT cmd has been given */
+    public static final int STATE_END=3000;
+    
+    //////////////////////////////////////////////////
+    
+    /** This variable holds the Socket relating to the connection */
+    private Socket relatedSocket=null;
+    /** This variable holds the current state of the connection */
+    private int currState=0;
+    
+    /** username of currently logged in user */
+    private String myUserName=null;
+    /** JMailUser class relating to the username */
+    private JMailUser myUser=null;
+    /** Whether this connection set [myUser] to be in a POP3 session */
+    private boolean hasSessionLock=false;
+    /** Tokenizer reused for every line received */
+    private JMailCommand myCommand=new JMailCommand();
+    /** Whether the line being received was too long, and its start has been
+     *  thrown away by processPartialLine() */
+    private boolean inLongLine=false;
+    
+    public JMailPOP3Connection(Socket thatSocket) {
+        this.currState=STATE_AUTH_USER;
+        this.relatedSocket=thatSocket;
+    }
+    
+    public int getCurrState() {
+        return currState;
+    }
+    
+    /** This method processes a line received from the client
+     * @param theInput bytes of the line, null for the welcome message
+     * @param length number of bytes in the line
+     * @return string message to return to client
+     */
+    public String processInput(byte[] theInput, int length) {
+        if(inLongLine) {
+            // The rest of the line was thrown away as it arrived
+            inLongLine=false;
+            return "-ERR Line too long\r";
+        }
+        
+        if(theInput != null && myCommand.parse(theInput, length) == JMailCommand.QUIT) {
+            try {
+                if(currState == STATE_TRANSACTION) {
+                    commitChanges();
+                }
+                
+                currState=STATE_END;
+                return "+OK Good for you; Smoking is bad";
+            }
+            catch(Exception e) {
+                // Changes could not be committed
+            }
+        }
+        
+        if(JMailServer.isOnline) {
+            // Server is Online
+            return processStates(theInput == null ? null : myCommand)+"\r";
+        }
+        
+        // Server is offline
+        return "-ERR Service Not Available\r";
+    }
+    
+    /** This method is given part of a line too long to be collected whole.
+     *  No command is that long, so the part is thrown away and the line is
+     *  refused once it ends
+     * @param part bytes of the line
+     * @param length number of bytes in [part]
+     */
+    public void processPartialLine(byte[] part, int length) {
+        inLongLine=true;
+    }
+    
+    /** This method processes the inputString.
+     * Checking whether the protocol is being followed.
+     * @param theInput string to parse
+     * @return string message to return to client
+     */
+    private String processStates(JMailCommand theInput) {
+        if(theInput == null) {
+            // Welcome message
+            return "+OK JMail POP3 Server ready on "+JMailServer.myHostname;
+        }
+        
+        // Something useful to parse
+        int verb=theInput.getVerb();
+        
+        // HELO
+        if(verb == JMailCommand.USER) {
+            if(currState == STATE_AUTH_USER || currState == STATE_AUTH_PASS) {
+                if(theInput.hasArg()) {
+                    myUserName=theInput.getArg();
+                    currState=STATE_AUTH_PASS;
+                    return "+OK Welcome "+myUserName+" pleased to meet you";
+                }
+                // Problem with number of args
+                return "-ERR USER requires arg";
+            }
+            
+            return "-ERR Not in AUTH State";
+        }
+        else if(verb == JMailCommand.PASS) {
+            if(currState == STATE_AUTH_PASS) {
+                if(theInput.hasArg()) {
+                    String testPass=theInput.getArg();
+                    try {
+                        myUser=JMailServer.allUsers.getUser(myUserName);
+                        if(checkPass(testPass)) {
+                            currState=STATE_TRANSACTION;
+                            if(myUser.isInPOP3Session()) {
+                                currState=STATE_AUTH_USER;
+                                return "-ERR "+myUserName+" already logged in; try again later";
+                            }
+                            myUser.setInPOP3Session(true);
+                            hasSessionLock=true;
+                            return "+OK "+myUserName+" login success";
+                        }
+                    }
+                    catch(JMailUserNonExistantException e) {
+                        return "-ERR "+myUserName+" login failure";
+                    }
+                }
+                // Problem with number of args
+                return "-ERR PASS requires arg";
+            }
+            return "-ERR Not in AUTH State";
+        }
+        // STAT
+        else if(verb == JMailCommand.STAT) {
+            try {
+                return getSummaryDropListing();
+            }
+            catch(JMailMessageNonExistantException e) {
+                return "-ERR STAT Error";
+            }
+        }
+        // LIST
+        else if(verb == JMailCommand.LIST) {
+            if(currState == STATE_TRANSACTION) {
+                if(theInput.hasArg()) {
+                    // An argument exists
+                    int messageNo=theInput.parseInt(theInput.getArgStart(), theInput.getEnd());
+                    
+                    try {
+                        // Get drop listing of specific message
+                        return getDropListing(messageNo-1);
+                    }
+                    catch(JMailMessageNonExistantException e) {
+                        return "-ERR LIST bad arg";
+                    }
+                }
+                // No argument exists
+                try {
+                    return getDropListing();
+                }
+                catch(JMailMessageNonExistantException e) {
+                    return "-ERR LIST Error";
+                }
+            }
+            return "-ERR AUTH first";
+        }
+        // RETR
+        else if(verb == JMailCommand.RETR) {
+            if(currState == STATE_TRANSACTION) {
+                if(theInput.hasArg()) {
+                    // An argument exists
+                    int messageNo=theInput.parseInt(theInput.getArgStart(), theInput.getEnd());
+                    
+                    try {
+                        if(myUser.getMessageState(messageNo-1) == JMailPOP3Message.STATE_NORMAL) {
+                            // Get content of specific message
+                            return "+OK ("+myUser.getMessageBody(messageNo-1).length()+" octets)\r\n"+myUser.getMessageBody(messageNo-1);
+                        }
+                        else {
+                            return "-ERR RETR message marked";
+                        }
+                    }
+                    catch(JMailMessageNonExistantException e) {
+                        return "-ERR RETR bad arg";
+                    }
+                }
+                // No argument exists
+                return "-ERR RETR requires arg";
+            }
+            return "-ERR AUTH first";
+        }
+        // TOP
+        else if(verb == JMailCommand.TOP) {
+            if(currState == STATE_TRANSACTION) {
+                if(theInput.hasArg()) {
+                    // An argument exists
+                    int split=theInput.indexOf(' ', theInput.getArgStart());
+                    
+                    if(split > theInput.getArgStart() && split+1 < theInput.getEnd()) {
+                        // Parse first argument
+                        int messageNo=theInput.parseInt(theInput.getArgStart(), split);
+                        
+                        // Parse second argument
+                        int bodySize=theInput.parseInt(split+1, theInput.getEnd());
+                        
+                        try {
+                            return getTopListing(messageNo-1, bodySize);
+                        }
+                        catch(JMailMessageNonExistantException e) {
+                            return "-ERR TOP message non-existant";
+                        }
+                    }
+                    return "-ERR TOP bad arg";
+                }
+                // No argument exists
+                return "-ERR TOP requires arg";
+            }
+            return "-ERR AUTH first";
+        }
+        // NOOP
+        else if(verb == JMailCommand.NOOP) {
+            if(currState == STATE_TRANSACTION) {
+                return "+OK NOOP is good";
+            }
+        }
+        // RSET
+        else if(verb == JMailCommand.RSET) {
+            if(currState == STATE_TRANSACTION) {
+                try {
+                    resetAllMessages();
+                    return "+OK Tis Done";
+                }
+                catch(JMailMessageNonExistantException e) {
+                    return "-ERR Could not";
+                }
+            }
+            return "-ERR AUTH first";
+        }
+        // DELE
+        else if(verb == JMailCommand.DELE) {
+            if(currState == STATE_TRANSACTION) {
+                if(theInput.hasArg()) {
+                    // An argument exists
+                    int messageNo=theInput.parseInt(theInput.getArgStart(), theInput.getEnd());
+                    
+                    try {
+                        if(myUser.getMessageState(messageNo-1) != JMailPOP3Message.STATE_MARKED) {
+                            // Mark specified message
+                            myUser.setMessageState(messageNo-1, JMailPOP3Message.STATE_MARKED);
+                            return "+OK DELE marked message "+messageNo;
+                        }
+                        return "-ERR DELE already deleted";
+                    }
+                    catch(JMailMessageNonExistantException e) {
+                        return "-ERR DELE bad arg";
+                    }
+                }
+                // No argument exists
+                return "-ERR DELE requires arg";
+            }
+            return "-ERR AUTH first";
+        }
+        
+        // Command unrecognised
+        return "-ERR Command unrecognised";
+    }
+    
+    /* This method checks whether [thePass] is valid for [myUser] */
+    /** This method checks whether the user password is correct
+     * @param thePass cleartext password of the user
+     * @return true if password is correct<br>
+     * false otherwise
+     */
+    private boolean checkPass(String thePass) {
+        if(thePass.equals(myUser.getPass())) {
+            return true;
+        }
+        return false;
+    }
+    
+    /** When the user sends 'STAT' to the server, the server
+     *  returns the total size of all unmarked messages
+     * @return string containing the total size of all unmarked messages
+     */
+    private String getSummaryDropListing() throws JMailMessageNonExistantException {
+        String toReturn=null;
+        int totalSize=0;
+        int count=0;
+        
+        for(int i=0; i<myUser.getMessageCount(); i++) {
+            int tempState=myUser.getMessageState(i);
+            if(tempState == JMailPOP3Message.STATE_NORMAL) {
+                int tempSize=myUser.getMessage(i).length();
+                totalSize+=tempSize;
+                count++;
+            }
+        }
+        
+        toReturn="+OK "+count+" "+totalSize;
+        
+        return toReturn;
+    }
+    
+    /** When the user sends 'LIST' to the server, the server
+     *  returns the total size of all unmarked messages along
+     *  with the size of each message
+     * @return string containing total size of all unmarked messages and size of each message
+     */
+    private String getDropListing() throws JMailMessageNonExistantException {
+        String toReturn=null;
+        String middle="";
+        int totalSize=0;
+        int count=0;
+        int messageCount=0;
+        
+        for(int i = 0, max = myUser.getMessageCount(); i < max; i++) {
+            if(myUser.getMessageState(i) == JMailPOP3Message.STATE_NORMAL) {
+                int tempSize=myUser.getMessage(i).length();
+                totalSize+=tempSize;
+                
+                middle+=(count+1)+" "+tempSize+"\r\n";
+                messageCount++;
+            }
+            count++;
+        }
+        
+        toReturn="+OK "+messageCount+" messages ("+totalSize+" octets)\r\n";
+        toReturn+=middle;
+        toReturn+=".";
+        
+        return toReturn;
+    }
+    
+    /** When the user sends 'LIST x' to the server, the server
+     *  returns the size of message x
+     * @return the droplisting of message if exists<br>
+     * else error message
+     * @param messageNo id of message to get size of
+     */
+    private String getDropListing(int messageNo) throws JMailMessageNonExistantException {
+        int tempState=myUser.getMessageState(messageNo);
+        if(tempState == JMailPOP3Message.STATE_NORMAL) {
+            int messageSize=myUser.getMessage(messageNo).length();
+            return "+OK "+(messageNo+1)+" "+messageSize;
+        }
+        else {
+            return "-ERR marked for deletion";
+        }
+    }
+    
+    private String getTopListing(int messageNo, int bodySize) throws JMailMessageNonExistantException {
+        if(bodySize >= 0) {
+            // Get content of specific message
+            String toRet="+OK Header plus top "+bodySize+" lines of body\r\n";
+            
+            String topString="";
+            if(bodySize > 0) {
+                LineNumberReader read=new LineNumberReader(new StringReader(myUser.getMessageBody(messageNo)));
+                
+                int i=0;
+                try {
+                    String temp=null;
+                    while(read.ready() && i < bodySize) {
+                        temp=read.readLine();
+                        if(temp.equals(".")) {
+                            break;
+                        }
+                        topString+=temp+"\r\n";
+                        i++;
+                    }
+                }
+                catch(Exception e) {}
+            }
+            return toRet+myUser.getMessageHeaders(messageNo)+topString+".";
+        }
+        return "-ERR TOP Bad Arg";
+    }
+    
+    /** When the user sends 'RSET' to the server, the server
+     *  unmarks all the messages which are to be deleted.
+     *  [This method is also called if a connection
+     *    is ended prematurely]
+     * @return true if all messages were successfully unmarked<br>
+     * false otherwise
+     */
+    public boolean resetAllMessages() throws JMailMessageNonExistantException {
+        for(int i=0; i<myUser.getMessageCount(); i++) {
+            if(!myUser.setMessageState(i, JMailPOP3Message.STATE_NORMAL)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** This method is called when a connection ends without 'QUIT',
+     *  either dropped by the client or reaped for being idle.
+     *  It unmarks all the messages and lets the user log in again
+     * @return true if all messages were successfully unmarked<br>
+     * false otherwise
+     */
+    public boolean abortSession() throws JMailMessageNonExistantException {
+        if(! hasSessionLock) {
+            // No user was logged on by this connection
+            return true;
+        }
+        
+        try {
+            return resetAllMessages();
+        }
+        finally {
+            myUser.setInPOP3Session(false);
+            hasSessionLock=false;
+        }
+    }
+    
+    /** When the user sends 'QUIT' to the server, the server
+     *  commits all changes made during the connection
+     * @return true if successful<br>
+     * false if unsuccessful
+     */
+    private boolean commitChanges() throws JMailMessageNonExistantException {
+        myUser.setInPOP3Session(false);
+        hasSessionLock=false;
+        
+        for(int i=0; i<myUser.getMessageCount(); i++) {
+            int tempState=myUser.getMessageState(i);
+            if(tempState == JMailPOP3Message.STATE_MARKED) {
+                if(!myUser.deleteMessage(i)) {
+                    return false;
+                }
+            }
+        }
+        
+        return true;
+    }
+}
+
+class JMailSMTPConnection {
+    public static final int STATE_HELO=110;
+    public static final int STATE_FROM=120;
+    public static final int STATE_TO=130;
+    public static final int STATE_DATA=140;
+    public static final int STATE_DATA2=150;
+    /** This state is when the bytes of a BDAT chunk are being received */
+    public static final int STATE_BDAT=160;
+    /** This state is when waiting for the next BDAT after a chunk */
+    public static final int STATE_BDAT2=170;
+    /** This state is when the message received is being queued by the
+     *  connection handler, which then calls finishQueue() */
+    public static final int STATE_QUEUE=180;
+    public static final int STATE_END=200;
+    
+    /** This variable holds the Socket relating to the connection */
+    private Socket relatedSocket=null;
+    /** This variable holds the current state of the connection */
+    private int currState=0;
+    
+    /** This is the value given with the HELO statement.
+     * It is used when tranmiting the SMTP message
+     */
+    private String myHELOName=null;
+    private String myClientName=null;
+    /** This is the InetAddress relating to the current Connection */
+    private InetAddress myClientIP=null;
+    /** This is the value given with the MAIL FROM statement.
+     * It is used when transmiting the SMTP message
+     */
+    private JMailEmailCombo mySender=null;
+    /** This is a Vector of all the values given with the MAIL FROM statements.
+     * It is used when transmiting the SMTP message
+     */
+    private JMailEmailComboList myRecipents=null;
+    /** This is the body of the SMTP message, while it is being received */
+    private JMailMessageBuffer myBody=null;
+    /** This is the size of the BDAT chunk being received */
+    private long chunkSize=0;
+    /** This is the size of a refused BDAT chunk, which must still be read */
+    private long discardSize=0;
+    /** Whether the BDAT chunk being received is the LAST one */
+    private boolean chunkLast=false;
+    /** Tokenizer reused for every line received */
+    private JMailCommand myCommand=new JMailCommand();
+    /** Whether the start of the line being received was too long, and has
+     *  been given to processPartialLine() */
+    private boolean inLongLine=false;
+    /** Whether the connection handler queues each message itself, off the
+     *  thread which reads from the client */
+    private boolean deferQueue=false;
+    
+    public JMailSMTPConnection(Socket thatSocket) {
+        this.currState=STATE_HELO;
+        this.relatedSocket=thatSocket;
+        this.myRecipents=new JMailEmailComboList();
+        
+        // Look the client up while it sends HELO
+        JMailServer.nameCache.prefetch(thatSocket.getInetAddress());
+    }
+    
+    /** This method returns the ESMTP extensions advertised in reply to EHLO
+     * @return Vector of extension keywords (with any parameters)
+     */
+    public static Vector getExtensions() {
+        Vector toRet=new Vector();
+        toRet.add("PIPELINING");
+        toRet.add("CHUNKING");
+        toRet.add("SIZE "+JMailServer.MAX_MESSAGE_SIZE);
+        return toRet;
+    }
+    
+    public int getCurrState() {
+        return currState;
+    }
+    
+    /** This method checks [testEmail] is either a plain address, or ends
+     *  with an address in angle brackets, and splits the address into user
+     *  and domain.  The address must be an RFC 5321 Mailbox (see findAddress);
+     *  a source route before it in the angle brackets is accepted and ignored.
+     *  The check is a single pass over the characters, so no regular
+     *  expression has to be compiled for every MAIL FROM or RCPT TO
+     * @param testEmail address given by the client
+     * @return the address, or null if it is not valid
+     */
+    public static JMailEmailCombo checkEmail(String testEmail) {
+        if(JMailServer.isDebug()) {
+            JMailServer.printDebug("CheckEmail: Input => '"+testEmail+"'");
+        }
+        
+        int length=testEmail.length();
+        int startPos=0;
+        int endPos=length;
+        int atPos=findAddress(testEmail, startPos, endPos);
+        
+        if(atPos == -1 && length > 0 && testEmail.charAt(length-1) == '>') {
+            // Get the string between the last < and the final >
+            startPos=testEmail.lastIndexOf('<', length-2)+1;
+            endPos=length-1;
+            if(startPos > 0 && startPos < endPos && testEmail.charAt(startPos) == '@') {
+                // Source route, as in <@relay.org:user@domain>
+                startPos=testEmail.indexOf(':', startPos)+1;
+            }
+            if(startPos > 0) {
+                atPos=findAddress(testEmail, startPos, endPos);
+            }
+        }
+        
+        if(atPos == -1) {
+            return null;
+        }
+        
+        String user=testEmail.substring(startPos, atPos);
+        String domain=testEmail.substring(atPos+1, endPos);
+        if(JMailServer.isDebug()) {
+            JMailServer.printDebug("CheckEmail: "+user+"@"+domain);
+        }
+        return new JMailEmailCombo(testEmail, user, domain);
+    }
+    
+    /** This method checks the characters from [from] to [to] are exactly
+     *  an RFC 5321 Mailbox: a Local-part, which is either dot-separated atoms
+     *  of letters, digits and !#$%&'*+-/=?^_`{|}~ or a quoted string, then
+     *  '@', then a Domain of dot-separated sub-domains of letters, digits
+     *  and hyphens, not starting or ending with a hyphen, or an address
+     *  literal in square brackets
+     * @return offset of the '@', or -1 if they do not match
+     */
+    private static int findAddress(String testEmail, int from, int to) {
+        int atPos;
+        if(from < to && testEmail.charAt(from) == '"') {
+            atPos=endQuoted(testEmail, from, to);
+        }
+        else {
+            atPos=endDotString(testEmail, from, to);
+        }
+        
+        if(atPos == -1 || atPos >= to || testEmail.charAt(atPos) != '@') {
+            return -1;
+        }
+        if(atPos+1 < to && testEmail.charAt(atPos+1) == '[') {
+            return isAddressLiteral(testEmail, atPos+1, to) ? atPos : -1;
+        }
+        return isDomain(testEmail, atPos+1, to) ? atPos : -1;
+    }
+    
+    /** @return true if [c] may be in an atom of a Local-part */
+    private static boolean isAtext(char c) {
+        return isLetDig(c) || "!#$%&'*+-/=?^_`{|}~".indexOf(c) != -1;
+    }
+    
+    /** @return true if [c] is a letter or digit */
+    private static boolean isLetDig(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+    
+    /** This method finds the end of the dot-separated atoms starting at [from]
+     * @return offset of the first character after them, or -1 if there are
+     * none, or one is empty
+     */
+    private static int endDotString(String testEmail, int from, int to) {
+        // Whether the last character was in an atom
+        boolean inAtom=false;
+        
+        for(int i=from; i<to; i++) {
+            char c=testEmail.charAt(i);
+            if(isAtext(c)) {
+                inAtom=true;
+            }
+            else if(c == '.' && inAtom) {
+                inAtom=false;
+            }
+            else {
+                return inAtom ? i : -1;
+            }
+        }
+        return inAtom ? to : -1;
+    }
+    
+    /** This method finds the end of the quoted string starting at [from],
+     *  which holds printable characters, with '"' and '\' escaped by '\'
+     * @return offset of the first character after the closing '"', or -1 if
+     * there is none
+     */
+    private static int endQuoted(String testEmail, int from, int to) {
+        for(int i=from+1; i<to; i++) {
+            char c=testEmail.charAt(i);
+            if(c == '"') {
+                return i+1;
+            }
+            if(c == '\\') {
+                // Quoted pair
+                i++;
+                if(i == to) {
+                    return -1;
+                }
+                c=testEmail.charAt(i);
+            }
+            if(c < 32 || c > 126) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+    
+    /** This method checks the characters from [from] to [to] are dot-separated
+     *  sub-domains, each of letters, digits and hyphens, and not starting
+     *  or ending with a hyphen
+     */
+    private static boolean isDomain(String testEmail, int from, int to) {
+        int labelStart=from;
+        
+        for(int i=from; i<=to; i++) {
+            if(i == to || testEmail.charAt(i) == '.') {
+                if(i == labelStart || testEmail.charAt(labelStart) == '-' || testEmail.charAt(i-1) == '-') {
+                    return false;
+                }
+                labelStart=i+1;
+            }
+            else if(! isLetDig(testEmail.charAt(i)) && testEmail.charAt(i) != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** This method checks the characters from [from] to [to] are an address
+     *  literal, such as [192.168.0.1] or [IPv6:::1]: printable characters
+     *  other than '[', '\' and ']', in square brackets
+     */
+    private static boolean isAddressLiteral(String testEmail, int from, int to) {
+        if(to-from < 3 || testEmail.charAt(from) != '[' || testEmail.charAt(to-1) != ']') {
+            return false;
+        }
+        
+        for(int i=from+1; i<to-1; i++) {
+            char c=testEmail.charAt(i);
+            if(c < 33 || c > 126 || c == '[' || c == '\\' || c == ']') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** This method processes a line received from the client
+     * @param theInput bytes of the line, null for the welcome message
+     * @param length number of bytes in the line
+     * @return message to return to client, or null if there is none yet
+     */
+    public String processInput(byte[] theInput, int length) {
+        if(currState == STATE_DATA) {
+            return processData(theInput, length);
+        }
+        
+        if(inLongLine) {
+            // The rest of the line was thrown away as it arrived
+            inLongLine=false;
+            return "500 Line too long\r";
+        }
+        
+        if(theInput != null && myCommand.parse(theInput, length) == JMailCommand.QUIT) {
+            currState=STATE_END;
+            return "221 Good for you; Smoking is bad";
+        }
+        
+        // Some other state
+        if(JMailServer.isOnline) {
+            // Server is Online
+            String toRet=processStates(theInput == null ? null : myCommand);
+            if(toRet == null) {
+                // Reply is sent once the BDAT chunk has been received
+                return null;
+            }
+            return toRet+"\r";
+        }
+        
+        // Server is offline
+        if(theInput != null && myCommand.getVerb() == JMailCommand.BDAT) {
+            return refuseChunk(myCommand, "421 Service Not Available")+"\r";
+        }
+        return "421 Service Not Available\r";
+    }
+    
+    /** This method is used when the Connection is in the 'Collect body' state
+     * @param line bytes to append to the body
+     * or if equals(".") then leave data state
+     * @param length number of bytes in the line
+     * @return null
+     */
+    private String processData(byte[] line, int length) {
+        if(inLongLine) {
+            // End of a line whose start has already been added
+            inLongLine=false;
+            myBody.endLine(line, 0, length);
+            return null;
+        }
+        
+        if(length == 1 && line[0] == '.') {
+            // This is the end of data collection
+            if(myBody.isOverLimit()) {
+                resetTransaction();
+                return "552 Message size exceeds fixed maximum message size\r";
+            }
+            return queueMessage();
+        }
+        
+        myBody.writeLine(line, 0, length);
+        return null;
+    }
+    
+    /** This method processes part of a line too long to be collected whole;
+     *  the rest follows in later calls, the last of them to processInput().
+     *  In the DATA state the part is added to the message as it arrives, so
+     *  the size limit is applied; otherwise the line is a command longer than
+     *  RFC 5321 allows, and is thrown away and refused once it ends
+     * @param part bytes of the line
+     * @param length number of bytes in [part]
+     */
+    public void processPartialLine(byte[] part, int length) {
+        if(currState == STATE_DATA) {
+            if(inLongLine) {
+                myBody.write(part, 0, length);
+            }
+            else {
+                myBody.writeLineStart(part, 0, length);
+            }
+        }
+        inLongLine=true;
+    }
+    
+    /** This method is called by a connection handler which queues each
+     *  message itself.  Once a message has been received the connection
+     *  is left in STATE_QUEUE with no reply, and the handler calls
+     *  finishQueue() on another thread.
+     * @param defer true to leave queueing to the handler
+     */
+    public void setDeferQueue(boolean defer) {
+        this.deferQueue=defer;
+    }
+    
+    /** This method puts the received message in the queue, unless that is
+     *  left to the connection handler
+     * @return reply to send to the client, or null if the handler queues it
+     */
+    private String queueMessage() {
+        if(deferQueue) {
+            currState=STATE_QUEUE;
+            return null;
+        }
+        return finishQueue();
+    }
+    
+    /** This method puts the received message in the queue and
+     *  resets the connection ready for the next one.  It may wait for the
+     *  message to be forced to disk.
+     * @return reply to send to the client
+     */
+    public String finishQueue() {
+        myBody.close();
+        if(myBody.isWriteFailed()) {
+            resetTransaction();
+            return "452 Insufficient system storage; try again later\r";
+        }
+        long theLength=myBody.length();
+        boolean isQueued=JMailServer.mySMTPQueue.addMessage(myHELOName, myClientName, myClientIP, mySender, myRecipents, myBody);
+        
+        // Reset all the vars
+        mySender=null;
+        myRecipents=new JMailEmailComboList();
+        myBody=null;
+        currState=STATE_FROM;
+        
+        if(! isQueued) {
+            return "451 Message could not be stored; try again later\r";
+        }
+        return "250 "+theLength+" bytes received. Message accepted\r";
+    }
+    
+    /** This method returns the size of the BDAT chunk which the
+     *  connection handler should now copy into getChunkBuffer()
+     * @return number of bytes in the chunk
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+    
+    /** This method returns the size of a BDAT chunk which was refused, and
+     *  which the connection handler should now read and throw away, as the
+     *  client sends it whatever the reply (RFC 3030)
+     * @return number of bytes to throw away, 0 if none
+     */
+    public long takeDiscardSize() {
+        long toRet=discardSize;
+        discardSize=0;
+        return toRet;
+    }
+    
+    /** This method refuses a BDAT command, and notes that its chunk must be
+     *  thrown away if the size could be read
+     * @param theInput the BDAT command
+     * @param reply reply refusing it
+     * @return reply
+     */
+    private String refuseChunk(JMailCommand theInput, String reply) {
+        int sizeStart=theInput.skipSpaces(theInput.getArgStart());
+        long size=theInput.parseNumber(sizeStart, theInput.tokenEnd(sizeStart));
+        if(size > 0) {
+            discardSize=size;
+        }
+        return reply;
+    }
+    
+    /** This method returns the buffer the current BDAT chunk is appended to
+     * @return buffer holding the message being received
+     */
+    public JMailMessageBuffer getChunkBuffer() {
+        return myBody;
+    }
+    
+    /** This method is called by the connection handler once all the bytes
+     *  of a BDAT chunk have been copied into getChunkBuffer()
+     * @return reply to send to the client
+     */
+    public String endChunk() {
+        if(myBody.isOverLimit()) {
+            resetTransaction();
+            return "552 Message size exceeds fixed maximum message size\r";
+        }
+        if(myBody.isWriteFailed()) {
+            resetTransaction();
+            return "452 Insufficient system storage; try again later\r";
+        }
+        
+        if(chunkLast) {
+            return queueMessage();
+        }
+        
+        currState=STATE_BDAT2;
+        return "250 "+chunkSize+" octets received\r";
+    }
+    
+    /** This method forgets the sender, recipients and any message
+     *  being received, ready for a new MAIL FROM */
+    private void resetTransaction() {
+        mySender=null;
+        myRecipents=new JMailEmailComboList();
+        abortSession();
+        currState=STATE_FROM;
+    }
+    
+    /** This method is called when the connection ends, and throws away
+     *  any message which was only partly received */
+    public void abortSession() {
+        if(myBody != null) {
+            myBody.release();
+            myBody=null;
+        }
+    }
+    
+    /** This method processes the inputString.
+     * Checking whether the protocol is being followed.
+     * @param theInput string to parse
+     * @return message to return to client
+     */
+    private String processStates(JMailCommand theInput) {
+        if(theInput == null) {
+            // Welcome message
+            return "220 "+JMailServer.myHostname+" JMail SMTP Server; "+new Date();
+        }
+        
+        // Something useful to parse
+        int verb=theInput.getVerb();
+        
+        // HELO / EHLO
+        if(verb == JMailCommand.HELO || verb == JMailCommand.EHLO) {
+            if(theInput.hasArg()) {
+                myHELOName=theInput.getArg();
+                myClientIP=relatedSocket.getInetAddress();
+                // Not waited for; null if the lookup has not finished, and
+                // filled in by the message later
+                myClientName=JMailServer.nameCache.getName(myClientIP);
+                
+                // A new HELO/EHLO also resets any transaction
+                resetTransaction();
+                
+                String greeting=JMailServer.myHostname+" Hello "+((myClientName == null) ? "" : myClientName+" ")+"["+myClientIP.getHostAddress()+"], pleased to meet you. ";
+                if(verb == JMailCommand.HELO) {
+                    return "250 "+greeting;
+                }
+                
+                // EHLO: list the extensions, one per line
+                String toRet="250-"+greeting;
+                Vector extensions=getExtensions();
+                for(int i=0; i<extensions.size(); i++) {
+                    toRet+="\r\n"+((i == extensions.size()-1) ? "250 " : "250-")+extensions.get(i);
+                }
+                return toRet;
+            }
+            
+            // Problem with number of args
+            return "501 "+((verb == JMailCommand.HELO) ? "HELO" : "EHLO")+" requires domain address";
+        }
+        // MAIL
+        else if(verb == JMailCommand.MAIL) {
+            if(currState == STATE_FROM) {
+                if(theInput.hasArg()) {
+                    int colon=theInput.indexOf(':', theInput.getArgStart());
+                    if(colon != -1 && theInput.matches(theInput.getArgStart(), colon, "FROM") && colon+1 < theInput.getEnd()) {
+                        // The address runs to the last '>', or is a single word
+                        int addrStart=theInput.skipSpaces(colon+1);
+                        int addrEnd=theInput.lastIndexOf('>', addrStart);
+                        addrEnd=(addrEnd != -1) ? addrEnd+1 : theInput.tokenEnd(addrStart);
+                        
+                        // Any ESMTP parameters follow the address
+                        long declaredSize=-1;
+                        int paramStart=theInput.skipSpaces(addrEnd);
+                        while(paramStart < theInput.getEnd()) {
+                            int paramEnd=theInput.tokenEnd(paramStart);
+                            if(paramEnd-paramStart > 5 && theInput.matches(paramStart, paramStart+5, "SIZE=")) {
+                                declaredSize=theInput.parseNumber(paramStart+5, paramEnd);
+                                if(declaredSize < 0) {
+                                    return "501 Syntax Error; SIZE=<size>";
+                                }
+                            }
+                            else {
+                                return "555 MAIL FROM parameter "+theInput.getString(paramStart, paramEnd)+" not recognised";
+                            }
+                            paramStart=theInput.skipSpaces(paramEnd);
+                        }
+                        
+                        if(JMailServer.MAX_MESSAGE_SIZE > 0 && declaredSize > JMailServer.MAX_MESSAGE_SIZE) {
+                            return "552 Message size exceeds fixed maximum message size";
+                        }
+                        
+                        String tempFrom=theInput.getTrimmed(colon+1, addrEnd);
+                        JMailEmailCombo userDom=null;
+                        if(tempFrom.equals("<>")) {
+                            // Null reverse-path, as used by bounces
+                            userDom=new JMailEmailCombo(tempFrom, "", "");
+                        }
+                        else {
+                            userDom=checkEmail(tempFrom);
+                        }
+                        
+                        // Email address is OK
+                        if(userDom != null) {
+                            mySender=userDom;
+                            currState=STATE_TO;
+                            return "250 <"+mySender.parsed()+">... Sender ok";
+                        }
+                        
+                        // Email address not correct
+                        return "501 Email address invalid";
+                    }
+                }
+                // Some problem with number of args
+                return "501 Syntax Error";
+            }
+            
+            // Incorrect state
+            return "503 Bad sequence of commands";
+        }
+        // RCPT
+        else if(verb == JMailCommand.RCPT) {
+            if(currState == STATE_TO) {
+                if(theInput.hasArg()) {
+                    int colon=theInput.indexOf(':', theInput.getArgStart());
+                    if(colon != -1 && theInput.matches(theInput.getArgStart(), colon, "TO") && colon+1 < theInput.getEnd()) {
+                        String tempTo=theInput.getTrimmed(colon+1, theInput.getEnd());
+                        JMailEmailCombo userDom=checkEmail(tempTo);
+                        
+                        // Email address is OK
+                        if(userDom != null) {
+                            // Email is local
+                            if(userDom.isDomainServerLocal()) {
+                                try {
+                                    JMailServer.allUsers.getUser(userDom.user());
+                                    myRecipents.add(userDom);
+                                    return "250 <"+userDom.parsed()+">... Recipent ok (Local)";
+                                }
+                                catch(JMailUserNonExistantException e) {
+                                    // No such local user
+                                    return "550 <"+userDom.parsed()+">... No such local user";
+                                }
+                            }
+                            // Email is not local
+                            // Should be 251 but noone likes that
+                            myRecipents.add(userDom);
+                            return "250 <"+userDom.parsed()+">... Recipent ok; will forward onwards";
+                        }
+                        
+                        // Email address not correct
+                        return "501 Email address invalid";
+                    }
+                }
+                // Some problem with number of args
+                return "501 Syntax Error";
+            }
+            
+            // Incorrect state
+            return "503 Bad sequence of commands";
+        }
+        // DATA
+        else if(verb == JMailCommand.DATA) {
+            if(currState == STATE_TO) {
+                // Now we ask for data to send
+                myBody=new JMailMessageBuffer(JMailServer.MAX_MESSAGE_SIZE);
+                currState=STATE_DATA;
+                return "354 Enter Mail, end with \".\" on a line by itself";
+            }
+            
+            // Incorrect state
+            return "503 Bad sequence of commands";
+        }
+        // BDAT
+        else if(verb == JMailCommand.BDAT) {
+            if(currState == STATE_TO || currState == STATE_BDAT2) {
+                // BDAT <size> [LAST]
+                int sizeStart=theInput.skipSpaces(theInput.getArgStart());
+                int sizeEnd=theInput.tokenEnd(sizeStart);
+                long size=theInput.parseNumber(sizeStart, sizeEnd);
+                int lastStart=theInput.skipSpaces(sizeEnd);
+                int lastEnd=theInput.tokenEnd(lastStart);
+                boolean isLast=(lastStart < lastEnd);
+                
+                if(size < 0 || theInput.skipSpaces(lastEnd) < theInput.getEnd() || (isLast && ! theInput.matches(lastStart, lastEnd, "LAST"))) {
+                    return refuseChunk(theInput, "501 Syntax Error; BDAT <size> [LAST]");
+                }
+                
+                if(myBody == null) {
+                    myBody=new JMailMessageBuffer(JMailServer.MAX_MESSAGE_SIZE);
+                }
+                chunkSize=size;
+                chunkLast=isLast;
+                currState=STATE_BDAT;
+                
+                // Reply once the chunk has been received
+                return null;
+            }
+            
+            // Incorrect state
+            return refuseChunk(theInput, "503 Bad sequence of commands");
+        }
+        // RSET
+        else if(verb == JMailCommand.RSET) {
+            resetTransaction();
+            return "250 Reset State";
+        }
+        // NOOP
+        else if(verb == JMailCommand.NOOP) {
+            return "250 All OK";
+        }
+        
+        // Command unrecognised
+        return "500 Syntax Error; Command unrecognised";
+    }
+}
+
+class JMailSMTPClientConnection {
+    public static final int STATE_HELO=210;
+    public static final int STATE_EHLO=215;
+    public static final int STATE_FROM=220;
+    public static final int STATE_TO=230;
+    public static final int STATE_DATA=240;
+    public static final int STATE_DATA2=241;
+    public static final int STATE_DATA3=242;
+    public static final int STATE_PIPELINE=243;
+    public static final int STATE_RSET=245;
+    public static final int STATE_QUIT=250;
+    public static final int STATE_READY=260;
+    public static final int STATE_END=3000;
+    /** Sent after the content of a message to end it */
+    private static final byte[] DATA_END={'\r', '\n', '.', '\r', '\n'};
+    
+    /** This variable holds the Socket relating to the connection */
+    private Socket relatedSocket=null;
+    /** Reader and Writer of [relatedSocket] */
+    private BufferedReader myReader=null;
+    private PrintWriter myWriter=null;
+    /** next hop key of the server the connection is to */
+    private String myKey=null;
+    /** This variable holds the current state of the connection */
+    private int currState=0;
+    /** time (millisecs) the connection was last used for a transaction, and
+     *  last checked while idle */
+    private long lastUsed=0;
+    private long lastChecked=0;
+    
+    /** sender of the SMTP message */
+    private JMailEmailCombo mySender=null;
+    /** recipients of the SMTP message */
+    private JMailEmailCombo[] myRecipents=null;
+    /** reply code given to the RCPT TO of each recipient, 0 until sent */
+    private int[] myReplies=null;
+    /** number of RCPT TO commands sent so far */
+    private int sentCount=0;
+    /** number of recipients the server has accepted */
+    private int acceptedCount=0;
+    /** true if the server advertised PIPELINING in its EHLO reply */
+    private boolean isPipelining=false;
+    /** number of replies received to the commands sent together, and
+     *  whether the first of them was RSET */
+    private int replyCount=0;
+    private boolean hasRset=false;
+    /** true if the server accepted MAIL FROM */
+    private boolean isMailAccepted=false;
+    /** true once the server has answered for the transaction */
+    private boolean isStarted=false;
+    /** true once the server has accepted the message data */
+    private boolean isSent=false;
+    /** Received header sent before the content of the message */
+    private String myReceived=null;
+    /** content of the SMTP message */
+    private JMailMessageBuffer myContent=null;
+    /** true once the server has asked for the message data, until it is sent */
+    private boolean isDataDue=false;
+    
+    public JMailSMTPClientConnection(Socket thatSocket, BufferedReader in, PrintWriter out, String key) {
+        this.currState=STATE_HELO;
+        this.relatedSocket=thatSocket;
+        this.myReader=in;
+        this.myWriter=out;
+        this.myKey=key;
+    }
+    
+    public int getCurrState() {
+        return currState;
+    }
+    
+    public Socket getSocket() {
+        return relatedSocket;
+    }
+    
+    public BufferedReader getReader() {
+        return myReader;
+    }
+    
+    public PrintWriter getWriter() {
+        return myWriter;
+    }
+    
+    public String getKey() {
+        return myKey;
+    }
+    
+    public long getLastUsed() {
+        return lastUsed;
+    }
+    
+    public void setLastUsed(long time) {
+        this.lastUsed=time;
+        this.lastChecked=time;
+    }
+    
+    public long getLastChecked() {
+        return lastChecked;
+    }
+    
+    /** This method gets how long to wait for the next reply from the server
+     * @return timeout in millisecs
+     */
+    public int getTimeout() {
+        switch(currState) {
+            case STATE_HELO:
+                return JMailServer.TIMEOUT_REMOTE_GREETING;
+            case STATE_DATA3:
+                return JMailServer.TIMEOUT_REMOTE_DATA;
+            default:
+                return JMailServer.TIMEOUT_REMOTE_COMMAND;
+        }
+    }
+    
+    public void setLastChecked(long time) {
+        this.lastChecked=time;
+    }
+    
+    /** This method starts a transaction on the connection.  On a new
+     *  connection MAIL FROM is sent once the server has answered HELO; on a
+     *  connection used before the last transaction is reset first.
+     * @param sender sender of the SMTP message
+     * @param recipents recipients of the SMTP message
+     * @param received Received header sent before the content of the message
+     * @param content content of the SMTP message
+     * @return command to send, or null to wait for the server
+     */
+    public String startTransaction(JMailEmailCombo sender, JMailEmailCombo[] recipents, String received, JMailMessageBuffer content) {
+        this.mySender=sender;
+        this.myRecipents=recipents;
+        this.myReplies=new int[recipents.length];
+        this.myReceived=received;
+        this.myContent=content;
+        this.isDataDue=false;
+        this.sentCount=0;
+        this.acceptedCount=0;
+        this.isMailAccepted=false;
+        this.isStarted=false;
+        this.isSent=false;
+        
+        if(currState == STATE_READY) {
+            if(isPipelining) {
+                // The RSET goes with the rest of the commands
+                hasRset=true;
+                return beginTransaction()+"\r";
+            }
+            currState=STATE_RSET;
+            return "RSET\r";
+        }
+        return null;
+    }
+    
+    /** This method sends the commands which begin a transaction.  If the
+     *  server allows pipelining MAIL FROM, every RCPT TO and DATA are sent
+     *  together and the replies matched to them in order; otherwise each
+     *  command waits for the reply to the one before.
+     * @return commands to send, separated by CRLF
+     */
+    private String beginTransaction() {
+        if(! isPipelining) {
+            isStarted=true;
+            currState=STATE_TO;
+            return "MAIL FROM: "+mySender.unparsed();
+        }
+        
+        StringBuffer toSend=new StringBuffer();
+        if(hasRset) {
+            toSend.append("RSET\r\n");
+        }
+        toSend.append("MAIL FROM: "+mySender.unparsed()+"\r\n");
+        for(int i=0; i<myRecipents.length; i++) {
+            toSend.append("RCPT TO: "+myRecipents[i].unparsed()+"\r\n");
+        }
+        toSend.append("DATA");
+        
+        sentCount=myRecipents.length;
+        replyCount=0;
+        currState=STATE_PIPELINE;
+        return toSend.toString();
+    }
+    
+    /** This method matches a reply to the commands sent together by
+     *  beginTransaction
+     * @param code reply code
+     * @return command to send, or null to wait for the next reply
+     */
+    private String processPipelined(int code) {
+        int index=replyCount++;
+        
+        // Something was answered, so the connection is alive
+        isStarted=true;
+        
+        if(hasRset) {
+            if(index == 0) {
+                if(code != 250) {
+                    // The server is in no state for the rest
+                    currState=STATE_END;
+                }
+                return null;
+            }
+            index--;
+        }
+        
+        if(index == 0) {
+            // MAIL FROM
+            isMailAccepted=(code == 250);
+        }
+        else if(index <= myRecipents.length) {
+            // RCPT TO
+            myReplies[index-1]=code;
+            if(isMailAccepted && (code == 250 || code == 251)) {
+                acceptedCount++;
+            }
+        }
+        else {
+            // DATA, the last of them
+            hasRset=false;
+            if(code != 354) {
+                currState=STATE_READY;
+                return null;
+            }
+            
+            currState=STATE_DATA3;
+            if(acceptedCount == 0) {
+                // The server should have refused DATA, but has not; end
+                // the message without sending anything
+                return ".";
+            }
+            isDataDue=true;
+            return null;
+        }
+        return null;
+    }
+    
+    /** This method says whether the server has asked for the message data,
+     *  which is then sent with writeData rather than as a reply
+     * @return true if the data is to be sent
+     */
+    public boolean isDataDue() {
+        return isDataDue;
+    }
+    
+    /** This method sends the message data: the Received header, then the
+     *  content, dot-stuffed as it is copied from the message to the server,
+     *  then the terminating "."
+     * @param out stream to the server
+     * @throws IOException if the content could not be read or sent
+     */
+    public void writeData(OutputStream out) throws IOException {
+        isDataDue=false;
+        myWriter.flush();
+        
+        BufferedOutputStream data=new BufferedOutputStream(out, JMailMessageBuffer.CHUNK_SIZE);
+        data.write(myReceived.getBytes());
+        myContent.writeTo(new JMailDotStuffer(data));
+        data.write(DATA_END);
+        data.flush();
+    }
+    
+    /** This method says whether the server answered for the transaction;
+     *  if not, the connection failed before anything was sent
+     * @return true if the server answered
+     */
+    public boolean isStarted() {
+        return isStarted;
+    }
+    
+    /** This method says whether the server accepted the message data
+     * @return true if the transaction completed
+     */
+    public boolean isSent() {
+        return isSent;
+    }
+    
+    /** This method gets the reply code given to the RCPT TO of a recipient
+     * @param index index of the recipient
+     * @return reply code, 0 if the RCPT TO was never answered
+     */
+    public int getRecipentReply(int index) {
+        return myReplies[index];
+    }
+    
+    /** This method says whether a recipient was delivered to by this
+     *  connection
+     * @param index index of the recipient
+     * @return true if both the recipient and the data were accepted
+     */
+    public boolean isRecipentDelivered(int index) {
+        return isSent && myReplies[index]/100 == 2;
+    }
+    
+    /** This method sends the next RCPT TO, or the DATA once the last
+     *  recipient has been answered
+     * @return command to send
+     */
+    private String nextRecipent() {
+        if(sentCount < myRecipents.length) {
+            currState=STATE_DATA;
+            return "RCPT TO: "+myRecipents[sentCount++].unparsed();
+        }
+        if(acceptedCount == 0) {
+            // Every recipient refused; nothing to send
+            currState=STATE_READY;
+            return null;
+        }
+        currState=STATE_DATA2;
+        return "DATA";
+    }
+    
+    /** This method closes the connection, saying QUIT first if the server
+     *  is still there.  The reply is not waited for.
+     */
+    public void close() {
+        if(currState != STATE_END) {
+            myWriter.println("QUIT\r");
+            currState=STATE_END;
+        }
+        
+        try {
+            myWriter.close();
+            myReader.close();
+            relatedSocket.close();
+        }
+        catch(IOException e) {
+            System.err.println("SMTPConnect: Failed to close server connection");
+        }
+        
+        System.err.println("SMTPConnect: Connection closed to "+relatedSocket.getInetAddress().getHostAddress()+":"+relatedSocket.getPort());
+    }
+    
+    public String processInput(String theInput) {
+        String toReturn=null;
+        String arg1="";
+        
+        if(theInput == null) {
+            currState=STATE_END;
+        }
+        else {
+            // Something useful
+            
+            // A reply may run over several lines, "250-..." up to "250 ..."
+            boolean isLast=(theInput.length() < 4 || theInput.charAt(3) != '-');
+            if(currState == STATE_EHLO && theInput.length() > 4 && theInput.substring(4).trim().equalsIgnoreCase("PIPELINING")) {
+                isPipelining=true;
+            }
+            if(! isLast) {
+                return null;
+            }
+            
+            String[] myArgs=theInput.split(" ", 2);
+            arg1=myArgs[0];
+            
+            // Check for 421 (QUIT)
+            if(currState != STATE_DATA && myArgs[0].toUpperCase().equals("421")) {
+                currState=STATE_END;
+            }
+            // Some other command
+            else {
+                switch(currState) {
+                    case STATE_HELO:
+                        if(myArgs[0].equals("220")) {
+                            // Good response
+                            toReturn="EHLO "+JMailServer.myHostname;
+                            currState=STATE_EHLO;
+                        }
+                        else {
+                            toReturn="QUIT";
+                            currState=STATE_QUIT;
+                        }
+                        break;
+                    case STATE_EHLO:
+                        if(myArgs[0].equals("250")) {
+                            // Good response
+                            toReturn=beginTransaction();
+                        }
+                        else if(myArgs[0].startsWith("5")) {
+                            // No ESMTP; fall back to HELO
+                            toReturn="HELO "+JMailServer.myHostname;
+                            currState=STATE_FROM;
+                        }
+                        else {
+                            toReturn="QUIT";
+                            currState=STATE_QUIT;
+                        }
+                        break;
+                    case STATE_FROM:
+                    case STATE_RSET:
+                        if(myArgs[0].equals("250")) {
+                            // Good response
+                            toReturn=beginTransaction();
+                        }
+                        else {
+                            toReturn="QUIT";
+                            currState=STATE_QUIT;
+                        }
+                        break;
+                    case STATE_PIPELINE:
+                        int pipelinedCode=0;
+                        try {
+                            pipelinedCode=Integer.parseInt(myArgs[0]);
+                        }
+                        catch(NumberFormatException e) {
+                            // Bad reply
+                        }
+                        toReturn=processPipelined(pipelinedCode);
+                        break;
+                    case STATE_TO:
+                        if(myArgs[0].equals("250")) {
+                            // Good response
+                            toReturn=nextRecipent();
+                        }
+                        else {
+                            // Sender refused; the connection can still be used
+                            currState=STATE_READY;
+                        }
+                        break;
+                    case STATE_DATA:
+                        // Reply to the last RCPT TO; a refused recipient
+                        // does not stop the others
+                        int code=0;
+                        try {
+                            code=Integer.parseInt(myArgs[0]);
+                        }
+                        catch(NumberFormatException e) {
+                            // Bad reply; leave the recipient unanswered
+                        }
+                        myReplies[sentCount-1]=code;
+                        if(code == 250 || code == 251) {
+                            acceptedCount++;
+                        }
+                        toReturn=nextRecipent();
+                        break;
+                    case STATE_DATA2:
+                        if(myArgs[0].equals("354")) {
+                            // Good response; the data is written by writeData
+                            isDataDue=true;
+                            currState=STATE_DATA3;
+                        }
+                        else {
+                            currState=STATE_READY;
+                        }
+                        break;
+                    case STATE_DATA3:
+                        if(myArgs[0].equals("250") && acceptedCount > 0) {
+                            isSent=true;
+                        }
+                        // Transaction over; the connection is free for the next
+                        currState=STATE_READY;
+                        break;
+                    case STATE_QUIT:
+                        // Whatever the reply, there is nothing more to say
+                        currState=STATE_END;
+                        break;
+                    default:
+                        toReturn="QUIT";
+                        currState=STATE_QUIT;
+                }
+            }
+        }
+        return (toReturn == null) ? null : toReturn+"\r";
+    }
+}
+
+/** This class decides where mail for a domain goes: delivered here
+ *  (local), to the domain's own SMTP server (network-local), or on to
+ *  SMTP_FORWARD_HOST.  A domain is looked up in the exact domains, then
+ *  in the suffix rules, the longest matching suffix winning, then in the
+ *  regular expressions in the order they were added; a domain which
+ *  matches none of them is forwarded.  Decisions are kept in a LRU cache,
+ *  and each route counts how often it is used.  The table is built anew
+ *  whenever the config file changes, rather than changed in place. */
+class JMailRoutingTable {
+    public static final int ROUTE_LOCAL=1;
+    public static final int ROUTE_NETWORK=2;
+    public static final int ROUTE_FORWARD=3;
+    
+    /** JMailRoutes of the exact domains, by domain */
+    private HashMap exact=new HashMap();
+    /** Root of the suffix rules, one node per label from the right */
+    private JMailRouteNode suffixes=new JMailRouteNode();
+    /** JMailRoutes of the regular expressions, in order */
+    private Vector regexes=new Vector();
+    /** Route of domains which match nothing */
+    private JMailRoute defaultRoute=new JMailRoute("default", "*", ROUTE_FORWARD, null);
+    /** Every route, in the order added, for the admin ROUTES command */
+    private Vector allRoutes=new Vector();
+    
+    /** Cache of decisions, domain to JMailRoute, least recently used first */
+    private LinkedHashMap cache=null;
+    private AtomicLong cacheHits=new AtomicLong(0);
+    private AtomicLong cacheMisses=new AtomicLong(0);
+    
+    /** @param cacheSize most decisions kept in the cache */
+    public JMailRoutingTable(final int cacheSize) {
+        this.cache=new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+    
+    /** This method turns the name of a route in the config file into its value
+     * @param name local, network or forward
+     * @return ROUTE_*, or 0 if the name is not known
+     */
+    public static int parseRoute(String name) {
+        if(name.equals("local")) {
+            return ROUTE_LOCAL;
+        }
+        else if(name.equals("network")) {
+            return ROUTE_NETWORK;
+        }
+        else if(name.equals("forward")) {
+            return ROUTE_FORWARD;
+        }
+        return 0;
+    }
+    
+    public static String routeName(int route) {
+        switch(route) {
+            case ROUTE_LOCAL:
+                return "local";
+            case ROUTE_NETWORK:
+                return "network";
+            default:
+                return "forward";
+        }
+    }
+    
+    /** This method adds a route for one domain
+     * @param domain the domain
+     * @param route ROUTE_*
+     */
+    public void addExact(String domain, int route) {
+        JMailRoute temp=new JMailRoute("exact", domain, route, null);
+        exact.put(domain.toLowerCase(), temp);
+        allRoutes.add(temp);
+    }
+    
+    /** This method adds a route for a domain and all the domains under it
+     * @param suffix the domain, e.g. cosc.canterbury.ac.nz
+     * @param route ROUTE_*
+     */
+    public void addSuffix(String suffix, int route) {
+        JMailRoute temp=new JMailRoute("suffix", suffix, route, null);
+        
+        // Labels are added from the right, so the node for a domain is
+        // under the node for its parent
+        String labels=suffix.toLowerCase();
+        JMailRouteNode node=suffixes;
+        int end=labels.length();
+        while(end > 0) {
+            int dot=labels.lastIndexOf('.', end-1);
+            node=node.getChild(labels.substring(dot+1, end), true);
+            end=dot;
+        }
+        node.setRoute(temp);
+        allRoutes.add(temp);
+    }
+    
+    /** This method adds a route for the domains matching a regular expression
+     * @param regex the regular expression, matched against the whole domain
+     * @param route ROUTE_*
+     * @throws PatternSyntaxException if the regular expression is not valid
+     */
+    public void addRegex(String regex, int route) {
+        JMailRoute temp=new JMailRoute("regex", regex, route, Pattern.compile(regex, Pattern.CASE_INSENSITIVE));
+        regexes.add(temp);
+        allRoutes.add(temp);
+    }
+    
+    /** This method decides where mail for a domain goes
+     * @param domain the domain
+     * @return ROUTE_LOCAL, ROUTE_NETWORK or ROUTE_FORWARD
+     */
+    public int getRoute(String domain) {
+        String key=domain.toLowerCase();
+        JMailRoute found=null;
+        
+        synchronized(cache) {
+            found=(JMailRoute) cache.get(key);
+        }
+        
+        if(found != null) {
+            cacheHits.incrementAndGet();
+        }
+        else {
+            cacheMisses.incrementAndGet();
+            found=lookup(key);
+            synchronized(cache) {
+                cache.put(key, found);
+            }
+        }
+        
+        found.hit();
+        return found.getRoute();
+    }
+    
+    /** This method finds the route of a domain, without the cache
+     * @param domain the domain, in lower case
+     * @return the route
+     */
+    private JMailRoute lookup(String domain) {
+        JMailRoute found=(JMailRoute) exact.get(domain);
+        if(found != null) {
+            return found;
+        }
+        
+        // Walk down the labels from the right, remembering the longest
+        // suffix with a route
+        JMailRouteNode node=suffixes;
+        int end=domain.length();
+        while(end > 0 && node != null) {
+            int dot=domain.lastIndexOf('.', end-1);
+            node=node.getChild(domain.substring(dot+1, end), false);
+            if(node != null && node.getRoute() != null) {
+                found=node.getRoute();
+            }
+            end=dot;
+        }
+        if(found != null) {
+            return found;
+        }
+        
+        for(int i=0; i<regexes.size(); i++) {
+            JMailRoute temp=(JMailRoute) regexes.get(i);
+            if(temp.getPattern().matcher(domain).matches()) {
+                return temp;
+            }
+        }
+        
+        return defaultRoute;
+    }
+    
+    /** This method returns the routes, for the admin ROUTES command
+     * @return Enumeration of JMailRoute, the default route last
+     */
+    public Enumeration getRoutes() {
+        Vector temp=new Vector(allRoutes);
+        temp.add(defaultRoute);
+        return temp.elements();
+    }
+    
+    public int getCacheSize() {
+        synchronized(cache) {
+            return cache.size();
+        }
+    }
+    
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+    
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+}
+
+/** This class is one route of JMailRoutingTable */
+class JMailRoute {
+    /** exact, suffix, regex or default */
+    private String myKind=null;
+    /** domain, suffix or regular expression, as given in the config file */
+    private String myPattern=null;
+    /** ROUTE_* */
+    private int myRoute=0;
+    /** compiled regular expression, for a regex route */
+    private Pattern myRegex=null;
+    /** Number of recipients routed by this route */
+    private AtomicLong hits=new AtomicLong(0);
+    
+    public JMailRoute(String kind, String pattern, int route, Pattern regex) {
+        this.myKind=kind;
+        this.myPattern=pattern;
+        this.myRoute=route;
+        this.myRegex=regex;
+    }
+    
+    public int getRoute() {
+        return myRoute;
+    }
+    
+    public Pattern getPattern() {
+        return myRegex;
+    }
+    
+    public void hit() {
+        hits.incrementAndGet();
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public String toString() {
+        return myKind+" "+myPattern+" -> "+JMailRoutingTable.routeName(myRoute)+" ("+hits.get()+" hit(s))";
+    }
+}
+
+/** This class is a node of the suffix rules of JMailRoutingTable, for
+ *  one label of a domain */
+class JMailRouteNode {
+    /** Nodes for the labels to the left of this one, by label */
+    private HashMap children=null;
+    /** Route of the domain ending at this node, if there is one */
+    private JMailRoute myRoute=null;
+    
+    /** This method gets the node for a label under this one
+     * @param label the label
+     * @param doCreate whether to add the node if it is not there
+     * @return the node, or null if it is not there and doCreate is false
+     */
+    public JMailRouteNode getChild(String label, boolean doCreate) {
+        JMailRouteNode temp=(children == null) ? null : (JMailRouteNode) children.get(label);
+        if(temp == null && doCreate) {
+            if(children == null) {
+                children=new HashMap();
+            }
+            temp=new JMailRouteNode();
+            children.put(label, temp);
+        }
+        return temp;
+    }
+    
+    public JMailRoute getRoute() {
+        return myRoute;
+    }
+    
+    public void setRoute(JMailRoute route) {
+        this.myRoute=route;
+    }
+}
+
+/** This class is a next hop for outgoing mail, that is the SMTP server a
+ *  recipient is handed to, and the recipients of a message going there */
+class JMailNextHop {
+    /** host of the SMTP server */
+    private String myHost=null;
+    /** port of the SMTP server */
+    private int myPort=0;
+    /** indexes of the recipients going to this hop */
+    private Vector myRecipents=new Vector();
+    
+    public JMailNextHop(String host, int port) {
+        this.myHost=host;
+        this.myPort=port;
+    }
+    
+    public String getHost() {
+        return myHost;
+    }
+    
+    public int getPort() {
+        return myPort;
+    }
+    
+    /** This method gets the key identifying the hop, the same for every
+     *  recipient sent to the same host and port
+     * @return host:port
+     */
+    public String getKey() {
+        return myHost.toLowerCase()+":"+myPort;
+    }
+    
+    public void addRecipent(int index) {
+        myRecipents.add(Integer.valueOf(index));
+    }
+    
+    public int getRecipentCount() {
+        return myRecipents.size();
+    }
+    
+    public int getRecipent(int i) {
+        return ((Integer) myRecipents.get(i)).intValue();
+    }
+}
+
+/** This class keeps connections to remote SMTP servers open between
+ *  deliveries, so mail to the same server does not pay for a new connect,
+ *  greeting and HELO each time.  A connection is handed back once its
+ *  transaction is over, and is RSET before it is used again.  Idle
+ *  connections are closed after SMTP_POOL_IDLE, and sent a NOOP every
+ *  SMTP_POOL_CHECK so that ones the server has dropped are found out
+ *  before a delivery needs them. */
+class JMailSMTPClientPool {
+    /** How long (millisecs) to wait for the reply to a NOOP */
+    public static final int CHECK_TIMEOUT=10000;
+    
+    /** Threads sending the NOOPs, so a server which does not answer holds
+     *  up neither the SMTPQueue timer nor the checks of other servers */
+    private ExecutorService checks=Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable task) {
+            Thread temp=new Thread(task, "JMailSMTPPoolCheck");
+            temp.setDaemon(true);
+            return temp;
+        }
+    });
+    
+    /** Idle connections; a LinkedList for each next hop key, the most
+     *  recently used last */
+    private HashMap idle=new HashMap();
+    /** Number of connections in [idle] */
+    private int idleCount=0;
+    /** Number of connections opened, and of times an idle one was used again */
+    private AtomicLong openedCount=new AtomicLong(0);
+    private AtomicLong reusedCount=new AtomicLong(0);
+    
+    public long getOpenedCount() {
+        return openedCount.get();
+    }
+    
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+    
+    public synchronized int getIdleCount() {
+        return idleCount;
+    }
+    
+    /** This method opens a new connection to a remote SMTP server
+     * @param hostName hostname of SMTP server to connect to
+     * @param port port of SMTP server to connect to
+     * @param key next hop key of the server
+     * @return the connection, waiting for the greeting, or null if the
+     * connect failed
+     */
+    public JMailSMTPClientConnection open(String hostName, int port, String key) {
+        Socket mySocket=new Socket();
+        
+        try {
+            mySocket.connect(new InetSocketAddress(hostName, port), JMailServer.TIMEOUT_CONNECT);
+        }
+        catch(UnknownHostException e) {
+            System.err.println("SMTPConnect: Don't know about "+hostName);
+            return null;
+        }
+        catch(IOException e) {
+            System.err.println("SMTPConnect: Connect failed to "+hostName+":"+port);
+            return null;
+        }
+        
+        return newConnection(mySocket, key);
+    }
+    
+    /** This method sets up a connection on a socket which has just connected
+     * @param mySocket socket connected to the server
+     * @param key next hop key of the server
+     * @return the connection, waiting for the greeting, or null on failure
+     */
+    public JMailSMTPClientConnection newConnection(Socket mySocket, String key) {
+        System.err.println("SMTPConnect: Connect succeeded to "+mySocket.getInetAddress().getHostAddress()+":"+mySocket.getPort());
+        
+        try {
+            PrintWriter out=new PrintWriter(mySocket.getOutputStream(), true);
+            BufferedReader in=new BufferedReader(new InputStreamReader(mySocket.getInputStream()));
+            openedCount.incrementAndGet();
+            return new JMailSMTPClientConnection(mySocket, in, out, key);
+        }
+        catch(IOException e) {
+            System.err.println("SMTPConnect: Failed to setup Writer/Reader");
+            try {
+                mySocket.close();
+            }
+            catch(IOException e2) {
+                // Already closing
+            }
+            return null;
+        }
+    }
+    
+    /** This method takes an idle connection to a server out of the pool
+     * @param key next hop key of the server
+     * @return the connection, or null if there is none
+     */
+    public JMailSMTPClientConnection checkOut(String key) {
+        long now=System.currentTimeMillis();
+        Vector toClose=new Vector();
+        JMailSMTPClientConnection found=null;
+        
+        synchronized(this) {
+            LinkedList list=(LinkedList) idle.get(key);
+            
+            while(found == null && list != null && ! list.isEmpty()) {
+                JMailSMTPClientConnection temp=(JMailSMTPClientConnection) list.removeLast();
+                idleCount--;
+                
+                if(now-temp.getLastUsed() > JMailServer.SMTP_POOL_IDLE) {
+                    // Idle too long; closed below
+                    toClose.add(temp);
+                }
+                else {
+                    found=temp;
+                }
+            }
+        }
+        
+        for(int i=0; i<toClose.size(); i++) {
+            ((JMailSMTPClientConnection) toClose.get(i)).close();
+        }
+        
+        if(found != null) {
+            reusedCount.incrementAndGet();
+        }
+        return found;
+    }
+    
+    /** This method hands a connection back once its transaction is over.
+     *  It is kept for the next delivery to the same server if it is still
+     *  usable and there is room, and closed otherwise.
+     * @param currConnection connection to hand back
+     */
+    public void checkIn(JMailSMTPClientConnection currConnection) {
+        currConnection.setLastUsed(System.currentTimeMillis());
+        putBack(currConnection);
+    }
+    
+    /** This method puts a connection in the pool, or closes it
+     * @param currConnection connection to put back
+     */
+    private void putBack(JMailSMTPClientConnection currConnection) {
+        if(currConnection.getCurrState() == JMailSMTPClientConnection.STATE_READY) {
+            synchronized(this) {
+                LinkedList list=(LinkedList) idle.get(currConnection.getKey());
+                if(list == null) {
+                    list=new LinkedList();
+                    idle.put(currConnection.getKey(), list);
+                }
+                
+                if(list.size() < JMailServer.SMTP_POOL_SIZE) {
+                    list.addLast(currConnection);
+                    idleCount++;
+                    return;
+                }
+            }
+        }
+        
+        currConnection.close();
+    }
+    
+    /** This method is run with each sweep of the SMTPQueue.  Connections
+     *  idle longer than SMTP_POOL_IDLE are closed, and those not checked for
+     *  SMTP_POOL_CHECK are sent a NOOP, and closed if it is not answered.
+     *  The NOOPs are sent on the check threads; this method does not wait for them.
+     */
+    public void sweep() {
+        long now=System.currentTimeMillis();
+        Vector toClose=new Vector();
+        Vector toCheck=new Vector();
+        
+        synchronized(this) {
+            Iterator listIterator=idle.values().iterator();
+            while(listIterator.hasNext()) {
+                Iterator i=((LinkedList) listIterator.next()).iterator();
+                while(i.hasNext()) {
+                    JMailSMTPClientConnection temp=(JMailSMTPClientConnection) i.next();
+                    if(now-temp.getLastUsed() > JMailServer.SMTP_POOL_IDLE) {
+                        i.remove();
+                        idleCount--;
+                        toClose.add(temp);
+                    }
+                    else if(now-temp.getLastChecked() > JMailServer.SMTP_POOL_CHECK) {
+                        // Out of the pool while it is checked, so no
+                        // delivery picks it up meanwhile
+                        i.remove();
+                        idleCount--;
+                        toCheck.add(temp);
+                    }
+                }
+            }
+        }
+        
+        for(int i=0; i<toClose.size(); i++) {
+            ((JMailSMTPClientConnection) toClose.get(i)).close();
+        }
+        
+        for(int i=0; i<toCheck.size(); i++) {
+            final JMailSMTPClientConnection temp=(JMailSMTPClientConnection) toCheck.get(i);
+            checks.execute(new Runnable() {
+                public void run() {
+                    if(check(temp)) {
+                        putBack(temp);
+                    }
+                    else {
+                        System.err.println("SMTPConnect: Idle connection to "+temp.getKey()+" no longer answers; closed");
+                        temp.close();
+                    }
+                }
+            });
+        }
+    }
+    
+    /** This method checks an idle connection is still answered.  It is run
+     *  on a check thread, while the connection is out of the pool.
+     * @param currConnection connection to check
+     * @return true if the server answered NOOP
+     */
+    private boolean check(JMailSMTPClientConnection currConnection) {
+        try {
+            Socket mySocket=currConnection.getSocket();
+            mySocket.setSoTimeout(CHECK_TIMEOUT);
+            currConnection.getWriter().println("NOOP\r");
+            String reply=currConnection.getReader().readLine();
+            mySocket.setSoTimeout(0);
+            
+            if(reply != null && reply.startsWith("250")) {
+                currConnection.setLastChecked(System.currentTimeMillis());
+                return true;
+            }
+        }
+        catch(IOException e) {
+            // Dropped, or no answer in time
+        }
+        return false;
+    }
+}
+
+/** This Thread makes new connections to remote SMTP servers for the
+ *  delivery workers.  A worker which needs a new connection asks for it
+ *  and goes on to the next message rather than wait for the connect,
+ *  which may take as long as TIMEOUT_CONNECT if the server does not answer.
+ *  Once the connect succeeds, fails or times out the message is handed
+ *  back to the workers. */
+class JMailSMTPConnector extends Thread {
+    /** Selector which the channels being connected are registered with */
+    private Selector mySelector=null;
+    /** Vector of JMailSMTPConnects waiting to be registered with the Selector */
+    private Vector pending=new Vector();
+    private JMailSMTPQueue myQueue=null;
+    private JMailSMTPClientPool myClientPool=null;
+    
+    public JMailSMTPConnector(JMailSMTPQueue queue, JMailSMTPClientPool clientPool) throws IOException {
+        super("JMailSMTPConnector");
+        setDaemon(true);
+        this.mySelector=Selector.open();
+        this.myQueue=queue;
+        this.myClientPool=clientPool;
+    }
+    
+    /** This method starts a connection to a server for a message.
+     *  It may be called from any thread.
+     * @param hop server to connect to
+     * @param currMessage message the connection is for
+     */
+    public void connect(JMailNextHop hop, JMailSMTPMessage currMessage) {
+        currMessage.startConnect(hop.getKey());
+        
+        JMailSMTPConnect currConnect=new JMailSMTPConnect(hop, currMessage, System.currentTimeMillis()+JMailServer.TIMEOUT_CONNECT);
+        try {
+            SocketChannel channel=SocketChannel.open();
+            currConnect.setChannel(channel);
+            channel.configureBlocking(false);
+            
+            if(channel.connect(new InetSocketAddress(hop.getHost(), hop.getPort()))) {
+                // Connected straight away
+                channel.configureBlocking(true);
+                done(currConnect);
+                return;
+            }
+        }
+        catch(UnresolvedAddressException e) {
+            System.err.println("SMTPConnect: Don't know about "+hop.getHost());
+            fail(currConnect);
+            return;
+        }
+        catch(IOException e) {
+            System.err.println("SMTPConnect: Connect failed to "+hop.getHost()+":"+hop.getPort());
+            fail(currConnect);
+            return;
+        }
+        catch(RuntimeException e) {
+            // Such as a port out of range
+            failed(currConnect, e);
+            return;
+        }
+        
+        pending.add(currConnect);
+        mySelector.wakeup();
+    }
+    
+    /** This method returns the number of connections being made */
+    public int getConnectingCount() {
+        return pending.size()+mySelector.keys().size();
+    }
+    
+    public void run() {
+        Vector connected=new Vector();
+        
+        while(true) {
+            try {
+                connectSome(connected);
+            }
+            catch(RuntimeException e) {
+                // Messages waiting on this thread would otherwise never be retried
+                System.err.println("SMTPConnector: Unexpected error ("+e+")");
+            }
+        }
+    }
+    
+    /** This method waits for connects to finish or time out, and passes
+     *  each one on once it has.  A connect which throws is failed.
+     * @param connected Vector to collect the connects which have finished in
+     */
+    private void connectSome(Vector connected) {
+        // Wake in time for the next connect to time out
+        long timeout=0;
+        long now=System.currentTimeMillis();
+        Iterator keys=mySelector.keys().iterator();
+        while(keys.hasNext()) {
+            SelectionKey key=(SelectionKey) keys.next();
+            long left=((JMailSMTPConnect) key.attachment()).getDeadline()-now;
+            if(timeout == 0 || left < timeout) {
+                timeout=Math.max(1, left);
+            }
+        }
+        
+        try {
+            mySelector.select(timeout);
+        }
+        catch(IOException e) {
+            System.err.println("SMTPConnector: Select failed");
+            return;
+        }
+        
+        // Take on any new connects
+        while(! pending.isEmpty()) {
+            JMailSMTPConnect currConnect=(JMailSMTPConnect) pending.remove(0);
+            try {
+                currConnect.getChannel().register(mySelector, SelectionKey.OP_CONNECT, currConnect);
+            }
+            catch(IOException e) {
+                fail(currConnect);
+            }
+            catch(RuntimeException e) {
+                failed(currConnect, e);
+            }
+        }
+        
+        keys=mySelector.selectedKeys().iterator();
+        while(keys.hasNext()) {
+            SelectionKey key=(SelectionKey) keys.next();
+            keys.remove();
+            
+            JMailSMTPConnect currConnect=(JMailSMTPConnect) key.attachment();
+            try {
+                if(currConnect.getChannel().finishConnect()) {
+                    key.cancel();
+                    connected.add(currConnect);
+                }
+            }
+            catch(IOException e) {
+                key.cancel();
+                System.err.println("SMTPConnect: Connect failed to "+currConnect.getHop().getHost()+":"+currConnect.getHop().getPort());
+                fail(currConnect);
+            }
+            catch(RuntimeException e) {
+                // Such as CancelledKeyException
+                key.cancel();
+                failed(currConnect, e);
+            }
+        }
+        
+        // Give up on those which have taken too long
+        now=System.currentTimeMillis();
+        keys=mySelector.keys().iterator();
+        while(keys.hasNext()) {
+            SelectionKey key=(SelectionKey) keys.next();
+            JMailSMTPConnect currConnect=(JMailSMTPConnect) key.attachment();
+            if(key.isValid() && now > currConnect.getDeadline()) {
+                key.cancel();
+                System.err.println("SMTPConnect: Connect timed out to "+currConnect.getHop().getHost()+":"+currConnect.getHop().getPort());
+                fail(currConnect);
+            }
+        }
+        
+        if(! connected.isEmpty()) {
+            // The channels must be deregistered before they can block
+            try {
+                mySelector.selectNow();
+            }
+            catch(IOException e) {
+                System.err.println("SMTPConnector: Select failed");
+            }
+            
+            while(! connected.isEmpty()) {
+                JMailSMTPConnect currConnect=(JMailSMTPConnect) connected.remove(0);
+                try {
+                    currConnect.getChannel().configureBlocking(true);
+                    done(currConnect);
+                }
+                catch(IOException e) {
+                    fail(currConnect);
+                }
+                catch(RuntimeException e) {
+                    failed(currConnect, e);
                 }
-                catch(Exception e) {}
             }
-            return toRet+myUser.getMessageHeaders(messageNo)+topString+".";
         }
-        return "-ERR TOP Bad Arg";
     }
     
-    /** When the user sends 'RSET' to the server, the server
-     *  unmarks all the messages which are to be deleted.
-     *  [This method is also called if a connection
-     *    is ended prematurely]
-     * @return true if all messages were successfully unmarked<br>
-     * false otherwise
-     */
-    public boolean resetAllMessages() throws JMailMessageNonExistantException {
-        for(int i=0; i<myUser.getMessageCount(); i++) {
-            if(!myUser.setMessageState(i, JMailPOP3Message.STATE_NORMAL)) {
-                return false;
-            }
+    /** This method hands a connected channel over to the message
+     * @param currConnect the connect which succeeded
+     */
+    private void done(JMailSMTPConnect currConnect) {
+        String key=currConnect.getHop().getKey();
+        JMailSMTPClientConnection clientConnection=myClientPool.newConnection(currConnect.getChannel().socket(), key);
+        myQueue.connectDone(currConnect.getMessage(), key, clientConnection);
+    }
+    
+    /** This method fails a connect which threw an unexpected exception
+     * @param currConnect the connect which failed
+     * @param e what it threw
+     */
+    private void failed(JMailSMTPConnect currConnect, RuntimeException e) {
+        System.err.println("SMTPConnect: Connect failed to "+currConnect.getHop().getHost()+":"+currConnect.getHop().getPort()+" ("+e+")");
+        fail(currConnect);
+    }
+    
+    /** This method tells the message a connect failed
+     * @param currConnect the connect which failed
+     */
+    private void fail(JMailSMTPConnect currConnect) {
+        if(currConnect.getChannel() != null) {
+            try {
+                currConnect.getChannel().close();
+            }
+            catch(IOException e) {
+                // Already closing
+            }
+        }
+        myQueue.connectDone(currConnect.getMessage(), currConnect.getHop().getKey(), null);
+    }
+}
+
+/** This class is a connection being made by JMailSMTPConnector */
+class JMailSMTPConnect {
+    private SocketChannel myChannel=null;
+    /** server being connected to */
+    private JMailNextHop myHop=null;
+    /** message the connection is for */
+    private JMailSMTPMessage myMessage=null;
+    /** time (millisecs) past which the connect is given up on */
+    private long myDeadline=0;
+    
+    public JMailSMTPConnect(JMailNextHop hop, JMailSMTPMessage message, long deadline) {
+        this.myHop=hop;
+        this.myMessage=message;
+        this.myDeadline=deadline;
+    }
+    
+    public SocketChannel getChannel() {
+        return myChannel;
+    }
+    
+    public void setChannel(SocketChannel channel) {
+        this.myChannel=channel;
+    }
+    
+    public JMailNextHop getHop() {
+        return myHop;
+    }
+    
+    public JMailSMTPMessage getMessage() {
+        return myMessage;
+    }
+    
+    public long getDeadline() {
+        return myDeadline;
+    }
+}
+
+
+
+///////////////////////////////////////////
+
+class JMailUserStore {
+    /** Vector of JMailUser objects used for storing messages */
+    private Vector myUsers=null;
+    
+    public JMailUserStore() {
+        myUsers=new Vector();
+    }
+    
+    public Enumeration getUsers() {
+        return myUsers.elements();
+    }
+    
+    private void getUserExists(String name) throws JMailUserExistsException, JMailUserNonExistantException {
+        getUser(name);
+        
+        // No exception thrown yet so user exists
+        throw new JMailUserExistsException("User Exists");
+    }
+    
+    public JMailUser getUser(String name) throws JMailUserNonExistantException {
+        for(int i=0; i<myUsers.size(); i++) {
+            JMailUser temp=(JMailUser) myUsers.get(i);
+            if(temp.getName().equals(name)) {
+                return temp;
+            }
+        }
+        throw new JMailUserNonExistantException("User Non-Existant");
+    }
+    
+    public boolean addUserObject(JMailUser object) {
+        try {
+            object.openMailbox(JMailServer.fileio.getMailboxFile(object.getName()));
+        }
+        catch(IOException e) {
+            System.err.println("File I/O: openMailbox fail ["+object.getName()+"] ("+e.getMessage()+")");
+            return false;
+        }
+        
+        myUsers.add(object);
+        JMailServer.fileio.saveUser(object.getName());
+        JMailServer.fileio.saveUserList();
+        return true;
+    }
+    
+    public boolean addUser(String name, String pass) throws JMailUserExistsException {
+        String lowername=name.toLowerCase();
+        
+        if(! lowername.matches("[a-z]{1,13}")) {
+            return false;
+        }
+        
+        if(! lowername.matches("\\w{1,13}")) {
+            return false;
+        }
+        
+        try {
+            getUser(name);
+        }
+        catch(JMailUserNonExistantException e) {
+            // OK to add
+        }
+        
+        JMailUser temp=new JMailUser(lowername, pass);
+        addUserObject(temp);
+        return true;
+    }
+}
+
+class JMailUser implements Serializable {
+    /** username of the JMailUser */
+    private String myName=null;
+    /** password of the JMailUser */
+    private String myPass=null;
+    /** Vector of JMailPOP3Message objects related to the JMailUser; these are
+     *  kept in the user's mailbox log rather than serialized with the user */
+    private transient JMailPOP3MailBox myMessages=null;
+    /** Whether the user is involved in the POP3 session */
+    private transient boolean isInPOP3Session=false;
+    
+    public JMailUser(String name, String pass) {
+        this.myName=name;
+        this.myPass=pass;
+    }
+    
+    /** This method reads the user's messages back from the mailbox log,
+     *  which they are written to from then on
+     * @param file the mailbox log
+     * @throws IOException if the log could not be read
+     */
+    public void openMailbox(File file) throws IOException {
+        myMessages=new JMailPOP3MailBox(new JMailMailboxLog(file));
+    }
+    
+    public String getName() {
+        return myName;
+    }
+    
+    public String getPass() {
+        return myPass;
+    }
+    
+    public boolean isInPOP3Session() {
+        return isInPOP3Session;
+    }
+    
+    public void setInPOP3Session(boolean value) {
+        isInPOP3Session=value;
+    }
+    
+    /** This method adds a message to the user's mailbox
+     * @param prefix header lines for this user alone, each ending in CRLF
+     * @param body content of the message, shared with its other recipients
+     * @return true if the message was added
+     */
+    public boolean addMessage(String prefix, JMailSharedBody body) {
+        return myMessages.addMessage(prefix, body);
+    }
+    
+    public int getMessageCount() {
+        return myMessages.getMessageCount();
+    }
+    
+    public int getMessageState(int messageNo) throws JMailMessageNonExistantException {
+        return myMessages.getMessageState(messageNo);
+    }
+    
+    public boolean setMessageState(int messageNo, int newState) throws JMailMessageNonExistantException {
+        return myMessages.setMessageState(messageNo, newState);
+    }
+    
+    public String getMessage(int messageNo) throws JMailMessageNonExistantException {
+        return getMessageHeaders(messageNo)+"\n\n"+getMessageBody(messageNo);
+    }
+    
+    public String getMessageHeaders(int messageNo) throws JMailMessageNonExistantException {
+        return myMessages.getMessageHeaders(messageNo);
+    }
+    
+    public String getMessageBody(int messageNo) throws JMailMessageNonExistantException {
+        return myMessages.getMessageBody(messageNo);
+    }
+    
+    public boolean deleteMessage(int messageNo) throws JMailMessageNonExistantException {
+        return myMessages.deleteMessage(messageNo);
+    }
+}
+
+class JMailEmailComboList implements Serializable {
+    private Vector emails=new Vector();
+    
+    public void add(JMailEmailCombo temp) {
+        emails.add(temp);
+    }
+    
+    public Enumeration elements() {
+        return emails.elements();
+    }
+}
+
+class JMailEmailCombo implements Serializable {
+    private String _unparsed=null;
+    private String _user=null;
+    private String _domain=null;
+    
+    public JMailEmailCombo(String unparsed, String user, String domain) {
+        this._unparsed=unparsed;
+        this._user=user;
+        this._domain=domain;
+    }
+    
+    public String unparsed() {
+        return _unparsed;
+    }
+    
+    public String parsed() {
+        return isNull() ? "" : user()+"@"+domain();
+    }
+    
+    /** This method returns true for the null reverse-path, MAIL FROM:<>
+     * @return true if there is no address
+     */
+    public boolean isNull() {
+        return user().equals("") && domain().equals("");
+    }
+    
+    public String user() {
+        return _user;
+    }
+    
+    public String domain() {
+        return _domain;
+    }
+    
+    /** This method returns true if the domain is routed to this server
+     * @return true if mail for the domain is delivered here<br>
+     * false otherwise
+     */
+    public boolean isDomainServerLocal() {
+        JMailServer.printDebug("EmailCombo: ServerLocal? '"+domain()+"'");
+        
+        return JMailServer.routingTable.getRoute(domain()) == JMailRoutingTable.ROUTE_LOCAL;
+    }
+    
+    /** This method returns true if the domain is routed to its own SMTP
+     * server, by default if it matches the JMailServer.NETWORK_LOCAL_REGEX
+     * regular expression
+     * @return true if hostname is network-local<br>
+     * false otherwise
+     */
+    public boolean isDomainNetworkLocal() {
+        JMailServer.printDebug("EmailCombo: NetworkLocal? '"+domain()+"'");
+        
+        return JMailServer.routingTable.getRoute(domain()) == JMailRoutingTable.ROUTE_NETWORK;
+    }
+}
+
+class JMailPOP3MailBox {
+    private Vector myMessages = null;
+    /** Log each message added or deleted is written to */
+    private JMailMailboxLog myLog = null;
+    
+    /** @param log log the messages are read back from, and written to
+     * @throws IOException if the log could not be read
+     */
+    public JMailPOP3MailBox(JMailMailboxLog log) throws IOException {
+        myLog = log;
+        myMessages = log.open();
+    }
+    
+    public Enumeration getMessages() {
+        return myMessages.elements();
+    }
+    
+    private boolean getMessageExists(int messageNo) {
+        if(messageNo >= 0 && messageNo < getMessageCount()) {
+            return true;
+        }
+        return false;
+    }
+    
+    private JMailPOP3Message getMessage(int messageNo) throws JMailMessageNonExistantException {
+        if(getMessageExists(messageNo)) {
+            return (JMailPOP3Message) myMessages.elementAt(messageNo);
+        }
+        throw new JMailMessageNonExistantException("Message Non-Existant");
+    }
+    
+    /** Returns the message state
+     * @param messageNo id of the message
+     * @return currState of the message<br>
+     * <li>STATE_NORMAL: the normal state</li>
+     * <li>STATE_MARKED: marked for deletion</li>
+     */
+    public int getMessageState(int messageNo) throws JMailMessageNonExistantException {
+        return getMessage(messageNo).getState();
+    }
+    
+    public String getMessageHeaders(int messageNo) throws JMailMessageNonExistantException {
+        try {
+            return getMessage(messageNo).readHeaders();
+        }
+        catch(IOException e) {
+            System.err.println("POP3MailBox: Failed to read message content ("+e.getMessage()+")");
+            throw new JMailMessageNonExistantException("Message content unreadable");
+        }
+    }
+    
+    public String getMessageBody(int messageNo) throws JMailMessageNonExistantException {
+        try {
+            return getMessage(messageNo).readBody();
+        }
+        catch(IOException e) {
+            System.err.println("POP3MailBox: Failed to read message content ("+e.getMessage()+")");
+            throw new JMailMessageNonExistantException("Message content unreadable");
+        }
+    }
+    
+    public boolean addMessage(String prefix, JMailSharedBody body) {
+        JMailPOP3Message temp=new JMailPOP3Message(prefix, body);
+        try {
+            myLog.append(temp);
+        }
+        catch(IOException e) {
+            System.err.println("File I/O: Mailbox append fail ("+e.getMessage()+")");
+            temp.release();
+            return false;
         }
+        myMessages.add(temp);
         return true;
     }
     
-    /** When the user sends 'QUIT' to the server, the server
-     *  commits all changes made during the connection
-     * @return true if successful<br>
-     * false if unsuccessful
-     */
-    private boolean commitChanges() throws JMailMessageNonExistantException {
-        myUser.setInPOP3Session(false);
-        
-        for(int i=0; i<myUser.getMessageCount(); i++) {
-            int tempState=myUser.getMessageState(i);
-            if(tempState == JMailPOP3Message.STATE_MARKED) {
-                if(!myUser.deleteMessage(i)) {
-                    return false;
-                }
-            }
+    public boolean setMessageState(int messageNo, int newState) throws JMailMessageNonExistantException {
+        return getMessage(messageNo).setState(newState);
+    }
+    
+    public boolean deleteMessage(int messageNo) throws JMailMessageNonExistantException {
+        JMailPOP3Message temp=getMessage(messageNo);
+        try {
+            // Logged before the content can be thrown away
+            myLog.remove(temp);
         }
-        
+        catch(IOException e) {
+            System.err.println("File I/O: Mailbox delete fail ("+e.getMessage()+")");
+            return false;
+        }
+        if(! myMessages.remove(temp)) {
+            return false;
+        }
+        temp.release();
         return true;
     }
+    
+    public int getMessageCount() {
+        return myMessages.size();
+    }
 }
 
-class JMailSMTPConnection {
-    public static final int STATE_HELO=110;
-    public static final int STATE_FROM=120;
-    public static final int STATE_TO=130;
-    public static final int STATE_DATA=140;
-    public static final int STATE_DATA2=150;
-    public static final int STATE_END=200;
+/** This class is the content of a message in the mailboxes, held once however
+ *  many mailboxes it was delivered to.  It is counted by the JMailBodyStore,
+ *  and thrown away when the last of them deletes it. */
+class JMailSharedBody {
+    private long myId=0;
+    /** File the dot-stuffed content is kept in, with CRLF line ends */
+    private File myFile=null;
+    /** Offset in [myFile] where the headers end, or -1 if the content starts
+     *  with a blank line */
+    private long headerEnd=-1;
+    /** Offset in [myFile] where the body starts */
+    private long bodyStart=0;
+    /** Size of [myFile] */
+    private long myLength=0;
+    /** Number of messages, plus the deliverer while it is adding them, holding it */
+    private int refCount=0;
     
-    /** This variable holds the Socket relating to the connection */
-    private Socket relatedSocket=null;
-    /** This variable holds the current state of the connection */
-    private int currState=0;
+    /** @param id id of the content in the JMailBodyStore
+     * @param file file the content is kept in
+     */
+    public JMailSharedBody(long id, File file) {
+        this.myId=id;
+        this.myFile=file;
+    }
     
-    /** This is the value given with the HELO statement.
-     * It is used when tranmiting the SMTP message
+    /** This method records where the headers and body lie in the file, once
+     *  it has been written or read through
+     * @param finder the JMailHeaderFinder the content was passed through
      */
-    private String myHELOName=null;
-    private String myClientName=null;
-    /** This is the InetAddress relating to the current Connection */
-    private InetAddress myClientIP=null;
-    /** This is the value given with the MAIL FROM statement.
-     * It is used when transmiting the SMTP message
+    public void setLayout(JMailHeaderFinder finder) {
+        this.headerEnd=finder.getHeaderEnd();
+        this.bodyStart=finder.getBodyStart();
+        this.myLength=finder.getCount();
+    }
+    
+    public long getId() {
+        return myId;
+    }
+    
+    /** This method reads the headers from disk
+     * @return headers, with LF line ends, or null if the content has none
      */
-    private JMailEmailCombo mySender=null;
-    /** This is a Vector of all the values given with the MAIL FROM statements.
-     * It is used when transmiting the SMTP message
+    public String readHeaders() throws IOException {
+        return (headerEnd == -1) ? null : readText(0, headerEnd);
+    }
+    
+    /** This method reads the body from disk
+     * @return body, with LF line ends, ending in a "." line
      */
-    private JMailEmailComboList myRecipents=null;
-    /** This is the body of the SMTP message */
-    private String myBody="";
+    public String readBody() throws IOException {
+        return readText(bodyStart, myLength);
+    }
     
-    public JMailSMTPConnection(Socket thatSocket) {
-        this.currState=STATE_HELO;
-        this.relatedSocket=thatSocket;
-        this.myRecipents=new JMailEmailComboList();
+    /** This method reads the bytes from [from] to [to] of the file as text
+     * @return the text, with LF line ends
+     */
+    private String readText(long from, long to) throws IOException {
+        ByteArrayOutputStream bytes=new ByteArrayOutputStream((int) Math.min(to-from, JMailMessageBuffer.CHUNK_SIZE));
+        byte[] buffer=new byte[JMailMessageBuffer.CHUNK_SIZE];
+        RandomAccessFile in=new RandomAccessFile(myFile, "r");
+        try {
+            in.seek(from);
+            while(from < to) {
+                int count=in.read(buffer, 0, (int) Math.min(buffer.length, to-from));
+                if(count == -1) {
+                    throw new EOFException("Content file "+myFile.getName()+" is truncated");
+                }
+                bytes.write(buffer, 0, count);
+                from+=count;
+            }
+        }
+        finally {
+            in.close();
+        }
+        return bytes.toString("UTF-8").replace("\r\n", "\n");
     }
     
-    public int getCurrState() {
-        return currState;
+    public int getRefCount() {
+        return refCount;
     }
     
-    public JMailEmailCombo checkEmail(String testEmail) {
-        // To pass the email must match /(\w+*@(\w+\.)*\w+/
-        String emailRegex="(\\w+\\.)*\\w+@(\\w+\\.)*\\w+";
-        boolean goodEmail=false;
-        String[] toReturn=null;
-        
-        JMailServer.printDebug("CheckEmail: Input => '"+testEmail+"'");
-        
-        if(testEmail.matches("^"+emailRegex+"$")) {
-            JMailServer.printDebug("CheckEmail: Matches Simple");
-            goodEmail=true;
-            toReturn=testEmail.split("@", 2);
-        }
-        else if(testEmail.matches("^.*<"+emailRegex+">$")) {
-            JMailServer.printDebug("CheckEmail: Matches Complex");
-            goodEmail=true;
-            // Get the string between the < and >
-            int startPos=testEmail.indexOf('<');
-            int endPos=testEmail.indexOf('>', startPos);
-            
-            String middleBit=testEmail.substring(startPos+1, endPos);
-            
-            toReturn=middleBit.split("@", 2);
+    public void setRefCount(int count) {
+        refCount=count;
+    }
+}
+
+/** This class is the log of the messages in one user's mailbox.
+ *  A delivered message is appended as a record holding its own header lines
+ *  and the id of its content in the JMailBodyStore, and a deleted message
+ *  as a record holding only its id, so the cost of either does not grow with
+ *  the size of the mailbox.  On start up the log is read back, and rewritten
+ *  without the deleted messages if there are any.
+ *  Like the queue journal, each record ends with a CRC32 of its bytes, so a
+ *  record which was only partly written is found and thrown away, and an
+ *  added message is forced to disk before append returns, shared between
+ *  the deliveries made at once. */
+class JMailMailboxLog {
+    /** Record holding a message added to the mailbox */
+    private static final byte RECORD_ADD=1;
+    /** Record marking a message as deleted */
+    private static final byte RECORD_DELETE=2;
+    /** Once all messages are deleted, a log larger than this is emptied */
+    private static final long COMPACT_SIZE=65536;
+    /** Largest header accepted when reading a record back */
+    private static final int META_MAX=1048576;
+    
+    private File myFile=null;
+    private FileOutputStream myFileOut=null;
+    private FileChannel myChannel=null;
+    private OutputStream myOut=null;
+    /** Shares forcing the log to disk between deliveries */
+    private JMailGroupCommit myCommit=null;
+    /** Lock held while writing to the log */
+    private final ReentrantLock writeLock=new ReentrantLock();
+    
+    /** Id given to the next message appended */
+    private final AtomicLong nextId=new AtomicLong(1);
+    /** Number of messages in the log which are not deleted */
+    private int liveCount=0;
+    /** Size of the log file, up to the end of the last whole record */
+    private long fileLength=0;
+    /** Whether a failed write may have left part of a record after [fileLength],
+     *  which must be cut off before anything else is written */
+    private boolean isTorn=false;
+    /** Whether a damaged record was found before the end of the log when it was opened */
+    private boolean isDamaged=false;
+    
+    public JMailMailboxLog(File file) {
+        this.myFile=file;
+    }
+    
+    /** This method reads the messages in the log, and opens it for appending
+     * @return Vector of JMailPOP3Message in the mailbox, in the order they were added
+     * @throws IOException if the log could not be opened
+     */
+    public Vector open() throws IOException {
+        writeLock.lock();
+        try {
+            return openLog();
         }
-        
-        if(goodEmail) {
-            JMailServer.printDebug("CheckEmail: "+toReturn[0]+"@"+toReturn[1]);
-            return new JMailEmailCombo(testEmail, toReturn[0], toReturn[1]);
+        finally {
+            writeLock.unlock();
         }
-        return null;
     }
     
-    public String processInput(String theInput) {
-        String toReturn=null;
-        String arg1="";
+    /** This method does the work of open(), with writeLock held */
+    private Vector openLog() throws IOException {
+        // Map of id to the header of its ADD record, in the order they were added
+        LinkedHashMap records=new LinkedHashMap();
+        boolean isClean=true;
         
-        if(currState == STATE_DATA) {
-            return processData(theInput);
+        if(myFile.exists()) {
+            DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(myFile), JMailMessageBuffer.CHUNK_SIZE));
+            try {
+                isClean=readRecords(in, records);
+            }
+            finally {
+                in.close();
+            }
         }
         
-        try {
-            if(theInput.toUpperCase().split(" ")[0].equals("QUIT")) {
-                currState=STATE_END;
-                return "221 Good for you; Smoking is bad";
+        // Only the messages left are given their content, so content shared
+        // with a mailbox not read yet is not thrown away
+        Vector toRet=new Vector();
+        Iterator iterator=records.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry entry=(Map.Entry) iterator.next();
+            long id=((Long) entry.getKey()).longValue();
+            DataInputStream metaIn=new DataInputStream(new ByteArrayInputStream((byte[]) entry.getValue()));
+            String prefix=metaIn.readUTF();
+            long bodyId=metaIn.readLong();
+            
+            JMailSharedBody body=null;
+            try {
+                body=JMailServer.bodyStore.get(bodyId);
+            }
+            catch(IOException e) {
+                System.err.println("Mailbox Log: Content of message "+id+" in "+myFile.getName()+" is missing");
+                isClean=false;
+                continue;
             }
+            JMailPOP3Message message=new JMailPOP3Message(prefix, body);
+            message.setId(id);
+            toRet.add(message);
         }
-        catch(Exception e) {
-            // theInput doesn't contain QUIT
+        liveCount=toRet.size();
+        
+        if(isClean) {
+            myFileOut=new FileOutputStream(myFile, true);
+            myChannel=myFileOut.getChannel();
+            myOut=new BufferedOutputStream(myFileOut);
+            myCommit=new JMailGroupCommit(myChannel);
+            fileLength=myChannel.size();
+            return toRet;
         }
         
-        // Some other state
-        if(JMailServer.isOnline) {
-            // Server is Online
-            return processStates(theInput)+"\r";
+        if(isDamaged) {
+            // Keep the log as it was, as the records after the damage are lost
+            File damaged=new File(myFile.getPath()+".damaged");
+            damaged.delete();
+            if(myFile.renameTo(damaged)) {
+                System.err.println("Mailbox Log: Damaged log kept as "+damaged.getName());
+            }
+            else {
+                System.err.println("Mailbox Log: Could not keep damaged log as "+damaged.getName());
+            }
         }
         
-        // Server is offline
-        return "421 Service Not Available\r";
-    }
-    
-    /** This method is used when the Connection is in the 'Collect body' state
-     * @param dataString string to append to the body
-     * or if equals(".") then leave data state
-     * @return null
-     */
-    private String processData(String dataString) {
-        if(dataString.equals(".")) {
-            // This is the end of data collection
-            // Put the message in the queue
-            
-            JMailServer.mySMTPQueue.addMessage(myHELOName, myClientName, myClientIP, mySender, myRecipents, myBody);
-            int theLength=myBody.length();
-            
-            // Reset all the vars
-            mySender=null;
-            myRecipents=new JMailEmailComboList();
-            myBody="";
-            currState=STATE_FROM;
-            
-            return "250 "+theLength+" bytes received. Message accepted\r";
+        // Write the messages left to a new log and swap it in
+        File temp=new File(myFile.getPath()+".new");
+        myFileOut=new FileOutputStream(temp);
+        myChannel=myFileOut.getChannel();
+        myOut=new BufferedOutputStream(myFileOut, JMailMessageBuffer.CHUNK_SIZE);
+        fileLength=0;
+        
+        for(int i=0; i<toRet.size(); i++) {
+            byte[] record=makeAdd((JMailPOP3Message) toRet.get(i));
+            myOut.write(record);
+            fileLength+=record.length;
         }
+        myOut.flush();
+        myChannel.force(true);
         
-        myBody+=dataString+"\r\n";
-        return null;
+        if(! temp.renameTo(myFile)) {
+            throw new IOException("Could not replace "+myFile);
+        }
+        myCommit=new JMailGroupCommit(myChannel);
+        return toRet;
     }
     
-    /** This method processes the inputString.
-     * Checking whether the protocol is being followed.
-     * @param theInput string to parse
-     * @return message to return to client
+    /** This method reads records until the end of the log, or the first
+     *  damaged record.  A damaged last record was only partly written, and
+     *  is dropped; one with more records after it means the log is
+     *  damaged, and sets isDamaged.
+     * @param in stream to read the log from
+     * @param records map the ADD records of the messages which are not deleted are put in
+     * @return true if every record was read and no message was deleted
      */
-    private String processStates(String theInput) {
-        if(theInput == null) {
-            // Welcome message
-            return "220 "+JMailServer.myHostname+" JMail SMTP Server; "+new Date();
-        }
+    private boolean readRecords(DataInputStream in, LinkedHashMap records) throws IOException {
+        CRC32 crc=new CRC32();
+        DataInputStream checked=new DataInputStream(new CheckedInputStream(in, crc));
+        boolean isClean=true;
+        // Offset of the record being read
+        long offset=0;
         
-        // Something useful to parse
-        String[] myArgs=theInput.split(" ", 2);
-        String arg1=myArgs[0].toUpperCase();
-        
-        // HELO
-        if(arg1.equals("HELO")) {
-            if(myArgs.length >= 2 && ! myArgs[1].equals("")) {
-                myHELOName=myArgs[1];
-                myClientName=relatedSocket.getInetAddress().getHostName();
-                myClientIP=relatedSocket.getInetAddress();
-                currState=STATE_FROM;
-                return "250 "+JMailServer.myHostname+" Hello "+myClientName+" ["+myClientIP.getHostAddress()+"], pleased to meet you. ";
-            }
+        while(true) {
+            crc.reset();
             
-            // Problem with number of args
-            return "501 HELO requires domain address";
-        }
-        // MAIL
-        else if(arg1.equals("MAIL")) {
-            if(currState == STATE_FROM) {
-                if(myArgs.length >= 2 && ! myArgs[1].equals("")) {
-                    String[] fromArgs=myArgs[1].split(":", 2);
-                    if(fromArgs[0].toUpperCase().equals("FROM") && fromArgs.length == 2 && ! fromArgs[1].equals("")) {
-                        String tempFrom=fromArgs[1].trim();
-                        JMailEmailCombo userDom=checkEmail(tempFrom);
-                        
-                        // Email address is OK
-                        if(userDom != null) {
-                            mySender=userDom;
-                            currState=STATE_TO;
-                            return "250 <"+mySender.parsed()+">... Sender ok";
-                        }
-                        
-                        // Email address not correct
-                        return "501 Email address invalid";
-                    }
+            try {
+                int type=checked.read();
+                if(type == -1) {
+                    return isClean;
                 }
-                // Some problem with number of args
-                return "501 Syntax Error";
-            }
-            
-            // Incorrect state
-            return "503 Bad sequence of commands";
-        }
-        // RCPT
-        else if(arg1.equals("RCPT")) {
-            if(currState == STATE_TO) {
-                if(myArgs.length >= 2 && ! myArgs[1].equals("")) {
-                    String[] toArgs=myArgs[1].split(":", 2);
-                    if(toArgs[0].toUpperCase().equals("TO") && toArgs.length == 2 && ! toArgs[1].equals("")) {
-                        String tempTo=toArgs[1].trim();
-                        JMailEmailCombo userDom=checkEmail(tempTo);
-                        
-                        // Email address is OK
-                        if(userDom != null) {
-                            // Email is local
-                            if(userDom.isDomainServerLocal()) {
-                                try {
-                                    JMailServer.allUsers.getUser(userDom.user());
-                                    myRecipents.add(userDom);
-                                    return "250 <"+userDom.parsed()+">... Recipent ok (Local)";
-                                }
-                                catch(JMailUserNonExistantException e) {
-                                    // No such local user
-                                    return "550 <"+userDom.parsed()+">... No such local user";
-                                }
-                            }
-                            // Email is not local
-                            // Should be 251 but noone likes that
-                            myRecipents.add(userDom);
-                            return "250 <"+userDom.parsed()+">... Recipent ok; will forward onwards";
-                        }
-                        
-                        // Email address not correct
-                        return "501 Email address invalid";
+                
+                long id=checked.readLong();
+                int metaLength=checked.readInt();
+                if(metaLength < 0 || metaLength > META_MAX) {
+                    throw new IOException("Bad header length");
+                }
+                byte[] meta=new byte[metaLength];
+                checked.readFully(meta);
+                
+                long expected=crc.getValue();
+                if(in.readLong() != expected) {
+                    if(in.read() == -1) {
+                        // Nothing follows, so it is the last record, only partly on disk
+                        throw new EOFException();
                     }
+                    throw new IOException("Bad checksum");
+                }
+                offset+=21+metaLength;
+                
+                if(id >= nextId.get()) {
+                    nextId.set(id+1);
+                }
+                if(type == RECORD_ADD) {
+                    records.put(Long.valueOf(id), meta);
+                }
+                else if(type == RECORD_DELETE) {
+                    records.remove(Long.valueOf(id));
+                    isClean=false;
                 }
-                // Some problem with number of args
-                return "501 Syntax Error";
-            }
-            
-            // Incorrect state
-            return "503 Bad sequence of commands";
-        }
-        // DATA
-        else if(arg1.equals("DATA")) {
-            if(currState == STATE_TO) {
-                // Now we ask for data to send
-                currState=STATE_DATA;
-                return "354 Enter Mail, end with \".\" on a line by itself";
             }
-            
-            // Incorrect state
-            return "503 Bad sequence of commands";
-        }
-        // RSET
-        else if(arg1.equals("RSET")) {
-            mySender=null;
-            myRecipents=new JMailEmailComboList();
-            myBody="";
-            currState=STATE_FROM;
-            return "250 Reset State";
-        }
-        // NOOP
-        else if(arg1.equals("NOOP")) {
-            return "250 All OK";
+            catch(EOFException e) {
+                // The last record was only partly written
+                System.err.println("Mailbox Log: Discarding partly written record at end of "+myFile.getName());
+                return false;
+            }
+            catch(IOException e) {
+                // Records follow which cannot be found again, so they are lost
+                System.err.println("Mailbox Log: "+myFile.getName()+" damaged at offset "+offset+" ("+e.getMessage()+"); records after it are lost");
+                isDamaged=true;
+                return false;
+            }
         }
-        
-        // Command unrecognised
-        return "500 Syntax Error; Command unrecognised";
     }
-}
-
-class JMailSMTPClientConnection {
-    public static final int STATE_HELO=210;
-    public static final int STATE_FROM=220;
-    public static final int STATE_TO=230;
-    public static final int STATE_DATA=240;
-    public static final int STATE_DATA2=241;
-    public static final int STATE_DATA3=242;
-    public static final int STATE_QUIT=250;
-    public static final int STATE_END=3000;
     
-    /** This variable holds the Socket relating to the connection */
-    private Socket relatedSocket=null;
-    /** This variable holds the current state of the connection */
-    private int currState=0;
+    /** This method builds one record, ready to be copied into the log
+     * @param type RECORD_ADD or RECORD_DELETE
+     * @param id id of the message
+     * @param meta header of the record
+     * @return bytes of the record, including its checksum
+     */
+    private static byte[] makeRecord(byte type, long id, byte[] meta) throws IOException {
+        ByteArrayOutputStream record=new ByteArrayOutputStream(meta.length+21);
+        CRC32 crc=new CRC32();
+        DataOutputStream out=new DataOutputStream(new CheckedOutputStream(record, crc));
+        out.writeByte(type);
+        out.writeLong(id);
+        out.writeInt(meta.length);
+        out.write(meta);
+        
+        long value=crc.getValue();
+        new DataOutputStream(record).writeLong(value);
+        return record.toByteArray();
+    }
     
-    /** sender of the SMTP message */
-    private JMailEmailCombo mySender=null;
-    /** recipient of the SMTP message */
-    private JMailEmailCombo myRecipent=null;
-    /** body of the SMTP message */
-    private String myBody=null;
+    private static byte[] makeAdd(JMailPOP3Message message) throws IOException {
+        ByteArrayOutputStream metaBytes=new ByteArrayOutputStream(256);
+        DataOutputStream metaOut=new DataOutputStream(metaBytes);
+        metaOut.writeUTF(message.getPrefix());
+        metaOut.writeLong(message.getBodyId());
+        
+        return makeRecord(RECORD_ADD, message.getId(), metaBytes.toByteArray());
+    }
     
-    public JMailSMTPClientConnection(Socket thatSocket, JMailEmailCombo sender, JMailEmailCombo recipent, String body) {
-        this.currState=STATE_HELO;
-        this.relatedSocket=thatSocket;
-        this.mySender=sender;
-        this.myRecipent=recipent;
-        this.myBody=body;
+    /** This method appends a message added to the mailbox, and returns once
+     *  it is on disk.  The message is given its id.
+     * @param message message which has been delivered
+     * @throws IOException if the message could not be written
+     */
+    public void append(JMailPOP3Message message) throws IOException {
+        message.setId(nextId.getAndIncrement());
+        byte[] record=makeAdd(message);
+        
+        long sequence;
+        writeLock.lock();
+        try {
+            writeRecord(record);
+            liveCount++;
+            // Only counted once flushed, so a sync which sees it includes it
+            sequence=myCommit.written();
+        }
+        finally {
+            writeLock.unlock();
+        }
+        
+        myCommit.sync(sequence);
     }
     
-    public int getCurrState() {
-        return currState;
+    /** This method records that a message has been deleted from the mailbox.
+     *  It is not forced to disk; at worst the message is listed again.
+     * @param message message which has been deleted
+     * @throws IOException if the record could not be written
+     */
+    public void remove(JMailPOP3Message message) throws IOException {
+        byte[] record=makeRecord(RECORD_DELETE, message.getId(), new byte[0]);
+        
+        writeLock.lock();
+        try {
+            writeRecord(record);
+            liveCount--;
+            
+            if(liveCount == 0 && fileLength > COMPACT_SIZE) {
+                // Nothing left in the mailbox, so start again
+                myChannel.truncate(0);
+                fileLength=0;
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
     }
     
-    public String processInput(String theInput) {
-        String toReturn=null;
-        String arg1="";
+    /** This method appends one record to the log.  It is called with
+     *  writeLock held.  If the write fails, whatever part of the record
+     *  reached the file is cut off, so the next record does not follow a
+     *  damaged one.
+     * @param record bytes of the record
+     * @throws IOException if the record could not be written
+     */
+    private void writeRecord(byte[] record) throws IOException {
+        if(isTorn) {
+            // Nothing more may be written until the last failed write is cut off
+            myChannel.truncate(fileLength);
+            isTorn=false;
+        }
         
-        if(theInput == null) {
-            currState=STATE_END;
+        try {
+            myOut.write(record);
+            myOut.flush();
         }
-        else {
-            // Something useful
-            
-            String[] myArgs=theInput.split(" ", 2);
-            arg1=myArgs[0];
-            
-            // Check for 421 (QUIT)
-            if(currState != STATE_DATA && myArgs[0].toUpperCase().equals("421")) {
-                currState=STATE_END;
+        catch(IOException e) {
+            // Throw away what is left in the buffer with the failed write
+            myOut=new BufferedOutputStream(myFileOut);
+            isTorn=true;
+            try {
+                myChannel.truncate(fileLength);
+                isTorn=false;
             }
-            // Some other command
-            else {
-                switch(currState) {
-                    case STATE_HELO:
-                        if(myArgs[0].equals("220")) {
-                            // Good response
-                            toReturn="HELO "+JMailServer.myHostname;
-                            currState=STATE_FROM;
-                        }
-                        else {
-                            toReturn="QUIT";
-                            currState=STATE_QUIT;
-                        }
-                        break;
-                    case STATE_FROM:
-                        if(myArgs[0].equals("250")) {
-                            // Good response
-                            toReturn="MAIL FROM: "+mySender.unparsed();
-                            currState=STATE_TO;
-                        }
-                        else {
-                            toReturn="QUIT";
-                            currState=STATE_QUIT;
-                        }
-                        break;
-                    case STATE_TO:
-                        if(myArgs[0].equals("250")) {
-                            // Good response
-                            toReturn="RCPT TO: "+myRecipent.unparsed();
-                            currState=STATE_DATA;
-                        }
-                        else {
-                            toReturn="QUIT";
-                            currState=STATE_QUIT;
-                        }
-                        break;
-                    case STATE_DATA:
-                        if(myArgs[0].equals("250") || myArgs[0].equals("251")) {
-                            // Good response
-                            toReturn="DATA";
-                            currState=STATE_DATA2;
-                        }
-                        else {
-                            toReturn="QUIT";
-                            currState=STATE_QUIT;
-                        }
-                        break;
-                    case STATE_DATA2:
-                        if(myArgs[0].equals("354")) {
-                            // Good response
-                            toReturn=myBody;
-                            currState=STATE_DATA3;
-                        }
-                        break;
-                    case STATE_DATA3:
-                        if(myArgs[0].equals("250")) {
-                            toReturn="QUIT";
-                            currState=STATE_QUIT;
-                        }
-                        break;
-                    case STATE_QUIT:
-                        if(myArgs[0].equals("221")) {
-                            toReturn="";
-                            currState=STATE_END;
-                        }
-                        break;
-                    default:
-                        toReturn="QUIT";
-                        currState=STATE_QUIT;
-                }
+            catch(IOException e2) {
+                System.err.println("Mailbox Log: Failed to cut off partly written record in "+myFile.getName()+" ("+e2.getMessage()+")");
             }
+            throw e;
         }
-        return toReturn+"\r";
+        fileLength+=record.length;
     }
 }
 
-///////////////////////////////////////////
-
-class JMailUserStore {
-    /** Vector of JMailUser objects used for storing messages */
-    private Vector myUsers=null;
-    
-    public JMailUserStore() {
-        myUsers=new Vector();
-    }
+/** This class holds the content of the messages in the mailboxes.
+ *  A message delivered to many local users is stored once, in memory and in
+ *  its own file, and each mailbox keeps only its own header lines and the id
+ *  of the content.  The content is counted, and is thrown away once it has
+ *  been deleted from every mailbox.  The counts are not saved; they are
+ *  made again as the mailboxes are read back. */
+class JMailBodyStore {
+    private static final String BODY_FILEEXT=".body";
+    /** Ends the content, after its last line */
+    private static final byte[] BODY_END={'\r', '\n', '.'};
     
-    public Enumeration getUsers() {
-        return myUsers.elements();
-    }
+    private File myDir=null;
+    /** Map of content id (Long) to JMailSharedBody, for the content in use */
+    private HashMap myBodies=new HashMap();
+    private long nextId=1;
+    /** Total number of holds on content */
+    private long refTotal=0;
     
-    private void getUserExists(String name) throws JMailUserExistsException, JMailUserNonExistantException {
-        getUser(name);
+    /** @param dir directory the content is kept in */
+    public JMailBodyStore(File dir) {
+        this.myDir=dir;
         
-        // No exception thrown yet so user exists
-        throw new JMailUserExistsException("User Exists");
+        // Carry on from the ids already in use
+        String[] names=dir.list();
+        for(int i=0; names != null && i<names.length; i++) {
+            long id=getFileId(names[i]);
+            if(id >= nextId) {
+                nextId=id+1;
+            }
+        }
     }
     
-    public JMailUser getUser(String name) throws JMailUserNonExistantException {
-        for(int i=0; i<myUsers.size(); i++) {
-            JMailUser temp=(JMailUser) myUsers.get(i);
-            if(temp.getName().equals(name)) {
-                return temp;
-            }
+    /** @return the id of a content file, or 0 if it is not one */
+    private static long getFileId(String name) {
+        if(! name.endsWith(BODY_FILEEXT)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length()-BODY_FILEEXT.length()));
+        }
+        catch(NumberFormatException e) {
+            return 0;
         }
-        throw new JMailUserNonExistantException("User Non-Existant");
     }
     
-    public boolean addUserObject(JMailUser object) {
-        myUsers.add(object);
-        JMailServer.fileio.saveUser(object.getName());
-        JMailServer.fileio.saveUserList();
-        return true;
+    private File getFile(long id) {
+        return new File(myDir, id+BODY_FILEEXT);
     }
     
-    public boolean addUser(String name, String pass) throws JMailUserExistsException {
-        String lowername=name.toLowerCase();
+    /** This method stores the content of a message being delivered.  It is
+     *  held for the caller, who must release it once the message has been
+     *  added to each mailbox.
+     *  The content is dot-stuffed as it is copied out of the message straight
+     *  into its file, and ends in a "." line.
+     * @param content content of the message
+     * @return the stored content
+     * @throws IOException if it could not be written
+     */
+    public JMailSharedBody add(JMailMessageBuffer content) throws IOException {
+        long id;
+        synchronized(this) {
+            id=nextId++;
+        }
         
-        if(! lowername.matches("[a-z]{1,13}")) {
-            return false;
+        // Held before the file exists, so sweep() does not take it for unused
+        JMailSharedBody body=new JMailSharedBody(id, getFile(id));
+        synchronized(this) {
+            body.setRefCount(1);
+            refTotal++;
+            myBodies.put(Long.valueOf(id), body);
         }
         
-        if(! lowername.matches("\\w{1,13}")) {
-            return false;
+        try {
+            FileOutputStream fileOut=new FileOutputStream(getFile(id));
+            try {
+                JMailHeaderFinder finder=new JMailHeaderFinder(new BufferedOutputStream(fileOut, JMailMessageBuffer.CHUNK_SIZE));
+                content.writeTo(new JMailDotStuffer(finder));
+                finder.write(BODY_END);
+                finder.flush();
+                // On disk before any mailbox records its id
+                fileOut.getFD().sync();
+                body.setLayout(finder);
+            }
+            finally {
+                fileOut.close();
+            }
+        }
+        catch(IOException e) {
+            release(body);
+            throw e;
+        }
+        return body;
+    }
+    
+    /** This method holds content for a message added to a mailbox
+     * @param body the content
+     * @return the content
+     */
+    public synchronized JMailSharedBody retain(JMailSharedBody body) {
+        body.setRefCount(body.getRefCount()+1);
+        refTotal++;
+        return body;
+    }
+    
+    /** This method finds the content for a message read back from disk,
+     *  reading it in the first time it is asked for.  It is not held until
+     *  it is given to the message.
+     * @param id id of the content
+     * @return the content
+     * @throws IOException if there is no such content, or it could not be read
+     */
+    public JMailSharedBody get(long id) throws IOException {
+        synchronized(this) {
+            JMailSharedBody body=(JMailSharedBody) myBodies.get(Long.valueOf(id));
+            if(body != null) {
+                return body;
+            }
         }
         
+        // Read without holding the store, so other mailboxes are not held up.
+        // Only where the headers end is kept; the text is read when asked for
+        File file=getFile(id);
+        JMailHeaderFinder finder=new JMailHeaderFinder(null);
+        RandomAccessFile in=new RandomAccessFile(file, "r");
         try {
-            getUser(name);
+            // Content which was only partly written does not end in a "." line
+            byte[] buffer=new byte[JMailMessageBuffer.CHUNK_SIZE];
+            long length=in.length();
+            if(length < BODY_END.length) {
+                throw new EOFException("Content file "+file.getName()+" is empty");
+            }
+            in.seek(length-BODY_END.length);
+            in.readFully(buffer, 0, BODY_END.length);
+            for(int i=0; i<BODY_END.length; i++) {
+                if(buffer[i] != BODY_END[i]) {
+                    throw new EOFException("Content file "+file.getName()+" is incomplete");
+                }
+            }
+            
+            in.seek(0);
+            int count;
+            while((count=in.read(buffer)) != -1) {
+                finder.scan(buffer, 0, count);
+            }
         }
-        catch(JMailUserNonExistantException e) {
-            // OK to add
+        finally {
+            in.close();
         }
+        JMailSharedBody read=new JMailSharedBody(id, file);
+        read.setLayout(finder);
         
-        JMailUser temp=new JMailUser(lowername, pass);
-        addUserObject(temp);
-        return true;
+        synchronized(this) {
+            JMailSharedBody body=(JMailSharedBody) myBodies.get(Long.valueOf(id));
+            if(body != null) {
+                // Read in by another mailbox meanwhile
+                return body;
+            }
+            myBodies.put(Long.valueOf(id), read);
+            return read;
+        }
     }
-}
-
-class JMailUser implements Serializable {
-    /** username of the JMailUser */
-    private String myName=null;
-    /** password of the JMailUser */
-    private String myPass=null;
-    /** Vector of JMailPOP3Message objects related to the JMailUser */
-    private JMailPOP3MailBox myMessages=null;
-    /** Whether the user is involved in the POP3 session */
-    private transient boolean isInPOP3Session=false;
     
-    public JMailUser(String name, String pass) {
-        this.myName=name;
-        this.myPass=pass;
-        myMessages=new JMailPOP3MailBox();
+    /** This method lets go of content, and throws it away if nothing is
+     *  holding it any more
+     * @param body the content
+     */
+    public void release(JMailSharedBody body) {
+        synchronized(this) {
+            body.setRefCount(body.getRefCount()-1);
+            refTotal--;
+            if(body.getRefCount() > 0) {
+                // Still in a mailbox
+                return;
+            }
+            myBodies.remove(Long.valueOf(body.getId()));
+        }
+        getFile(body.getId()).delete();
     }
     
-    public String getName() {
-        return myName;
+    /** This method deletes the content files which no mailbox points to,
+     *  left by messages which were deleted or never saved.  It is called
+     *  once the mailboxes have been read back. */
+    public void sweep() {
+        String[] names=myDir.list();
+        int count=0;
+        for(int i=0; names != null && i<names.length; i++) {
+            long id=getFileId(names[i]);
+            if(id == 0) {
+                continue;
+            }
+            
+            // Checked and deleted together, so it cannot be retained in between
+            synchronized(this) {
+                JMailSharedBody body=(JMailSharedBody) myBodies.get(Long.valueOf(id));
+                if(body != null && body.getRefCount() > 0) {
+                    continue;
+                }
+                myBodies.remove(Long.valueOf(id));
+                if(new File(myDir, names[i]).delete()) {
+                    count++;
+                }
+            }
+        }
+        if(count > 0) {
+            System.err.println("Body Store: Deleted "+count+" unused message bodies");
+        }
     }
     
-    public String getPass() {
-        return myPass;
+    public synchronized int getBodyCount() {
+        return myBodies.size();
     }
     
-    public boolean isInPOP3Session() {
-        return isInPOP3Session;
+    public synchronized long getReferenceCount() {
+        return refTotal;
     }
+}
+
+/** This stream dot-stuffs the content of a message as it is written through
+ *  it, adding an extra "." at the start of any line starting with ".", so it
+ *  can be sent, or stored, with a terminating "." line.  The content is never
+ *  held in full; only whether the last byte ended a line is kept. */
+class JMailDotStuffer extends FilterOutputStream {
+    /** Whether the next byte starts a line */
+    private boolean atLineStart=true;
     
-    public void setInPOP3Session(boolean value) {
-        isInPOP3Session=value;
+    public JMailDotStuffer(OutputStream out) {
+        super(out);
     }
     
-    public boolean addMessage(String body) {
-        boolean good=myMessages.addMessage(body);
-        if(good) {
-            JMailServer.fileio.saveUser(this.myName);
+    public void write(int b) throws IOException {
+        if(atLineStart && b == '.') {
+            out.write('.');
         }
-        return good;
+        out.write(b);
+        atLineStart=(b == '\n');
     }
     
-    public int getMessageCount() {
-        return myMessages.getMessageCount();
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        int start=offset;
+        for(int i=offset; i<offset+length; i++) {
+            if(atLineStart && bytes[i] == '.') {
+                // Write up to the ".", then the extra one
+                out.write(bytes, start, i-start);
+                out.write('.');
+                start=i;
+            }
+            atLineStart=(bytes[i] == '\n');
+        }
+        out.write(bytes, start, offset+length-start);
     }
+}
+
+/** This stream passes the stored content of a message through unchanged,
+ *  noting where its headers end and its body starts: at the first blank
+ *  line, taking CRLF and a lone LF alike as a line end.  Content with no
+ *  blank line is all headers but for its last line.  Like JMailDotStuffer,
+ *  it never holds the content; only the offsets are kept. */
+class JMailHeaderFinder extends FilterOutputStream {
+    /** Number of bytes passed through */
+    private long myCount=0;
+    /** Offset of a CR which may be the start of a CRLF, or -1 */
+    private long pendingCR=-1;
+    /** Whether no bytes but a possible CR have been seen since the last line end */
+    private boolean atLineStart=true;
+    /** Start and end offsets of the last line end seen */
+    private long lastEndStart=-1;
+    private long lastEndFinish=0;
+    /** Whether the blank line has been found */
+    private boolean isFound=false;
+    private long headerEnd=-1;
+    private long bodyStart=0;
     
-    public int getMessageState(int messageNo) throws JMailMessageNonExistantException {
-        return myMessages.getMessageState(messageNo);
+    /** @param out stream the content is written on to; null if only scan()
+     *        is used
+     */
+    public JMailHeaderFinder(OutputStream out) {
+        super(out);
     }
     
-    public boolean setMessageState(int messageNo, int newState) throws JMailMessageNonExistantException {
-        return myMessages.setMessageState(messageNo, newState);
+    public void write(int b) throws IOException {
+        scan((byte) b);
+        out.write(b);
     }
     
-    public String getMessage(int messageNo) throws JMailMessageNonExistantException {
-        return getMessageHeaders(messageNo)+"\n\n"+getMessageBody(messageNo);
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        scan(bytes, offset, length);
+        out.write(bytes, offset, length);
     }
     
-    public String getMessageHeaders(int messageNo) throws JMailMessageNonExistantException {
-        return myMessages.getMessageHeaders(messageNo);
+    /** This method looks through content without passing it on */
+    public void scan(byte[] bytes, int offset, int length) {
+        for(int i=offset; i<offset+length; i++) {
+            scan(bytes[i]);
+        }
     }
     
-    public String getMessageBody(int messageNo) throws JMailMessageNonExistantException {
-        return myMessages.getMessageBody(messageNo);
+    private void scan(byte b) {
+        if(b == '\n') {
+            long start=(pendingCR != -1) ? pendingCR : myCount;
+            if(! isFound && atLineStart) {
+                // A blank line; at the very start there are no headers
+                headerEnd=(start == 0) ? -1 : lastEndStart;
+                bodyStart=myCount+1;
+                isFound=true;
+            }
+            lastEndStart=start;
+            lastEndFinish=myCount+1;
+            atLineStart=true;
+            pendingCR=-1;
+        }
+        else if(b == '\r') {
+            if(pendingCR != -1) {
+                // The CR before was not part of a line end
+                atLineStart=false;
+            }
+            pendingCR=myCount;
+        }
+        else {
+            atLineStart=false;
+            pendingCR=-1;
+        }
+        myCount++;
+    }
+    
+    public long getCount() {
+        return myCount;
+    }
+    
+    /** @return offset where the headers end, or -1 if there are none */
+    public long getHeaderEnd() {
+        if(! isFound) {
+            return Math.max(lastEndStart, 0);
+        }
+        return headerEnd;
     }
     
-    public boolean deleteMessage(int messageNo) throws JMailMessageNonExistantException {
-        return myMessages.deleteMessage(messageNo);
+    /** @return offset where the body starts */
+    public long getBodyStart() {
+        return isFound ? bodyStart : lastEndFinish;
     }
 }
 
-class JMailEmailComboList implements Serializable {
-    private Vector emails=new Vector();
+/** This class collects the content of a message as it is received.
+ *  The bytes are kept in fixed-size chunks taken from a shared pool, and once
+ *  the message grows past DATA_SPOOL_THRESHOLD they are moved to a spool file,
+ *  so a large message is never copied around in the heap.
+ *  If the message grows past its size limit everything received is thrown
+ *  away, and only the number of bytes is counted from then on. */
+class JMailMessageBuffer {
+    /** This is the size of each chunk of a message held in memory */
+    public static final int CHUNK_SIZE=16384;
+    /** This is the extension of spool files */
+    public static final String SPOOL_FILEEXT=".msg";
+    /** This is the maximum number of free chunks kept for reuse */
+    private static final int POOL_MAX=256;
+    /** Vector of free chunks */
+    private static Vector chunkPool=new Vector();
+    private static final byte[] CRLF={'\r', '\n'};
     
-    public void add(JMailEmailCombo temp) {
-        emails.add(temp);
+    /** Vector of the chunks holding the message; the last one may be part full */
+    private Vector myChunks=new Vector();
+    /** Number of bytes used in the last chunk */
+    private int lastUsed=CHUNK_SIZE;
+    /** Total number of bytes in the message */
+    private long myLength=0;
+    /** File the message is held in once it is spooled */
+    private File spoolFile=null;
+    private OutputStream spoolOut=null;
+    private boolean isReleased=false;
+    /** Largest number of bytes which will be kept; 0 means no limit */
+    private long myLimit=0;
+    /** Whether the message has grown past [myLimit] */
+    private boolean overLimit=false;
+    /** Whether the spool file could not be written */
+    private boolean writeFailed=false;
+    
+    public JMailMessageBuffer() {
     }
     
-    public Enumeration elements() {
-        return emails.elements();
+    /** @param limit largest number of bytes which will be kept; 0 means no limit */
+    public JMailMessageBuffer(long limit) {
+        this.myLimit=limit;
     }
-}
-
-class JMailEmailCombo implements Serializable {
-    private String _unparsed=null;
-    private String _user=null;
-    private String _domain=null;
     
-    public JMailEmailCombo(String unparsed, String user, String domain) {
-        this._unparsed=unparsed;
-        this._user=user;
-        this._domain=domain;
+    /** This method makes a buffer for a message left in a spool file
+     * @param file the spool file; it is removed once the buffer is released
+     * @return buffer holding the content of [file]
+     */
+    public static JMailMessageBuffer openSpool(File file) {
+        JMailMessageBuffer toRet=new JMailMessageBuffer();
+        toRet.spoolFile=file;
+        toRet.myLength=file.length();
+        return toRet;
     }
     
-    public String unparsed() {
-        return _unparsed;
+    private static byte[] takeChunk() {
+        synchronized(chunkPool) {
+            if(! chunkPool.isEmpty()) {
+                return (byte[]) chunkPool.remove(chunkPool.size()-1);
+            }
+        }
+        return new byte[CHUNK_SIZE];
     }
     
-    public String parsed() {
-        return user()+"@"+domain();
+    private static void returnChunk(byte[] chunk) {
+        synchronized(chunkPool) {
+            if(chunkPool.size() < POOL_MAX) {
+                chunkPool.add(chunk);
+            }
+        }
     }
     
-    public String user() {
-        return _user;
+    public long length() {
+        return myLength;
     }
     
-    public String domain() {
-        return _domain;
+    public boolean isSpooled() {
+        return spoolFile != null;
     }
     
-    public boolean isDomainServerLocal() {
-        JMailServer.printDebug("EmailCombo: ServerLocal? '"+domain()+"'");
-        
-        if(domain().equals(JMailServer.myHostname)) {
-            return true;
-        }
-        return false;
+    public File getSpoolFile() {
+        return spoolFile;
     }
     
-    /** This method returns true if the hostname matches the JMailServer.NETWORK_LOCAL_REGEX
-     * regular expression
-     * @return true if hostname matches regular expression<br>
-     * false otherwise
+    /** This method forces the spool file to disk, once the whole message has
+     *  been received.  It does nothing if the message is held in memory.
+     * @throws IOException if the spool file could not be forced
      */
-    public boolean isDomainNetworkLocal() {
-        JMailServer.printDebug("EmailCombo: NetworkLocal? '"+domain()+"'");
+    public void force() throws IOException {
+        if(spoolFile == null) {
+            return;
+        }
         
-        if(domain().matches(JMailServer.NETWORK_LOCAL_REGEX)) {
-            return true;
+        RandomAccessFile file=new RandomAccessFile(spoolFile, "rw");
+        try {
+            file.getFD().sync();
+        }
+        finally {
+            file.close();
         }
-        return false;
     }
-}
-
-class JMailPOP3MailBox {
-    private Vector myMessages = null;
     
-    public JMailPOP3MailBox() {
-        myMessages = new Vector();
+    /** This method returns whether the message grew past its size limit,
+     *  in which case its content has been thrown away
+     * @return true if the message is too big
+     */
+    public boolean isOverLimit() {
+        return overLimit;
     }
     
-    public Enumeration getMessages() {
-        return myMessages.elements();
+    /** This method returns whether the spool file could not be written, in
+     *  which case the content has been thrown away and the message must
+     *  not be accepted
+     * @return true if the message was lost
+     */
+    public boolean isWriteFailed() {
+        return writeFailed;
     }
     
-    private boolean getMessageExists(int messageNo) {
-        if(messageNo >= 0 && messageNo < getMessageCount()) {
-            return true;
-        }
-        return false;
+    /** This method gives up on a message whose spool file could not be
+     *  written, and throws away what has been kept of it */
+    private void spoolFailed(IOException e) {
+        System.err.println("MessageBuffer: Failed to write spool file ("+e.getMessage()+"); message thrown away");
+        writeFailed=true;
+        discard();
     }
     
-    private JMailPOP3Message getMessage(int messageNo) throws JMailMessageNonExistantException {
-        if(getMessageExists(messageNo)) {
-            return (JMailPOP3Message) myMessages.elementAt(messageNo);
+    /** This method appends a line received in the DATA state.
+     *  A leading "." is removed (dot-unstuffing) and CRLF is added.
+     * @param line bytes of the line, without the line ending
+     * @param offset start of the line in [line]
+     * @param length number of bytes in the line
+     */
+    public void writeLine(byte[] line, int offset, int length) {
+        writeLineStart(line, offset, length);
+        write(CRLF, 0, 2);
+    }
+    
+    /** This method appends the start of a line received in the DATA state
+     *  which is too long to be collected whole.  A leading "." is removed
+     *  (dot-unstuffing); the rest of the line is given to write() and endLine()
+     * @param line bytes of the start of the line
+     * @param offset start of the bytes in [line]
+     * @param length number of bytes
+     */
+    public void writeLineStart(byte[] line, int offset, int length) {
+        if(length > 0 && line[offset] == '.') {
+            offset++;
+            length--;
         }
-        throw new JMailMessageNonExistantException("Message Non-Existant");
+        write(line, offset, length);
     }
     
-    /** Returns the message state
-     * @param messageNo id of the message
-     * @return currState of the message<br>
-     * <li>STATE_NORMAL: the normal state</li>
-     * <li>STATE_MARKED: marked for deletion</li>
+    /** This method appends the last part of a line begun with writeLineStart(),
+     *  and CRLF
+     * @param line bytes of the end of the line, without the line ending
+     * @param offset start of the bytes in [line]
+     * @param length number of bytes
      */
-    public int getMessageState(int messageNo) throws JMailMessageNonExistantException {
-        return getMessage(messageNo).getState();
+    public void endLine(byte[] line, int offset, int length) {
+        write(line, offset, length);
+        write(CRLF, 0, 2);
     }
     
-    public String getMessageHeaders(int messageNo) throws JMailMessageNonExistantException {
-        return getMessage(messageNo).getHeaders();
+    /** This method appends bytes to the message
+     * @param bytes bytes to append
+     * @param offset start of the bytes to append
+     * @param length number of bytes to append
+     */
+    public void write(byte[] bytes, int offset, int length) {
+        myLength+=length;
+        if(writeFailed) {
+            return;
+        }
+        
+        if(myLimit > 0 && myLength > myLimit) {
+            if(! overLimit) {
+                // Throw away what has been kept so far
+                overLimit=true;
+                discard();
+            }
+            return;
+        }
+        
+        if(spoolOut == null && myLength > JMailServer.DATA_SPOOL_THRESHOLD) {
+            startSpool();
+        }
+        
+        if(spoolOut != null) {
+            try {
+                spoolOut.write(bytes, offset, length);
+            }
+            catch(IOException e) {
+                spoolFailed(e);
+            }
+            return;
+        }
+        
+        while(length > 0) {
+            if(lastUsed == CHUNK_SIZE) {
+                myChunks.add(takeChunk());
+                lastUsed=0;
+            }
+            
+            byte[] chunk=(byte[]) myChunks.lastElement();
+            int count=Math.min(length, CHUNK_SIZE-lastUsed);
+            System.arraycopy(bytes, offset, chunk, lastUsed, count);
+            lastUsed+=count;
+            offset+=count;
+            length-=count;
+        }
     }
     
-    public String getMessageBody(int messageNo) throws JMailMessageNonExistantException {
-        return getMessage(messageNo).getBody();
+    /** This method moves the chunks held so far into a spool file */
+    private void startSpool() {
+        try {
+            spoolFile=File.createTempFile("jmail", SPOOL_FILEEXT, JMailServer.fileio.getSpoolDir());
+            spoolOut=new BufferedOutputStream(new FileOutputStream(spoolFile), CHUNK_SIZE);
+        }
+        catch(IOException e) {
+            // Keep the message in memory
+            System.err.println("MessageBuffer: Failed to create spool file");
+            if(spoolFile != null) {
+                spoolFile.delete();
+            }
+            spoolFile=null;
+            spoolOut=null;
+            return;
+        }
+        
+        try {
+            for(int i=0; i<myChunks.size(); i++) {
+                spoolOut.write((byte[]) myChunks.get(i), 0, (i == myChunks.size()-1) ? lastUsed : CHUNK_SIZE);
+            }
+        }
+        catch(IOException e) {
+            // The chunks are still held, so are given back by discard()
+            spoolFailed(e);
+            return;
+        }
+        
+        for(int i=0; i<myChunks.size(); i++) {
+            returnChunk((byte[]) myChunks.get(i));
+        }
+        myChunks.clear();
+        lastUsed=CHUNK_SIZE;
+        JMailServer.printDebug("MessageBuffer: Spooling to "+spoolFile);
     }
     
-    public boolean addMessage(String body) {
-        myMessages.add(new JMailPOP3Message(body));
-        return true;
+    /** This method is called once the whole message has been received */
+    public void close() {
+        if(spoolOut != null) {
+            try {
+                spoolOut.close();
+            }
+            catch(IOException e) {
+                // The last of the content may not have been written
+                spoolFailed(e);
+            }
+        }
     }
     
-    public boolean setMessageState(int messageNo, int newState) throws JMailMessageNonExistantException {
-        return getMessage(messageNo).setState(newState);
+    /** This method writes the whole message to [out]
+     * @param out stream to copy the message to
+     * @throws IOException if the message could not be read or written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if(spoolFile != null) {
+            InputStream in=new FileInputStream(spoolFile);
+            try {
+                byte[] buffer=takeChunk();
+                int count;
+                while((count=in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                returnChunk(buffer);
+            }
+            finally {
+                in.close();
+            }
+            return;
+        }
+        
+        for(int i=0; i<myChunks.size(); i++) {
+            out.write((byte[]) myChunks.get(i), 0, (i == myChunks.size()-1) ? lastUsed : CHUNK_SIZE);
+        }
     }
     
-    public boolean deleteMessage(int messageNo) throws JMailMessageNonExistantException {
-        return myMessages.remove(getMessage(messageNo));
+    /** This method reads the whole message back into a String
+     * @return content of the message
+     */
+    public String toString() {
+        ByteArrayOutputStream out=new ByteArrayOutputStream((int) myLength);
+        try {
+            writeTo(out);
+        }
+        catch(IOException e) {
+            System.err.println("MessageBuffer: Failed to read spool file");
+        }
+        return out.toString();
     }
     
-    public int getMessageCount() {
-        return myMessages.size();
+    /** This method returns the chunks to the pool and removes any spool file.
+     *  The buffer must not be used afterwards. */
+    public void release() {
+        synchronized(this) {
+            if(isReleased) {
+                return;
+            }
+            isReleased=true;
+        }
+        // The spool file is removed outside the monitor
+        discard();
+    }
+    
+    /** This method returns the chunks to the pool and removes any spool file */
+    private void discard() {
+        for(int i=0; i<myChunks.size(); i++) {
+            returnChunk((byte[]) myChunks.get(i));
+        }
+        myChunks.clear();
+        lastUsed=CHUNK_SIZE;
+        
+        if(spoolOut != null) {
+            try {
+                spoolOut.close();
+            }
+            catch(IOException e) {
+                // Being thrown away anyway
+            }
+            spoolOut=null;
+        }
+        if(spoolFile != null) {
+            spoolFile.delete();
+            spoolFile=null;
+        }
     }
 }
 
@@ -2188,13 +8567,40 @@ class JMailPOP3Message extends JMailMessage implements Serializable {
      */
     private transient int myState=STATE_NORMAL;
     
-    private String myHeaders=null;
+    /** Header lines for this mailbox alone (Return Path, Received) */
+    private String myPrefix=null;
+    /** Content of the message, shared with the other mailboxes it was delivered to */
+    private transient JMailSharedBody myShared=null;
+    /** Id of the message in the mailbox log */
+    private long myId=0;
     
-    public JMailPOP3Message(String body) {
-        String[] headbody = body.replaceAll("\r\n", "\n").split("\n\n", 2);
-        
-        this.myHeaders = headbody[0];
-        this.myBody = headbody[1];
+    /** @param prefix header lines for this mailbox alone, each ending in CRLF
+     * @param body content of the message; it is retained by the message
+     */
+    public JMailPOP3Message(String prefix, JMailSharedBody body) {
+        this.myPrefix=prefix.replaceAll("\r\n", "\n");
+        this.myShared=JMailServer.bodyStore.retain(body);
+    }
+    
+    public long getId() {
+        return myId;
+    }
+    
+    public void setId(long id) {
+        myId=id;
+    }
+    
+    public String getPrefix() {
+        return myPrefix;
+    }
+    
+    public long getBodyId() {
+        return myShared.getId();
+    }
+    
+    /** This method is called once the message is deleted from its mailbox */
+    public void release() {
+        JMailServer.bodyStore.release(myShared);
     }
     
     public boolean setState(int newState) {
@@ -2206,13 +8612,39 @@ class JMailPOP3Message extends JMailMessage implements Serializable {
         return myState;
     }
     
-    public String getHeaders() {
-        return myHeaders;
+    /** This method reads the headers, this mailbox's own first, from disk
+     * @return headers, with LF line ends
+     */
+    public String readHeaders() throws IOException {
+        String headers=myShared.readHeaders();
+        if(headers == null) {
+            // The content has no headers of its own
+            return myPrefix.substring(0, myPrefix.length()-1);
+        }
+        return myPrefix+headers;
     }
     
+    /** This method reads the body from disk
+     * @return body, with LF line ends
+     */
+    public String readBody() throws IOException {
+        return myShared.readBody();
+    }
 }
 
-class JMailSMTPMessage extends JMailMessage {
+/** This class is a message in the SMTPQueue.  It is Delayed so that a
+ *  message waiting to be retried can be kept in a DelayQueue, in the order
+ *  it is next due */
+class JMailSMTPMessage extends JMailMessage implements Delayed {
+    /** The recipient has not been tried yet */
+    public static final int RCPT_PENDING=0;
+    /** The message has been delivered to the recipient */
+    public static final int RCPT_DELIVERED=1;
+    /** Delivery to the recipient failed, and will be retried */
+    public static final int RCPT_DEFERRED=2;
+    /** Delivery to the recipient failed, and will not be retried */
+    public static final int RCPT_FAILED=3;
+    
     /** date the SMTPMessage was delivered */
     private Date myDate=null;
     
@@ -2225,26 +8657,238 @@ class JMailSMTPMessage extends JMailMessage {
     private JMailEmailCombo mySender=null;
     /** This is a Vector of all the recipient email addresses */
     private JMailEmailComboList myRecipents=null;
+    /** The recipients, in the same order as [rcptStatus] */
+    private JMailEmailCombo[] rcptArray=null;
+    /** The delivery status (RCPT_*) of each recipient */
+    private int[] rcptStatus=null;
+    /** This holds the (dot-unstuffed) content of the message */
+    private JMailMessageBuffer myContent=null;
+    /** This is the id of the message in the queue journal */
+    private long myId=0;
+    /** Time (System.nanoTime) the message was accepted, or recovered from the journal */
+    private long acceptTime=System.nanoTime();
+    /** Number of times delivery has been retried */
+    private int retryCount=0;
+    /** Time (millisecs) of the next attempt at delivery */
+    private long nextAttempt=0;
+    /** Whether a delivery worker has the message */
+    private boolean isClaimed=false;
+    /** Whether the message has been delivered and taken out of the queue */
+    private boolean isFinished=false;
+    /** Connections being made for the message, by next hop key: CONNECT_PENDING,
+     *  CONNECT_FAILED or the JMailSMTPClientConnection once it is open */
+    private HashMap myConnects=new HashMap();
+    /** Number of connections still being made */
+    private int pendingConnects=0;
+    /** Whether a connection has been made since the message was last looked at */
+    private boolean hasConnected=false;
+    /** Whether the message is waiting for its connections, still claimed */
+    private boolean isParked=false;
+    
+    private static final Object CONNECT_PENDING=new Object();
+    private static final Object CONNECT_FAILED=new Object();
+    
+    public JMailSMTPMessage(String HELOName, String clientName, InetAddress clientIP, JMailEmailCombo sender, JMailEmailComboList recipents, JMailMessageBuffer content) {
+        this(HELOName, clientName, clientIP, sender, recipents, content, new Date());
+    }
     
-    public JMailSMTPMessage(String HELOName, String clientName, InetAddress clientIP, JMailEmailCombo sender, JMailEmailComboList recipents, String body) {
-        this.myDate=new Date();
+    /** This constructor is used for a message read back from the queue journal
+     * @param date date the message was first received
+     */
+    public JMailSMTPMessage(String HELOName, String clientName, InetAddress clientIP, JMailEmailCombo sender, JMailEmailComboList recipents, JMailMessageBuffer content, Date date) {
+        this.myDate=date;
         this.myHELOName=HELOName;
         this.myClientName=clientName;
         this.myClientIP=clientIP;
         this.mySender=sender;
         this.myRecipents=recipents;
-        this.myBody=body;
+        this.myContent=content;
+        
+        Vector temp=new Vector();
+        Enumeration elements=recipents.elements();
+        while(elements.hasMoreElements()) {
+            temp.add(elements.nextElement());
+        }
+        this.rcptArray=(JMailEmailCombo[]) temp.toArray(new JMailEmailCombo[temp.size()]);
+        this.rcptStatus=new int[rcptArray.length];
+    }
+    
+    /** This method reads the content of the message back into a String
+     * @return body of the message
+     */
+    public String getBody() {
+        return myContent.toString();
+    }
+    
+    public JMailMessageBuffer getContent() {
+        return myContent;
+    }
+    
+    /** This method frees the content once the message has been delivered */
+    public void release() {
+        myContent.release();
+    }
+    
+    /** This method is called before the message is handed to a delivery
+     *  worker, so that it is only being delivered by one worker at a time
+     * @return false if the message is already claimed or delivered
+     */
+    public synchronized boolean claim() {
+        if(isClaimed || isFinished) {
+            return false;
+        }
+        isClaimed=true;
+        return true;
+    }
+    
+    /** This method is called when the delivery worker is done with the
+     *  message.  If connections are still being made for it, it stays
+     *  claimed until they are done.
+     * @return true if connections were made for it meanwhile, in which case
+     * it stays claimed and should be delivered again straight away
+     */
+    public synchronized boolean unclaim() {
+        if(pendingConnects > 0) {
+            // Handed back by connectDone
+            isParked=true;
+            return false;
+        }
+        if(hasConnected) {
+            hasConnected=false;
+            return true;
+        }
+        isClaimed=false;
+        return false;
+    }
+    
+    /** This method notes that a connection is being made for the message
+     * @param key next hop key of the server
+     */
+    public synchronized void startConnect(String key) {
+        myConnects.put(key, CONNECT_PENDING);
+        pendingConnects++;
+    }
+    
+    /** This method notes that a connection being made for the message is
+     *  open, or has failed
+     * @param key next hop key of the server
+     * @param clientConnection the connection, or null if the connect failed
+     * @return true if the message was waiting for this, the last of its
+     * connections, and should now be handed back to a delivery worker
+     */
+    public synchronized boolean connectDone(String key, JMailSMTPClientConnection clientConnection) {
+        myConnects.put(key, (clientConnection == null) ? CONNECT_FAILED : clientConnection);
+        pendingConnects--;
+        
+        if(isParked) {
+            if(pendingConnects > 0) {
+                return false;
+            }
+            isParked=false;
+            hasConnected=false;
+            return true;
+        }
+        // Still being delivered; unclaim hands it back
+        hasConnected=true;
+        return false;
+    }
+    
+    /** This method takes the connection made for the message to a server
+     * @param key next hop key of the server
+     * @return the connection, or null if none has been made
+     */
+    public synchronized JMailSMTPClientConnection takeConnection(String key) {
+        Object temp=myConnects.get(key);
+        if(temp instanceof JMailSMTPClientConnection) {
+            myConnects.remove(key);
+            return (JMailSMTPClientConnection) temp;
+        }
+        return null;
+    }
+    
+    /** This method says whether the connection made for the message to a
+     *  server failed
+     * @param key next hop key of the server
+     * @return true if the connect failed
+     */
+    public synchronized boolean isConnectFailed(String key) {
+        return myConnects.get(key) == CONNECT_FAILED;
+    }
+    
+    /** This method forgets the connections made for the message, once a
+     *  delivery attempt is over */
+    public synchronized void clearConnects() {
+        Iterator i=myConnects.values().iterator();
+        while(i.hasNext()) {
+            Object temp=i.next();
+            if(temp instanceof JMailSMTPClientConnection) {
+                ((JMailSMTPClientConnection) temp).close();
+            }
+        }
+        myConnects.clear();
+    }
+    
+    /** This method is called once the message has been delivered,
+     *  so it is never claimed again */
+    public synchronized void finish() {
+        isFinished=true;
     }
     
     public Date getDate() {
         return myDate;
     }
     
+    public long getId() {
+        return myId;
+    }
+    
+    public void setId(long id) {
+        myId=id;
+    }
+    
+    public long getAcceptTime() {
+        return acceptTime;
+    }
+    
+    public int getRetryCount() {
+        return retryCount;
+    }
+    
+    public long getNextAttempt() {
+        return nextAttempt;
+    }
+    
+    /** This method sets when delivery of the message is next tried
+     * @param count number of retries, including the next one
+     * @param when time (millisecs) of the next attempt
+     */
+    public void setRetry(int count, long when) {
+        retryCount=count;
+        nextAttempt=when;
+    }
+    
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(nextAttempt-System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+    
+    public int compareTo(Delayed other) {
+        long diff=nextAttempt-((JMailSMTPMessage) other).nextAttempt;
+        return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+    }
+    
     public String getHELOName() {
         return myHELOName;
     }
     
+    /** This method gets the host name of the client the message came from.
+     *  If it was not known when the message was accepted, the lookup is
+     *  asked after again.
+     * @return the host name, or null if it is not known
+     */
     public String getClientName() {
+        if(myClientName == null && JMailServer.nameCache != null) {
+            myClientName=JMailServer.nameCache.getName(myClientIP);
+        }
         return myClientName;
     }
     
@@ -2259,4 +8903,35 @@ class JMailSMTPMessage extends JMailMessage {
     public JMailEmailComboList getRecipents() {
         return myRecipents;
     }
+    
+    public int getRecipentCount() {
+        return rcptArray.length;
+    }
+    
+    public JMailEmailCombo getRecipent(int index) {
+        return rcptArray[index];
+    }
+    
+    /** @return delivery status (RCPT_*) of recipient [index] */
+    public int getRecipentStatus(int index) {
+        return rcptStatus[index];
+    }
+    
+    public void setRecipentStatus(int index, int status) {
+        rcptStatus[index]=status;
+    }
+    
+    /** This method counts the recipients with a given status
+     * @param status RCPT_* status to count
+     * @return number of recipients with that status
+     */
+    public int countRecipents(int status) {
+        int toRet=0;
+        for(int i=0; i<rcptStatus.length; i++) {
+            if(rcptStatus[i] == status) {
+                toRet++;
+            }
+        }
+        return toRet;
+    }
 }
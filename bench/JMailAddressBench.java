@@ -0,0 +1,136 @@
+import java.util.regex.*;
+
+/** This class measures how long it takes to check the addresses given to
+ *  MAIL FROM and RCPT TO, using JMailSMTPConnection.checkEmail, using the
+ *  String.matches check which it replaced, and using that check with its
+ *  Patterns compiled once.
+ *  The addresses are ones which the old /(\w+\.)*\w+@(\w+\.)*\w+/ grammar
+ *  accepts as well, so every way does the same work.  The RFC 5321 forms
+ *  only checkEmail accepts are timed on their own.
+ *  <p>
+ *  Build and run from the top of the tree with plain javac:
+ *  <pre>
+ *  javac -d build JMailServer.java bench/JMailAddressBench.java
+ *  java -cp build JMailAddressBench [warmups] [iterations] [millisecs]
+ *  </pre>
+ */
+public class JMailAddressBench {
+    private static final String EMAIL_REGEX="(\\w+\\.)*\\w+@(\\w+\\.)*\\w+";
+    private static final Pattern SIMPLE=Pattern.compile("^"+EMAIL_REGEX+"$");
+    private static final Pattern COMPLEX=Pattern.compile("^.*<"+EMAIL_REGEX+">$");
+    
+    private static final String[] ADDRESSES={
+        "<bob@example.com>",
+        "<carol.smith@mail.example.net>",
+        "alice@example.org",
+        "Dave Jones <dave_jones@example.co.uk>",
+        "<not an address>",
+        "<eve@>"
+    };
+    
+    private static final String[] RFC_ADDRESSES={
+        "<alice+list@mail-1.example.org>",
+        "<\"john doe\"@example.com>",
+        "<@relay.example.org:frank@example.com>",
+        "<o'neil@[192.168.0.1]>"
+    };
+    
+    private static final int CHECK_EMAIL=0;
+    private static final int REGEX=1;
+    private static final int COMPILED_REGEX=2;
+    
+    /** Result of every call, kept so the work cannot be optimised away */
+    private static long sink=0;
+    
+    public static void main(String[] args) {
+        int warmups=(args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        int iterations=(args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        long millisecs=(args.length > 2) ? Long.parseLong(args[2]) : 1000;
+    
+        System.out.println("JMailAddressBench: "+warmups+" warmup and "+iterations+" measurement iterations of "+millisecs+" ms");
+        measure("checkEmail", CHECK_EMAIL, ADDRESSES, warmups, iterations, millisecs);
+        measure("String.matches", REGEX, ADDRESSES, warmups, iterations, millisecs);
+        measure("compiled Pattern", COMPILED_REGEX, ADDRESSES, warmups, iterations, millisecs);
+        measure("checkEmail, RFC 5321 forms", CHECK_EMAIL, RFC_ADDRESSES, warmups, iterations, millisecs);
+        System.out.println("JMailAddressBench: (sink "+sink+")");
+    }
+    
+    /** This method runs the warmup and measurement iterations for one way of
+     *  checking, and prints the time per address
+     */
+    private static void measure(String name, int way, String[] addresses, int warmups, int iterations, long millisecs) {
+        for(int i=0; i<warmups; i++) {
+            iteration(way, addresses, millisecs);
+        }
+    
+        double[] results=new double[iterations];
+        double total=0;
+        for(int i=0; i<iterations; i++) {
+            results[i]=iteration(way, addresses, millisecs);
+            total+=results[i];
+        }
+        double mean=total/iterations;
+    
+        double squares=0;
+        for(int i=0; i<iterations; i++) {
+            squares+=(results[i]-mean)*(results[i]-mean);
+        }
+        double spread=(iterations > 1) ? Math.sqrt(squares/(iterations-1)) : 0;
+    
+        System.out.println("JMailAddressBench: "+name+": "+format(mean)+" +- "+format(spread)+" ns/address");
+    }
+    
+    private static String format(double value) {
+        return String.valueOf(Math.round(value*10)/10.0);
+    }
+    
+    /** This method checks the addresses over and over for [millisecs]
+     * @return mean nanosecs per address
+     */
+    private static double iteration(int way, String[] addresses, long millisecs) {
+        long count=0;
+        long start=System.nanoTime();
+        long end=start+millisecs*1000000;
+        long now;
+        do {
+            for(int i=0; i<1000; i++) {
+                for(int j=0; j<addresses.length; j++) {
+                    sink+=check(way, addresses[j]);
+                }
+            }
+            count+=1000*addresses.length;
+            now=System.nanoTime();
+        } while(now < end);
+        return (now-start)/(double) count;
+    }
+    
+    /** @return length of the user part found, or -1 if [address] is not valid */
+    private static int check(int way, String address) {
+        if(way == CHECK_EMAIL) {
+            JMailEmailCombo combo=JMailSMTPConnection.checkEmail(address);
+            return (combo != null) ? combo.user().length() : -1;
+        }
+    
+        boolean simple;
+        boolean complex;
+        if(way == REGEX) {
+            // As checkEmail did before, compiling the expressions every time
+            simple=address.matches("^"+EMAIL_REGEX+"$");
+            complex=! simple && address.matches("^.*<"+EMAIL_REGEX+">$");
+        }
+        else {
+            simple=SIMPLE.matcher(address).matches();
+            complex=! simple && COMPLEX.matcher(address).matches();
+        }
+    
+        if(simple) {
+            return address.split("@", 2)[0].length();
+        }
+        if(complex) {
+            int startPos=address.indexOf('<');
+            int endPos=address.indexOf('>', startPos);
+            return address.substring(startPos+1, endPos).split("@", 2)[0].length();
+        }
+        return -1;
+    }
+}
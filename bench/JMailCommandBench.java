@@ -0,0 +1,152 @@
+/** This class measures how long it takes to pick apart the command lines of
+ *  a typical SMTP and POP3 session, using JMailCommand on the bytes of each
+ *  line, and using the String split which it replaced.
+ *  It runs in the manner of a JMH benchmark with one fork: a number of
+ *  timed warmup iterations, then timed measurement iterations, reporting
+ *  the mean time per line and the spread across the iterations.
+ *  <p>
+ *  Build and run from the top of the tree with plain javac:
+ *  <pre>
+ *  javac -d build JMailServer.java bench/JMailCommandBench.java
+ *  java -cp build JMailCommandBench [warmups] [iterations] [millisecs]
+ *  </pre>
+ */
+public class JMailCommandBench {
+    private static final String[] LINES={
+        "EHLO client.example.org",
+        "MAIL FROM:<alice+list@mail-1.example.org> SIZE=20480",
+        "RCPT TO:<bob@example.com>",
+        "RCPT TO:<carol.smith@example.net>",
+        "DATA",
+        "NOOP",
+        "RSET",
+        "USER bob",
+        "PASS secret",
+        "STAT",
+        "LIST 2",
+        "RETR 2",
+        "TOP 2 10",
+        "DELE 2",
+        "QUIT"
+    };
+    
+    /** Bytes of each line in [LINES], as the line reader hands them over */
+    private static byte[][] lineBytes=new byte[LINES.length][];
+    /** Result of every call, kept so the work cannot be optimised away */
+    private static long sink=0;
+    
+    public static void main(String[] args) {
+        int warmups=(args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        int iterations=(args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        long millisecs=(args.length > 2) ? Long.parseLong(args[2]) : 1000;
+    
+        for(int i=0; i<LINES.length; i++) {
+            lineBytes[i]=LINES[i].getBytes();
+        }
+    
+        System.out.println("JMailCommandBench: "+warmups+" warmup and "+iterations+" measurement iterations of "+millisecs+" ms, "+LINES.length+" lines per op");
+        measure("JMailCommand", true, warmups, iterations, millisecs);
+        measure("String split", false, warmups, iterations, millisecs);
+        System.out.println("JMailCommandBench: (sink "+sink+")");
+    }
+    
+    /** This method runs the warmup and measurement iterations for one way of
+     *  parsing, and prints the time per line
+     */
+    private static void measure(String name, boolean useCommand, int warmups, int iterations, long millisecs) {
+        for(int i=0; i<warmups; i++) {
+            iteration(useCommand, millisecs);
+        }
+    
+        double[] results=new double[iterations];
+        double total=0;
+        for(int i=0; i<iterations; i++) {
+            results[i]=iteration(useCommand, millisecs);
+            total+=results[i];
+        }
+        double mean=total/iterations;
+    
+        double squares=0;
+        for(int i=0; i<iterations; i++) {
+            squares+=(results[i]-mean)*(results[i]-mean);
+        }
+        double spread=(iterations > 1) ? Math.sqrt(squares/(iterations-1)) : 0;
+    
+        System.out.println("JMailCommandBench: "+name+": "+format(mean)+" +- "+format(spread)+" ns/line");
+    }
+    
+    private static String format(double value) {
+        return String.valueOf(Math.round(value*10)/10.0);
+    }
+    
+    /** This method parses the lines over and over for [millisecs]
+     * @return mean nanosecs per line
+     */
+    private static double iteration(boolean useCommand, long millisecs) {
+        JMailCommand command=new JMailCommand();
+        long lines=0;
+        long start=System.nanoTime();
+        long end=start+millisecs*1000000;
+        long now;
+        do {
+            for(int i=0; i<1000; i++) {
+                for(int j=0; j<lineBytes.length; j++) {
+                    sink+=useCommand ? parseCommand(command, lineBytes[j]) : parseSplit(lineBytes[j]);
+                }
+            }
+            lines+=1000*lineBytes.length;
+            now=System.nanoTime();
+        } while(now < end);
+        return (now-start)/(double) lines;
+    }
+    
+    /** This method picks apart a line as JMailSMTPConnection and
+     *  JMailPOP3Connection now do
+     */
+    private static int parseCommand(JMailCommand command, byte[] line) {
+        int verb=command.parse(line, line.length);
+        if(verb == JMailCommand.MAIL || verb == JMailCommand.RCPT) {
+            int colon=command.indexOf(':', command.getArgStart());
+            if(colon != -1 && (command.matches(command.getArgStart(), colon, "FROM") || command.matches(command.getArgStart(), colon, "TO"))) {
+                int addrStart=command.skipSpaces(colon+1);
+                int addrEnd=command.lastIndexOf('>', addrStart);
+                addrEnd=(addrEnd != -1) ? addrEnd+1 : command.tokenEnd(addrStart);
+                return command.getTrimmed(colon+1, addrEnd).length();
+            }
+            return -1;
+        }
+        if(verb == JMailCommand.LIST || verb == JMailCommand.RETR || verb == JMailCommand.DELE || verb == JMailCommand.TOP) {
+            return command.parseInt(command.getArgStart(), command.tokenEnd(command.getArgStart()));
+        }
+        if(command.hasArg()) {
+            return command.getArg().length();
+        }
+        return verb;
+    }
+    
+    /** This method picks apart a line as the connections did before
+     *  JMailCommand, starting from the String the line reader gave them
+     */
+    private static int parseSplit(byte[] line) {
+        String theInput=new String(line, 0, line.length);
+        String[] myArgs=theInput.split(" ", 2);
+        String arg1=myArgs[0].toUpperCase();
+        if(arg1.equals("MAIL") || arg1.equals("RCPT")) {
+            String[] fromArgs=myArgs[1].split(":", 2);
+            String word=fromArgs[0].toUpperCase();
+            if((word.equals("FROM") || word.equals("TO")) && fromArgs.length == 2 && ! fromArgs[1].equals("")) {
+                String address=fromArgs[1];
+                int addrEnd=address.lastIndexOf('>');
+                return ((addrEnd != -1) ? address.substring(0, addrEnd+1) : address.split(" ")[0]).trim().length();
+            }
+            return -1;
+        }
+        if(arg1.equals("LIST") || arg1.equals("RETR") || arg1.equals("DELE") || arg1.equals("TOP")) {
+            return Integer.parseInt(myArgs[1].split(" ", 2)[0]);
+        }
+        if(myArgs.length == 2) {
+            return myArgs[1].length();
+        }
+        return arg1.hashCode();
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.*;
+import java.net.*;
+
+/** This class measures how many messages a second JMailQueueJournal takes
+ *  with QUEUE_JOURNAL_SYNC on, where each append waits for its record to be forced
+ *  to disk, and with it off.
+ *  Each of a number of threads stands in for an SMTP session: it appends
+ *  a message held in memory, then removes it as a delivery would.  With
+ *  QUEUE_JOURNAL_SYNC on, the number of syncs against the number of records
+ *  written shows how much of the forcing is shared between sessions.
+ *  <p>
+ *  Build and run from the top of the tree with plain javac:
+ *  <pre>
+ *  javac -d build JMailServer.java bench/JMailJournalBench.java
+ *  java -cp build JMailJournalBench [messages] [size] [dir]
+ *  </pre>
+ *  The journal is written to [dir], by default the temp directory; the
+ *  figures depend on how fast the disk under it forces writes.
+ */
+public class JMailJournalBench {
+    private static final int[] THREADS={1, 4, 16};
+    
+    public static void main(String[] args) throws Exception {
+        int messages=(args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int size=(args.length > 1) ? Integer.parseInt(args[1]) : 4096;
+        File dir=new File((args.length > 2) ? args[2] : System.getProperty("java.io.tmpdir"));
+    
+        System.out.println("JMailJournalBench: "+messages+" messages of "+size+" bytes in "+dir);
+    
+        // Warm up both paths before measuring
+        run(dir, false, 4, messages/4, size);
+        run(dir, true, 4, Math.min(messages/4, 200), size);
+    
+        for(int i=0; i<THREADS.length; i++) {
+            run(dir, false, THREADS[i], messages, size);
+            run(dir, true, THREADS[i], messages, size);
+        }
+    }
+    
+    /** This method appends and removes [messages] messages from [threads]
+     *  threads, and prints the rate
+     */
+    private static void run(File dir, boolean doSync, int threads, final int messages, int size) throws Exception {
+        File file=File.createTempFile("JMailJournalBench", ".journal", dir);
+        final JMailQueueJournal journal=new JMailQueueJournal(file, doSync);
+        journal.open();
+    
+        byte[] line=new byte[78];
+        for(int i=0; i<line.length; i++) {
+            line[i]=(byte) ('a'+i%26);
+        }
+    
+        Thread[] sessions=new Thread[threads];
+        final JMailSMTPMessage[][] queued=new JMailSMTPMessage[threads][];
+        for(int i=0; i<threads; i++) {
+            queued[i]=new JMailSMTPMessage[messages/threads];
+            for(int j=0; j<queued[i].length; j++) {
+                queued[i][j]=makeMessage(line, size);
+            }
+        }
+    
+        final IOException[] failure=new IOException[1];
+        for(int i=0; i<threads; i++) {
+            final JMailSMTPMessage[] mine=queued[i];
+            sessions[i]=new Thread("JMailJournalBench "+i) {
+                public void run() {
+                    try {
+                        for(int j=0; j<mine.length; j++) {
+                            journal.append(mine[j]);
+                            journal.remove(mine[j]);
+                        }
+                    }
+                    catch(IOException e) {
+                        failure[0]=e;
+                    }
+                }
+            };
+        }
+    
+        long start=System.nanoTime();
+        for(int i=0; i<threads; i++) {
+            sessions[i].start();
+        }
+        for(int i=0; i<threads; i++) {
+            sessions[i].join();
+        }
+        long elapsed=System.nanoTime()-start;
+    
+        file.delete();
+        if(failure[0] != null) {
+            throw failure[0];
+        }
+    
+        int done=threads*(messages/threads);
+        System.out.println("JMailJournalBench: QUEUE_JOURNAL_SYNC="+doSync+", "+threads+" thread(s): "+(long) (done/(elapsed/1e9))+" messages/sec, "
++journal.getWrittenCount()+" records written, "+journal.getSyncCount()+" syncs");
+    }
+    
+    /** This method makes a message held in memory of about [size] bytes */
+    private static JMailSMTPMessage makeMessage(byte[] line, int size) throws IOException {
+        JMailMessageBuffer content=new JMailMessageBuffer();
+        for(int i=0; i<size; i+=line.length+2) {
+            content.writeLine(line, 0, line.length);
+        }
+        content.close();
+    
+        JMailEmailComboList recipents=new JMailEmailComboList();
+        recipents.add(new JMailEmailCombo("<bob@example.com>", "bob", "example.com"));
+        return new JMailSMTPMessage("client.example.org", "localhost", InetAddress.getLoopbackAddress(), new JMailEmailCombo("<alice@example.org>", "alice", "example.org"), recipents, content);
+    }
+}
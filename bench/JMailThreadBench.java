@@ -0,0 +1,198 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This class compares handling connections on platform threads, as
+ *  LISTENER_MODE=thread does, with handling them on virtual threads, as
+ *  LISTENER_MODE=virtual does.
+ *  Each connection is served by a blocking handler which waits [delay]
+ *  millisecs before answering each command, standing in for a DNS lookup
+ *  or a disk write.  All the clients are driven from one NIO thread, so
+ *  only the server side threads are counted.
+ *  <p>
+ *  Build and run from the top of the tree with plain javac:
+ *  <pre>
+ *  javac -d build JMailServer.java bench/JMailThreadBench.java
+ *  java -cp build JMailThreadBench [connections] [commands] [delay]
+ *  </pre>
+ *  Virtual threads need a Java 21 JVM; on older JVMs the virtual run
+ *  measures the fallback pool which JMailServer uses instead.
+ */
+public class JMailThreadBench {
+    private static final byte[] NOOP="NOOP\r\n".getBytes();
+    private static final byte[] QUIT="QUIT\r\n".getBytes();
+    
+    public static void main(String[] args) throws Exception {
+        int connections=(args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int commands=(args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        int delay=(args.length > 2) ? Integer.parseInt(args[2]) : 5;
+    
+        System.out.println("JMailThreadBench: "+connections+" connections, "+commands+" commands each, "+delay+" ms per command");
+        System.out.println("JMailThreadBench: Java "+System.getProperty("java.version")+(hasVirtualThreads() ? "" : "; virtual threads not available, so the fallback pool is measured"));
+    
+        // Warm up both paths before measuring
+        run("thread", Math.min(connections, 100), commands, delay);
+        run("virtual", Math.min(connections, 100), commands, delay);
+    
+        for(int i=0; i<3; i++) {
+            report("thread", connections, commands, run("thread", connections, commands, delay));
+            report("virtual", connections, commands, run("virtual", connections, commands, delay));
+        }
+    }
+    
+    private static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+            return true;
+        }
+        catch(NoSuchMethodException e) {
+            return false;
+        }
+    }
+    
+    private static void report(String mode, int connections, int commands, long[] result) {
+        double secs=result[0]/1e9;
+        System.out.println("JMailThreadBench: "+mode+": "+(result[0]/1000000)+" ms, "+(long) (connections*(long) (commands+1)/secs)+" commands/sec, peak "+result[1]+" platform threads");
+    }
+    
+    /** This method serves [connections] connections in [mode] and waits for
+     *  every client to finish
+     * @return time taken in nanosecs, and the peak number of platform threads
+     */
+    private static long[] run(String mode, final int connections, int commands, final int delay) throws Exception {
+        final ServerSocket server=new ServerSocket(0, connections);
+        final ExecutorService executor=mode.equals("virtual") ? JMailServer.newVirtualThreadExecutor("JMailThreadBench") : null;
+        ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+    
+        Thread acceptor=new Thread("JMailThreadBench acceptor") {
+            public void run() {
+                try {
+                    for(int i=0; i<connections; i++) {
+                        Runnable handler=new Handler(server.accept(), delay);
+                        if(executor != null) {
+                            executor.execute(handler);
+                        }
+                        else {
+                            new Thread(handler).start();
+                        }
+                    }
+                }
+                catch(IOException e) {
+                    System.err.println("JMailThreadBench: Accept failed: "+e);
+                }
+            }
+        };
+    
+        long start=System.nanoTime();
+        acceptor.start();
+        drive(server.getLocalPort(), connections, commands);
+        long elapsed=System.nanoTime()-start;
+    
+        acceptor.join();
+        server.close();
+        if(executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        return new long[] {elapsed, threads.getPeakThreadCount()};
+    }
+    
+    /** This method opens [connections] client connections, sends [commands]
+     *  NOOPs and a QUIT down each one, a command at a time, and returns once
+     *  every connection has been closed
+     */
+    private static void drive(int port, int connections, int commands) throws IOException {
+        Selector selector=Selector.open();
+        InetSocketAddress address=new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        for(int i=0; i<connections; i++) {
+            SocketChannel channel=SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(address);
+            // Number of lines still to come: the greeting, a reply to each
+            // NOOP and a reply to the QUIT
+            channel.register(selector, SelectionKey.OP_CONNECT, new int[] {commands+2});
+        }
+    
+        ByteBuffer readBuffer=ByteBuffer.allocate(256);
+        int open=connections;
+        while(open > 0) {
+            selector.select();
+            Iterator i=selector.selectedKeys().iterator();
+            while(i.hasNext()) {
+                SelectionKey key=(SelectionKey) i.next();
+                i.remove();
+                SocketChannel channel=(SocketChannel) key.channel();
+                int[] remaining=(int[]) key.attachment();
+    
+                if(key.isConnectable()) {
+                    channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    continue;
+                }
+    
+                readBuffer.clear();
+                int length=channel.read(readBuffer);
+                for(int j=0; j<length; j++) {
+                    if(readBuffer.get(j) == '\n') {
+                        remaining[0]--;
+                        if(remaining[0] > 1) {
+                            channel.write(ByteBuffer.wrap(NOOP));
+                        }
+                        else if(remaining[0] == 1) {
+                            channel.write(ByteBuffer.wrap(QUIT));
+                        }
+                    }
+                }
+                if(length == -1 || remaining[0] == 0) {
+                    key.cancel();
+                    channel.close();
+                    open--;
+                }
+            }
+        }
+        selector.close();
+    }
+    
+    /** This class answers commands on one connection, blocking as the
+     *  JMailServerSMTPThread handlers do
+     */
+    private static class Handler implements Runnable {
+        private Socket mySocket=null;
+        private int myDelay=0;
+    
+        public Handler(Socket socket, int delay) {
+            this.mySocket=socket;
+            this.myDelay=delay;
+        }
+    
+        public void run() {
+            try {
+                BufferedReader in=new BufferedReader(new InputStreamReader(mySocket.getInputStream()));
+                OutputStream out=mySocket.getOutputStream();
+                out.write("220 bench\r\n".getBytes());
+                out.flush();
+    
+                String line;
+                while((line=in.readLine()) != null) {
+                    Thread.sleep(myDelay);
+                    if(line.equals("QUIT")) {
+                        out.write("221 bye\r\n".getBytes());
+                        out.flush();
+                        break;
+                    }
+                    out.write("250 ok\r\n".getBytes());
+                    out.flush();
+                }
+                mySocket.close();
+            }
+            catch(Exception e) {
+                System.err.println("JMailThreadBench: Handler failed: "+e);
+            }
+        }
+    }
+}